@@ -60,11 +60,18 @@ public interface AlignmentsProvider {
         }
 
         public static AlignmentsProvider createProvider(final String file, final AlleleResolver alleleResolver) {
+            return createProvider(file, alleleResolver, 1);
+        }
+
+        public static AlignmentsProvider createProvider(final String file, final AlleleResolver alleleResolver,
+                                                        final int decodingThreads) {
             return new VDJCAlignmentsReaderWrapper(new Factory<VDJCAlignmentsReader>() {
                 @Override
                 public VDJCAlignmentsReader create() {
                     try {
-                        return new VDJCAlignmentsReader(file, alleleResolver);
+                        VDJCAlignmentsReader reader = new VDJCAlignmentsReader(file, alleleResolver);
+                        reader.setDecodingThreads(decodingThreads);
+                        return reader;
                     } catch (FileNotFoundException e) {
                         throw new RuntimeException(e);
                     }
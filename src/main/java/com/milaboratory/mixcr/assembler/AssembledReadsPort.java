@@ -33,13 +33,21 @@ import gnu.trove.map.hash.TIntIntHashMap;
 
 public class AssembledReadsPort implements OutputPortCloseable<ReadToCloneMapping> {
     final OutputPortCloseable<AssemblerEvent> initialEvents, mappingEvents;
-    final TIntIntHashMap idMapping;
+    final TIntIntHashMap initialIdMapping, idMapping;
 
     public AssembledReadsPort(OutputPortCloseable<AssemblerEvent> initialEvents,
                               OutputPortCloseable<AssemblerEvent> mappingEvents,
                               TIntIntHashMap idMapping) {
+        this(initialEvents, mappingEvents, null, idMapping);
+    }
+
+    public AssembledReadsPort(OutputPortCloseable<AssemblerEvent> initialEvents,
+                              OutputPortCloseable<AssemblerEvent> mappingEvents,
+                              TIntIntHashMap initialIdMapping,
+                              TIntIntHashMap idMapping) {
         this.initialEvents = initialEvents;
         this.mappingEvents = mappingEvents;
+        this.initialIdMapping = initialIdMapping;
         this.idMapping = idMapping;
     }
 
@@ -64,6 +72,9 @@ public class AssembledReadsPort implements OutputPortCloseable<ReadToCloneMappin
         assert eventMapping == null || eventMapping.alignmentsIndex == event.alignmentsIndex;
 
         int cloneIndex = event.cloneIndex;
+        // Clones created again after being spilled were merged into the first of them
+        if (cloneIndex >= 0 && initialIdMapping != null && initialIdMapping.containsKey(cloneIndex))
+            cloneIndex = initialIdMapping.get(cloneIndex);
         boolean mapped = false;
         if (eventMapping != null && (eventMapping.cloneIndex >= 0 || eventMapping.cloneIndex <= -4)) {
             cloneIndex = eventMapping.cloneIndex;
@@ -78,7 +89,8 @@ public class AssembledReadsPort implements OutputPortCloseable<ReadToCloneMappin
         if (cloneIndex < 0)
             return new ReadToCloneMapping(event.alignmentsIndex, event.readId, cloneIndex, false, false);
 
-        cloneIndex = idMapping.get(cloneIndex);
+        if (idMapping != null)
+            cloneIndex = idMapping.get(cloneIndex);
 
         boolean clustered = false;
         if (cloneIndex < 0) {
@@ -34,84 +34,175 @@ import com.milaboratory.core.io.util.IOUtil;
 import com.milaboratory.mixcr.util.TempFileManager;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import static com.milaboratory.core.io.util.IOUtil.*;
 
+/**
+ * Logs assembler events to a file in the order of alignment indices. Events may be submitted from several threads in
+ * arbitrary order: they are placed into a lock-free ring buffer indexed by alignment index, and a dedicated writer
+ * thread encodes them in order. If an event is too far ahead of the writer, submitting thread waits until there is
+ * room for it in the buffer, so (unlike a bounded reordering list) the logger never fails on deep reordering. Writer
+ * thread sleeps while the next event is missing and is woken up by the thread that submits it.
+ */
 public final class AssemblerEventLogger {
-    static final int MAX_BUFFER_SIZE = 10_000;
+    static final int RING_CAPACITY = 1 << 16;
+    static final int RING_MASK = RING_CAPACITY - 1;
+    static final int WRITE_BUFFER_SIZE = 65536;
     final AtomicBoolean closed = new AtomicBoolean(false);
     final File file;
     final OutputStream os;
-    //todo replace with ArrayDeque
-    final ArrayList<AssemblerEvent> eventsBuffer = new ArrayList<>();
-    long counter = 0;
+    final AtomicReferenceArray<AssemblerEvent> ring = new AtomicReferenceArray<>(RING_CAPACITY);
+    // Number of encoded events (index of the next event to encode)
+    final AtomicLong counter = new AtomicLong();
+    final Thread writerThread;
+    volatile boolean ending = false;
+    volatile Throwable writerError;
+    // Threads waiting for room in the ring buffer
+    final Object spaceMonitor = new Object();
+    volatile int waitingForSpace = 0;
+    // Accessed only from the writer thread
+    final byte[] writeBuffer = new byte[WRITE_BUFFER_SIZE];
+    int writeBufferPosition = 0;
     long previousReadId = 0;
 
     public AssemblerEventLogger() {
-        try {
-            this.file = TempFileManager.getTempFile();
-            this.os = new BufferedOutputStream(new FileOutputStream(file));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        this(TempFileManager.getTempFile());
     }
 
     public AssemblerEventLogger(File file) {
         this.file = file;
         try {
-            this.os = new BufferedOutputStream(new FileOutputStream(file));
+            this.os = new FileOutputStream(file);
         } catch (FileNotFoundException e) {
-            throw new RuntimeException();
+            throw new RuntimeException(e);
         }
+        this.writerThread = new Thread(new Writer(), "AssemblerEventLogger");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
     }
 
-    public synchronized void newEvent(AssemblerEvent event) {
-        if (event.alignmentsIndex != counter) {
-            if (event.alignmentsIndex < counter)
-                throw new IllegalArgumentException("Duplicate event detected.");
-            eventsBuffer.add(event);
-            if (eventsBuffer.size() > MAX_BUFFER_SIZE)
-                throw new RuntimeException("Missing event detected.");
-            return;
+    public void newEvent(AssemblerEvent event) {
+        // Just in case (like assert)
+        if (event.cloneIndex == -2_147_483_648)
+            throw new IllegalArgumentException();
+
+        long index = event.alignmentsIndex;
+        if (index < counter.get())
+            throw new IllegalArgumentException("Duplicate event detected.");
+
+        if (index - counter.get() >= RING_CAPACITY)
+            waitForSpace(index);
+
+        if (!ring.compareAndSet((int) (index & RING_MASK), null, event))
+            throw new IllegalArgumentException("Duplicate event detected.");
+
+        // Writer thread is waiting exactly for this event (if it checks the slot before the event was put, it sees
+        // updated counter after wake up)
+        if (index == counter.get())
+            LockSupport.unpark(writerThread);
+    }
+
+    /**
+     * Waits for the room in the ring buffer. Event with the smallest pending index always fits, so this never
+     * deadlocks.
+     */
+    private void waitForSpace(long index) {
+        synchronized (spaceMonitor) {
+            ++waitingForSpace;
+            try {
+                while (index - counter.get() >= RING_CAPACITY) {
+                    checkWriterError();
+                    if (ending)
+                        throw new IllegalStateException("Logger is closed.");
+                    spaceMonitor.wait();
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                --waitingForSpace;
+            }
         }
+    }
+
+    private void notifyWaitingForSpace() {
+        synchronized (spaceMonitor) {
+            spaceMonitor.notifyAll();
+        }
+    }
+
+    private void checkWriterError() {
+        if (writerError != null)
+            throw new RuntimeException("Error in event writer thread.", writerError);
+    }
+
+    private final class Writer implements Runnable {
+        @Override
+        public void run() {
+            try {
+                long index = counter.get();
+                AssemblerEvent event;
+                while (true) {
+                    int slot = (int) (index & RING_MASK);
+                    if ((event = ring.get(slot)) != null) {
+                        ring.set(slot, null);
+                        encode(event);
+                        counter.set(++index);
+                        if (waitingForSpace > 0)
+                            notifyWaitingForSpace();
+                        continue;
+                    }
 
-        write(event);
-        ++counter;
-        if (!eventsBuffer.isEmpty()) {
-            Collections.sort(eventsBuffer);
-            while (!eventsBuffer.isEmpty()) {
-                if (eventsBuffer.get(0).alignmentsIndex != counter)
-                    return;
-                write(eventsBuffer.remove(0));
-                ++counter;
+                    // All pending in-order events are encoded
+                    flushBuffer();
+                    if (ending)
+                        break;
+                    // Woken up by the thread submitting the next event, or by stopWriter()
+                    LockSupport.park(this);
+                }
+            } catch (Throwable e) {
+                writerError = e;
+                notifyWaitingForSpace();
             }
         }
     }
 
-    private void write(AssemblerEvent event) {
-        // Just in case (like assert)
-        if (event.cloneIndex == -2_147_483_648)
-            throw new IllegalArgumentException();
+    private void encode(AssemblerEvent event) throws IOException {
+        // Ensuring there is enough space for two varints
+        if (writeBufferPosition > WRITE_BUFFER_SIZE - 15)
+            flushBuffer();
 
-        assert previousReadId <= event.readId;
+        // Writing clone index
+        putVarint(encodeZigZag32(event.cloneIndex) & 0xFFFFFFFFL);
 
-        try {
-            // Writing clone index
-            writeRawVarint32(os, encodeZigZag32(event.cloneIndex));
+        // Saving only difference for compactness
+        // Zig-zagged because negative for alignments written by "align --unordered"
+        putVarint(encodeZigZag64(event.readId - previousReadId));
 
-            // Saving only difference for compactness
-            // Not zig-zagged because always positive
-            writeRawVarint64(os, event.readId - previousReadId);
+        // Saving current read id
+        previousReadId = event.readId;
+    }
 
-            // Saving current read id
-            previousReadId = event.readId;
-        } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
+    /**
+     * Same encoding as {@link IOUtil#writeRawVarint64(OutputStream, long)}.
+     */
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeBuffer[writeBufferPosition++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
         }
+        writeBuffer[writeBufferPosition++] = (byte) value;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (writeBufferPosition == 0)
+            return;
+        os.write(writeBuffer, 0, writeBufferPosition);
+        writeBufferPosition = 0;
     }
 
     public Iterable<AssemblerEvent> events() {
@@ -139,27 +230,49 @@ public final class AssemblerEventLogger {
      * Tells this class that logging is finished, and underlying file can be closet for write.
      */
     public synchronized void end(long check) {
-        if (check != counter)
-            throw new RuntimeException("Something wrong.");
         end();
+        if (check != counter.get())
+            throw new RuntimeException("Something wrong.");
     }
 
     public synchronized void end() {
         //Close only once
-        if (closed.compareAndSet(false, true))
-            try {
-                if (!eventsBuffer.isEmpty())
+        if (closed.compareAndSet(false, true)) {
+            stopWriter();
+            checkWriterError();
+            for (int i = 0; i < RING_CAPACITY; ++i)
+                if (ring.get(i) != null)
                     throw new IllegalStateException("Some elements left in buffer.");
+        }
+    }
+
+    /**
+     * Stops writer thread (after all pending in-order events are encoded) and closes output stream.
+     */
+    private void stopWriter() {
+        ending = true;
+        LockSupport.unpark(writerThread);
+        notifyWaitingForSpace();
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
                 os.close();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
+        }
     }
 
     /**
      * Deletes underlying file with log information.
      */
-    public void close() {
+    public synchronized void close() {
+        // Stopping writer thread if logging was not properly finished
+        if (closed.compareAndSet(false, true))
+            stopWriter();
         file.delete();
     }
 
@@ -194,11 +307,10 @@ public final class AssemblerEventLogger {
                         }
                     }
                 }
-                long readId = IOUtil.readRawVarint64(is, -1);
-                assert readId != -1;
+                long readIdDelta = IOUtil.readRawVarint64(is, -1);
+                assert readIdDelta != -1;
 
-                // ))
-                previousReadId = readId += previousReadId;
+                long readId = previousReadId += decodeZigZag64(readIdDelta);
 
                 return new AssemblerEvent(counter++, readId, decodeZigZag32(cloneIndex));
             } catch (IOException e) {
@@ -37,11 +37,18 @@ import com.milaboratory.mixcr.basictypes.VDJCAlignments;
 import com.milaboratory.mixcr.basictypes.VDJCHit;
 import com.milaboratory.mixcr.reference.AlleleId;
 import com.milaboratory.mixcr.reference.GeneType;
+import gnu.trove.iterator.TObjectFloatIterator;
 import gnu.trove.map.hash.TObjectFloatHashMap;
 
 import java.util.EnumMap;
+import java.util.Map;
 
 public final class CloneAccumulator {
+    /**
+     * Rough estimate of constant part of accumulator heap footprint (object headers, clonal sequence, map node,
+     * allele score maps for V, J and C genes with default capacity)
+     */
+    static final int ESTIMATED_OVERHEAD = 1024;
     final EnumMap<GeneType, TObjectFloatHashMap<AlleleId>> geneScores = new EnumMap<>(GeneType.class);
     final ClonalSequence sequence;
     final byte[] quality;
@@ -55,6 +62,13 @@ public final class CloneAccumulator {
         this.quality = sequence.getConcatenated().getQuality().asArray();
     }
 
+    CloneAccumulator(ClonalSequence sequence, Range[] nRegions, byte[] quality, long count) {
+        this.sequence = sequence;
+        this.nRegions = nRegions;
+        this.quality = quality;
+        this.count = count;
+    }
+
     public ClonalSequence getSequence() {
         return sequence;
     }
@@ -77,7 +91,26 @@ public final class CloneAccumulator {
         return count;
     }
 
+    /**
+     * Returns rough estimate of the heap footprint of this accumulator in bytes.
+     *
+     * @return rough estimate of the heap footprint of this accumulator
+     */
+    long estimateSize() {
+        // Concatenated and split sequences with qualities and array of max qualities
+        return ESTIMATED_OVERHEAD + 4L * quality.length;
+    }
+
     public synchronized void accumulate(ClonalSequence data, VDJCAlignments alignment, boolean mapped) {
+        accumulateUnsynchronized(data, alignment, mapped);
+    }
+
+    /**
+     * Same as {@link #accumulate(ClonalSequence, VDJCAlignments, boolean)}, but without acquiring monitor. Should be
+     * used only for accumulators confined to a single thread (e.g. partial accumulators of sharded initial
+     * assembly).
+     */
+    void accumulateUnsynchronized(ClonalSequence data, VDJCAlignments alignment, boolean mapped) {
         //Increment count
         ++count;
 
@@ -112,4 +145,29 @@ public final class CloneAccumulator {
             }
         }
     }
+
+    /**
+     * Adds counts, allele scores and qualities collected by partial accumulator (for the same clonal sequence) to this
+     * accumulator.
+     *
+     * @param partial partial accumulator
+     */
+    synchronized void merge(CloneAccumulator partial) {
+        count += partial.count;
+
+        for (Map.Entry<GeneType, TObjectFloatHashMap<AlleleId>> e : partial.geneScores.entrySet()) {
+            TObjectFloatHashMap<AlleleId> alleleScores = geneScores.get(e.getKey());
+            if (alleleScores == null)
+                geneScores.put(e.getKey(), alleleScores = new TObjectFloatHashMap<>());
+            TObjectFloatIterator<AlleleId> iterator = e.getValue().iterator();
+            while (iterator.hasNext()) {
+                iterator.advance();
+                alleleScores.adjustOrPutValue(iterator.key(), iterator.value(), iterator.value());
+            }
+        }
+
+        for (int i = 0; i < quality.length; ++i)
+            if (quality[i] < partial.quality[i])
+                quality[i] = partial.quality[i];
+    }
 }
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.assembler;
+
+import cc.redberry.pipe.OutputPortCloseable;
+import com.milaboratory.core.Range;
+import com.milaboratory.core.sequence.NSequenceWithQuality;
+import com.milaboratory.mixcr.basictypes.ClonalSequence;
+import com.milaboratory.mixcr.reference.AlleleId;
+import com.milaboratory.mixcr.reference.GeneType;
+import com.milaboratory.mixcr.util.TempFileManager;
+import com.milaboratory.primitivio.PrimitivI;
+import com.milaboratory.primitivio.PrimitivO;
+import gnu.trove.iterator.TObjectFloatIterator;
+import gnu.trove.map.hash.TObjectFloatHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Stores sorted runs of clone accumulators on disk and merges them back (k-way merge). Used by {@link CloneAssembler}
+ * to keep memory consumed by accumulators below configured budget: accumulators spilled during initial assembly are
+ * stored in {@link #SEQUENCE_COMPARATOR} order, and cluster heads (waiting for clones building) are stored in
+ * {@link #CLUSTERING_ORDER}.
+ */
+final class CloneAccumulatorSpiller implements AutoCloseable {
+    /**
+     * Orders accumulators by the structure of their clonal sequences (see {@link #compareStructure(ClonalSequence,
+     * ClonalSequence)}), and then by sequences of their parts (consistent with {@link ClonalSequence#equals(Object)}).
+     * Accumulators of the same structure form a contiguous range in this order.
+     */
+    static final Comparator<CloneAccumulator> SEQUENCE_COMPARATOR = new Comparator<CloneAccumulator>() {
+        @Override
+        public int compare(CloneAccumulator o1, CloneAccumulator o2) {
+            ClonalSequence s1 = o1.getSequence(), s2 = o2.getSequence();
+            int c = compareStructure(s1, s2);
+            if (c != 0)
+                return c;
+            for (int i = 0; i < s1.size(); ++i)
+                if ((c = s1.get(i).getSequence().compareTo(s2.get(i).getSequence())) != 0)
+                    return c;
+            return 0;
+        }
+    };
+
+    /**
+     * Order of clusters produced by clustering: descending counts, then descending sequences (see
+     * {@link ParallelClustering}).
+     */
+    static final Comparator<CloneAccumulator> CLUSTERING_ORDER = new Comparator<CloneAccumulator>() {
+        @Override
+        public int compare(CloneAccumulator o1, CloneAccumulator o2) {
+            int c = Long.compare(o2.count, o1.count);
+            return c != 0 ? c : o2.getSequence().getConcatenated().getSequence().compareTo(
+                    o1.getSequence().getConcatenated().getSequence());
+        }
+    };
+
+    /**
+     * Compares structures of clonal sequences: lengths of concatenated sequences, and then lengths of parts. Deferred
+     * alignments are mapped only to clones with the same structure. Clones with different structures may still be
+     * clustered (substitutions may move part boundaries), but only if lengths of their concatenated sequences differ
+     * by no more than the number of indels allowed by clustering.
+     */
+    static int compareStructure(ClonalSequence s1, ClonalSequence s2) {
+        int c = Integer.compare(s1.getConcatenated().size(), s2.getConcatenated().size());
+        if (c != 0)
+            return c;
+        for (int i = 0; i < s1.size(); ++i)
+            if ((c = Integer.compare(s1.get(i).size(), s2.get(i).size())) != 0)
+                return c;
+        return 0;
+    }
+
+    final AlleleId[] alleles;
+    final TObjectIntHashMap<AlleleId> alleleIndices;
+    final Comparator<CloneAccumulator> order;
+    final List<File> runs = new ArrayList<>();
+    final List<Integer> runSizes = new ArrayList<>();
+    long size = 0;
+
+    CloneAccumulatorSpiller(Collection<AlleleId> alleles, Comparator<CloneAccumulator> order) {
+        this.alleles = alleles.toArray(new AlleleId[alleles.size()]);
+        this.alleleIndices = new TObjectIntHashMap<>(this.alleles.length, 0.5f, -1);
+        for (int i = 0; i < this.alleles.length; ++i)
+            alleleIndices.put(this.alleles[i], i);
+        this.order = order;
+    }
+
+    boolean hasRuns() {
+        return !runs.isEmpty();
+    }
+
+    /**
+     * Returns total number of spilled accumulators.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Writes accumulators to a new run. Accumulators must be sorted in the order of this spiller.
+     *
+     * @param accumulators sorted accumulators
+     */
+    void spill(List<CloneAccumulator> accumulators) {
+        File file = TempFileManager.getTempFile();
+        try (PrimitivO output = new PrimitivO(new BufferedOutputStream(new FileOutputStream(file), 65536))) {
+            for (CloneAccumulator accumulator : accumulators)
+                write(output, accumulator);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        runs.add(file);
+        runSizes.add(accumulators.size());
+        size += accumulators.size();
+    }
+
+    private void write(PrimitivO output, CloneAccumulator accumulator) {
+        output.writeInt(accumulator.getCloneIndex());
+        output.writeLong(accumulator.count);
+        output.writeObject(accumulator.sequence.sequences);
+        output.writeObject(accumulator.nRegions);
+        output.write(accumulator.quality);
+        output.writeByte(accumulator.geneScores.size());
+        for (Map.Entry<GeneType, TObjectFloatHashMap<AlleleId>> entry : accumulator.geneScores.entrySet()) {
+            output.writeObject(entry.getKey());
+            output.writeVarInt(entry.getValue().size());
+            TObjectFloatIterator<AlleleId> iterator = entry.getValue().iterator();
+            while (iterator.hasNext()) {
+                iterator.advance();
+                int index = alleleIndices.get(iterator.key());
+                if (index == -1)
+                    throw new IllegalArgumentException("Unknown allele: " + iterator.key());
+                output.writeVarInt(index);
+                output.writeFloat(iterator.value());
+            }
+        }
+    }
+
+    private CloneAccumulator read(PrimitivI input) {
+        int cloneIndex = input.readInt();
+        long count = input.readLong();
+        ClonalSequence sequence = new ClonalSequence(input.readObject(NSequenceWithQuality[].class));
+        Range[] nRegions = input.readObject(Range[].class);
+        byte[] quality = new byte[sequence.getConcatenated().size()];
+        input.readFully(quality);
+        CloneAccumulator accumulator = new CloneAccumulator(sequence, nRegions, quality, count);
+        accumulator.setCloneIndex(cloneIndex);
+        int geneTypes = input.readByte();
+        for (int i = 0; i < geneTypes; ++i) {
+            GeneType geneType = input.readObject(GeneType.class);
+            int size = input.readVarInt();
+            // Exact capacity, to keep merged back accumulators compact
+            TObjectFloatHashMap<AlleleId> scores = new TObjectFloatHashMap<>(size);
+            for (int j = 0; j < size; ++j)
+                scores.put(alleles[input.readVarInt()], input.readFloat());
+            accumulator.geneScores.put(geneType, scores);
+        }
+        return accumulator;
+    }
+
+    /**
+     * Creates port that merges all runs and given in-memory accumulators. Port output is sorted in the order of this
+     * spiller; equal accumulators (e.g. with equal clonal sequences) are returned one after another.
+     *
+     * @param inMemory accumulators that were not spilled, must be sorted in the order of this spiller
+     * @return merged port
+     */
+    OutputPortCloseable<CloneAccumulator> merge(List<CloneAccumulator> inMemory) {
+        List<RunReader> readers = new ArrayList<>(runs.size() + 1);
+        readers.add(new RunReader(0, inMemory.iterator()));
+        try {
+            for (int i = 0; i < runs.size(); ++i)
+                readers.add(new RunReader(i + 1, runs.get(i), runSizes.get(i)));
+        } catch (IOException e) {
+            for (RunReader reader : readers)
+                reader.close();
+            throw new RuntimeException(e);
+        }
+        return new MergingPort(readers);
+    }
+
+    /**
+     * Deletes all runs.
+     */
+    @Override
+    public void close() {
+        for (File run : runs)
+            run.delete();
+        runs.clear();
+        runSizes.clear();
+        size = 0;
+    }
+
+    private final class RunReader implements Comparable<RunReader> {
+        final int index;
+        final PrimitivI input;
+        final Iterator<CloneAccumulator> iterator;
+        int remaining;
+        CloneAccumulator head;
+
+        RunReader(int index, Iterator<CloneAccumulator> iterator) {
+            this.index = index;
+            this.input = null;
+            this.iterator = iterator;
+            advance();
+        }
+
+        RunReader(int index, File file, int size) throws IOException {
+            this.index = index;
+            this.input = new PrimitivI(new BufferedInputStream(new FileInputStream(file), 65536));
+            this.iterator = null;
+            this.remaining = size;
+            advance();
+        }
+
+        void advance() {
+            if (iterator != null)
+                head = iterator.hasNext() ? iterator.next() : null;
+            else if (remaining > 0) {
+                head = read(input);
+                --remaining;
+            } else {
+                head = null;
+                close();
+            }
+        }
+
+        void close() {
+            if (input != null)
+                input.close();
+        }
+
+        @Override
+        public int compareTo(RunReader o) {
+            int c = order.compare(head, o.head);
+            // Deterministic order of equal accumulators
+            return c != 0 ? c : Integer.compare(index, o.index);
+        }
+    }
+
+    private static final class MergingPort implements OutputPortCloseable<CloneAccumulator> {
+        final PriorityQueue<RunReader> queue;
+        final List<RunReader> readers;
+
+        MergingPort(List<RunReader> readers) {
+            this.readers = readers;
+            this.queue = new PriorityQueue<>(Math.max(1, readers.size()));
+            for (RunReader reader : readers)
+                if (reader.head != null)
+                    queue.add(reader);
+        }
+
+        @Override
+        public synchronized CloneAccumulator take() {
+            RunReader reader = queue.poll();
+            if (reader == null)
+                return null;
+            CloneAccumulator result = reader.head;
+            reader.advance();
+            if (reader.head != null)
+                queue.add(reader);
+            return result;
+        }
+
+        @Override
+        public synchronized void close() {
+            for (RunReader reader : readers)
+                reader.close();
+            queue.clear();
+        }
+    }
+}
@@ -28,9 +28,11 @@
  */
 package com.milaboratory.mixcr.assembler;
 
+import cc.redberry.pipe.CUtils;
 import cc.redberry.pipe.OutputPortCloseable;
 import cc.redberry.pipe.VoidProcessor;
-import cc.redberry.primitives.Filter;
+import cc.redberry.pipe.VoidProcessorFactory;
+import com.google.common.cache.CacheStats;
 import com.milaboratory.core.Range;
 import com.milaboratory.core.clustering.Cluster;
 import com.milaboratory.core.clustering.Clustering;
@@ -41,9 +43,12 @@ import com.milaboratory.core.sequence.SequenceQuality;
 import com.milaboratory.core.tree.MutationGuide;
 import com.milaboratory.core.tree.NeighborhoodIterator;
 import com.milaboratory.core.tree.SequenceTreeMap;
+import com.milaboratory.core.tree.TreeSearchParameters;
 import com.milaboratory.mixcr.basictypes.ClonalSequence;
 import com.milaboratory.mixcr.basictypes.Clone;
 import com.milaboratory.mixcr.basictypes.CloneSet;
+import com.milaboratory.mixcr.basictypes.CloneSetIO;
+import com.milaboratory.mixcr.basictypes.HasFeatureToAlign;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
 import com.milaboratory.mixcr.reference.Allele;
 import com.milaboratory.mixcr.reference.AlleleId;
@@ -52,13 +57,17 @@ import com.milaboratory.mixcr.reference.GeneType;
 import com.milaboratory.util.CanReportProgress;
 import com.milaboratory.util.Factory;
 import com.milaboratory.util.RandomUtil;
+import gnu.trove.iterator.TIntIntIterator;
 import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntLongHashMap;
 import gnu.trove.procedure.TObjectProcedure;
 
+import java.io.OutputStream;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.milaboratory.mixcr.reference.GeneFeature.*;
 
@@ -78,10 +87,29 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
     private volatile SequenceTreeMap<NucleotideSequence, ArrayList<CloneAccumulator>> mappingTree;
     private ArrayList<CloneAccumulator> clusteredClonesAccumulators;
     private volatile Clone[] realClones;
+    private volatile CacheStats dAlignmentCacheStats;
     private final HashMap<AlleleId, Allele> usedAlleles = new HashMap<>();
     volatile CanReportProgress progressReporter;
     private CloneAssemblerListener listener;
     volatile boolean deferredExists = false;
+    // Sharded initial assembly
+    private volatile boolean shardedAccumulation = false;
+    private final List<HashMap<CloneAccumulator, CloneAccumulator>> shards =
+            Collections.synchronizedList(new ArrayList<HashMap<CloneAccumulator, CloneAccumulator>>());
+    // Single-pass assembly (deferred alignments are stored during initial assembly)
+    private volatile DeferredAlignmentsStore deferredAlignmentsStore;
+    // Indices of deferred alignments, to select them from the stream of all alignments in mapping stage
+    private volatile DeferredAlignmentsIndex deferredAlignmentsIndex;
+    // Memory-bounded assembly
+    private volatile long memoryBudget = -1;
+    private volatile ReentrantReadWriteLock spillLock;
+    private final AtomicLong accumulatorsMemory = new AtomicLong();
+    private final CloneAccumulatorSpiller spiller;
+    // Index of accumulator created again after it had been spilled -> index of accumulator it was merged to
+    private TIntIntHashMap initialIdMapping;
+    private boolean initialAssemblyFinished = false;
+    // Not null if accumulators were spilled during initial assembly
+    private volatile ClonesWindows windows;
 
     public static final Factory<ArrayList<CloneAccumulator>> LIST_FACTORY = new Factory<ArrayList<CloneAccumulator>>() {
         @Override
@@ -98,6 +126,7 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
             globalLogger = new AssemblerEventLogger();
         for (Allele allele : alleles)
             usedAlleles.put(allele.getId(), allele);
+        this.spiller = new CloneAccumulatorSpiller(usedAlleles.keySet(), CloneAccumulatorSpiller.SEQUENCE_COMPARATOR);
     }
 
     /* Initial Assembly Events */
@@ -128,6 +157,11 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
             listener.onAlignmentAddedToClone(alignments, accumulator);
     }
 
+    void onSpilledCloneMerged(CloneAccumulator accumulator, CloneAccumulator duplicate) {
+        if (listener != null)
+            listener.onSpilledCloneMerged(accumulator, duplicate);
+    }
+
     /* Mapping Events */
 
     void onNoCandidateFoundForDefferedAlignment(VDJCAlignments alignments) {
@@ -198,34 +232,276 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
         return new InitialAssembler();
     }
 
+    /**
+     * Returns factory of initial assembler processors. Each created processor must be used by a single thread. If
+     * sharded accumulation is enabled, each processor collects clonal statistics (counts, allele scores and
+     * qualities) in its own thread-confined shard, so threads don't contend for the monitor of dominant clones.
+     * Shards are merged into the main accumulators before any subsequent stage.
+     *
+     * @return factory of initial assembler processors
+     */
+    public VoidProcessorFactory<VDJCAlignments> getInitialAssemblerFactory() {
+        if (!shardedAccumulation) {
+            final InitialAssembler assembler = new InitialAssembler();
+            return new VoidProcessorFactory<VDJCAlignments>() {
+                @Override
+                public VoidProcessor<VDJCAlignments> create() {
+                    return assembler;
+                }
+            };
+        }
+        return new VoidProcessorFactory<VDJCAlignments>() {
+            @Override
+            public VoidProcessor<VDJCAlignments> create() {
+                return new ShardedInitialAssembler();
+            }
+        };
+    }
+
+    public boolean isShardedAccumulation() {
+        return shardedAccumulation;
+    }
+
+    /**
+     * Enables or disables sharded accumulation of clonal statistics in initial assembly stage. Sharded accumulation
+     * eliminates contention on dominant clones at the cost of additional memory for per-thread partial
+     * accumulators.
+     *
+     * @param shardedAccumulation true to enable sharded accumulation
+     */
+    public void setShardedAccumulation(boolean shardedAccumulation) {
+        this.shardedAccumulation = shardedAccumulation;
+    }
+
+    public boolean isSinglePassMapping() {
+        return deferredAlignmentsStore != null;
+    }
+
+    /**
+     * Enables single-pass mode: deferred alignments are written to a temporary side file during initial assembly, so
+     * mapping stage reads them via {@link #getDeferredAlignmentsPort()} instead of the second pass over all
+     * alignments. Must be invoked before initial assembly. Does nothing if mapping is disabled in parameters.
+     *
+     * @param featuresToAlign features used by aligner (used to store sequences of aligned features as references);
+     *                        may be null, in this case sequences are stored explicitly
+     */
+    public void enableSinglePassMapping(HasFeatureToAlign featuresToAlign) {
+        if (deferredAlignmentsStore != null)
+            throw new IllegalStateException("Already enabled.");
+        if (!parameters.isMappingEnabled())
+            return;
+        deferredAlignmentsStore = new DeferredAlignmentsStore(usedAlleles, featuresToAlign);
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets approximate limit for the heap consumed by clone accumulators. When the limit is exceeded during initial
+     * assembly, accumulators with the lowest counts are spilled to sorted runs on disk. If anything was spilled, the
+     * rest of assembly is performed for windows of clones (see {@link #nextClonesWindow()}), each fitting the limit,
+     * and clones are built into a temporary file (see {@link #createCloneSetWriter(OutputStream)}). Must be invoked
+     * before initial assembly.
+     *
+     * <p>Deferred alignments are mapped in a separate pass for each window, so single-pass mapping (see {@link
+     * #enableSinglePassMapping(HasFeatureToAlign)}) is recommended.</p>
+     *
+     * @param memoryBudget approximate limit in bytes, or -1 for no limit
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        this.spillLock = memoryBudget < 0 ? null : new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Merges all per-thread shards into main accumulators. Shards are merged in the order of their creation, so the
+     * result doesn't depend on the order of iteration over hash maps. Must be called only when no initial assembler
+     * processors are running.
+     */
+    private void mergeShards() {
+        synchronized (shards) {
+            for (HashMap<CloneAccumulator, CloneAccumulator> shard : shards) {
+                for (Map.Entry<CloneAccumulator, CloneAccumulator> e : shard.entrySet()) {
+                    e.getKey().merge(e.getValue());
+                    accumulatorsMemory.addAndGet(-e.getValue().estimateSize());
+                }
+                shard.clear();
+            }
+        }
+    }
+
+    /**
+     * Spills accumulators with the lowest counts to disk, until estimated memory consumption drops below half of the
+     * budget.
+     */
+    private void spill() {
+        spillLock.writeLock().lock();
+        try {
+            // Other thread may have already performed spilling
+            if (accumulatorsMemory.get() <= memoryBudget)
+                return;
+
+            mergeShards();
+
+            ArrayList<CloneAccumulator> accumulators = new ArrayList<>(clones.values());
+            Collections.sort(accumulators, new Comparator<CloneAccumulator>() {
+                @Override
+                public int compare(CloneAccumulator o1, CloneAccumulator o2) {
+                    return Long.compare(o1.count, o2.count);
+                }
+            });
+
+            long toFree = accumulatorsMemory.get() - memoryBudget / 2, freed = 0;
+            int toSpill = 0;
+            while (toSpill < accumulators.size() && freed < toFree)
+                freed += accumulators.get(toSpill++).estimateSize();
+
+            List<CloneAccumulator> spilled = new ArrayList<>(accumulators.subList(0, toSpill));
+            accumulators = null;
+            Collections.sort(spilled, CloneAccumulatorSpiller.SEQUENCE_COMPARATOR);
+            spiller.spill(spilled);
+
+            for (CloneAccumulator accumulator : spilled)
+                clones.remove(accumulator.getSequence());
+            accumulatorsMemory.addAndGet(-freed);
+        } finally {
+            spillLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finalizes initial assembly stage: merges shards. If some accumulators were spilled, the remaining ones are
+     * spilled too, and windows of clones are read back from merged runs.
+     */
+    private void finishInitialAssembly() {
+        if (initialAssemblyFinished)
+            return;
+        initialAssemblyFinished = true;
+
+        mergeShards();
+
+        if (!spiller.hasRuns())
+            return;
+
+        ArrayList<CloneAccumulator> remaining = new ArrayList<>(clones.values());
+        Collections.sort(remaining, CloneAccumulatorSpiller.SEQUENCE_COMPARATOR);
+        spiller.spill(remaining);
+        remaining = null;
+        clones.clear();
+        accumulatorsMemory.set(0);
+
+        initialIdMapping = new TIntIntHashMap();
+        windows = new ClonesWindows(spiller.merge(Collections.<CloneAccumulator>emptyList()));
+    }
+
+    /**
+     * Returns whether accumulators were spilled to disk during initial assembly (see {@link
+     * #setMemoryBudget(long)}). In this case mapping and clustering are performed for each window of clones returned
+     * by {@link #nextClonesWindow()}. Must be invoked after initial assembly.
+     */
+    public boolean hasSpilledClones() {
+        finishInitialAssembly();
+        return windows != null;
+    }
+
+    /**
+     * Loads the next window of spilled clones. Windows are cut only between clones that can't interact in mapping and
+     * clustering, so mapping of deferred alignments (for alignments belonging to the window) and clustering can be
+     * performed for each window independently: {@link #getDeferredAlignmentsMapper()} and {@link
+     * #runClustering(int)} process the current window. Heads of clusters of the previous window are spilled to disk.
+     *
+     * @return false if there are no more windows
+     */
+    public boolean nextClonesWindow() {
+        if (!hasSpilledClones())
+            throw new IllegalStateException("Clones were not spilled.");
+        return windows.nextWindow();
+    }
+
     public boolean beginMapping() {
         if (!parameters.isMappingEnabled())
             throw new IllegalStateException("No mapping is needed for this parameters.");
         if (deferredAlignmentsLogger != null)
             throw new IllegalStateException();
+        finishInitialAssembly();
         globalLogger.end(totalAlignments.get());
         if (!deferredExists)
             return false;
         deferredAlignmentsLogger = new AssemblerEventLogger();
-        mappingTree = new SequenceTreeMap<>(NucleotideSequence.ALPHABET);
+        if (deferredAlignmentsStore == null)
+            try (OutputPortCloseable<AssemblerEvent> events = globalLogger.createEventsPort()) {
+                deferredAlignmentsIndex = DeferredAlignmentsIndex.build(events, totalAlignments.get());
+            }
+        if (windows != null) {
+            // Mapping tree is created for each window of clones, events are logged in endMapping()
+            windows.mappingResults = new DeferredMappingResults(totalAlignments.get());
+            if (windows.loaded)
+                createMappingTree();
+            return true;
+        }
+        createMappingTree();
+        return true;
+    }
+
+    private void createMappingTree() {
+        SequenceTreeMap<NucleotideSequence, ArrayList<CloneAccumulator>> mappingTree =
+                new SequenceTreeMap<>(NucleotideSequence.ALPHABET);
         for (CloneAccumulator accumulator : clones.values())
             mappingTree.createIfAbsent(accumulator.getSequence().getConcatenated().getSequence(), LIST_FACTORY).add(accumulator);
-        return true;
+        this.mappingTree = mappingTree;
     }
 
-    public Filter<VDJCAlignments> getDeferredAlignmentsFilter() {
-        return new DeferredAlignmentsFilter();
+    /**
+     * Returns port with deferred alignments stored during initial assembly (single-pass mode). Alignments are
+     * returned in the order they were deferred (approximately the input order). Port takes care of logging of
+     * mapping events for all non-deferred alignments. If clones were spilled, port should be created for each window
+     * of clones.
+     *
+     * @return port with deferred alignments
+     */
+    public OutputPortCloseable<VDJCAlignments> getDeferredAlignmentsPort() {
+        if (deferredAlignmentsStore == null)
+            throw new IllegalStateException("Single-pass mode is not enabled.");
+        if (mappingTree == null)
+            throw new IllegalStateException("Mapping tree not yet created.");
+        // Events of non-deferred alignments are logged at the end of mapping
+        if (windows != null)
+            return deferredAlignmentsStore.createPort();
+        return new DeferredAlignmentsPort(deferredAlignmentsStore.createPort());
     }
 
+    /**
+     * Returns processor mapping deferred alignments to clones. Processor accepts the stream of all alignments (not
+     * deferred ones are selected using precomputed index and skipped), and can be used from several threads
+     * concurrently. If clones were spilled, processor maps only alignments belonging to the current window of clones.
+     *
+     * @return processor mapping deferred alignments to clones
+     */
     public VoidProcessor<VDJCAlignments> getDeferredAlignmentsMapper() {
         if (mappingTree == null)
             throw new IllegalStateException("Mapping tree not yet created.");
-        return new DeferredAlignmentsMapper();
+        return windows != null ? new WindowDeferredAlignmentsMapper() : new DeferredAlignmentsMapper();
     }
 
+    /**
+     * Finishes mapping stage. If clones were spilled, must be invoked after all windows of clones were processed.
+     */
     public void endMapping() {
+        if (windows != null && !windows.finished)
+            throw new IllegalStateException("Not all windows of clones were processed.");
         this.mappingTree = null;
+        this.deferredAlignmentsIndex = null;
+        if (windows != null) {
+            try (OutputPortCloseable<AssemblerEvent> events = globalLogger.createEventsPort()) {
+                windows.mappingResults.log(events, deferredAlignmentsLogger);
+            }
+            windows.mappingResults.close();
+            windows.mappingResults = null;
+        }
         this.deferredAlignmentsLogger.end();
+        if (deferredAlignmentsStore != null)
+            deferredAlignmentsStore.close();
     }
 
     @Override
@@ -243,18 +519,24 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
     }
 
     public void runClustering() {
+        runClustering(1);
+    }
+
+    /**
+     * Performs clustering of clones. Multi-threaded clustering produces exactly the same result as single-threaded
+     * one. If clones were spilled, clusters clones of the current window.
+     *
+     * @param threads number of threads
+     */
+    public void runClustering(int threads) {
+        finishInitialAssembly();
+        if (windows != null) {
+            windows.cluster(threads);
+            return;
+        }
         if (clusteredClonesAccumulators != null)
             throw new IllegalStateException("Already clustered.");
-        @SuppressWarnings("unchecked")
-        Clustering clustering = new Clustering(clones.values(),
-                new SequenceExtractor<CloneAccumulator, NucleotideSequence>() {
-                    @Override
-                    public NucleotideSequence getSequence(CloneAccumulator object) {
-                        return object.getSequence().getConcatenated().getSequence();
-                    }
-                }, new CloneClusteringStrategy(parameters.getCloneClusteringParameters()));
-        this.progressReporter = clustering;
-        List<Cluster<CloneAccumulator>> clusters = clustering.performClustering();
+        List<Cluster<CloneAccumulator>> clusters = performClustering(clones.values(), threads);
         clusteredClonesAccumulators = new ArrayList<>(clusters.size());
         idMapping = new TIntIntHashMap(clones.size());
         for (int i = 0; i < clusters.size(); ++i) {
@@ -275,13 +557,53 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
             });
             clusteredClonesAccumulators.add(head);
         }
+    }
+
+    private List<Cluster<CloneAccumulator>> performClustering(Collection<CloneAccumulator> accumulators,
+                                                              int threads) {
+        SequenceExtractor<CloneAccumulator, NucleotideSequence> sequenceExtractor =
+                new SequenceExtractor<CloneAccumulator, NucleotideSequence>() {
+                    @Override
+                    public NucleotideSequence getSequence(CloneAccumulator object) {
+                        return object.getSequence().getConcatenated().getSequence();
+                    }
+                };
+        CloneClusteringStrategy strategy = new CloneClusteringStrategy(parameters.getCloneClusteringParameters());
+        List<Cluster<CloneAccumulator>> clusters;
+        if (threads <= 1) {
+            Clustering<CloneAccumulator, NucleotideSequence> clustering =
+                    new Clustering<>(accumulators, sequenceExtractor, strategy);
+            this.progressReporter = clustering;
+            clusters = clustering.performClustering();
+        } else {
+            ParallelClustering<CloneAccumulator, NucleotideSequence> clustering =
+                    new ParallelClustering<>(accumulators, sequenceExtractor, strategy, threads);
+            this.progressReporter = clustering;
+            clusters = clustering.performClustering();
+        }
         this.progressReporter = null;
+        return clusters;
     }
 
     public void buildClones() {
+        buildClones(1);
+    }
+
+    /**
+     * Builds final clones from (clustered) clone accumulators. Each thread uses its own {@link CloneFactory}; the
+     * resulting clone set is the same as for single-threaded run. If clones were spilled, remaining windows of clones
+     * are processed without mapping and clustering, and clones are built by batches fitting the memory budget, in
+     * the order of cluster heads.
+     *
+     * @param threads number of threads
+     */
+    public void buildClones(int threads) {
+        finishInitialAssembly();
+        if (windows != null)
+            while (windows.nextWindow()) ;
         ClonesBuilder builder = new ClonesBuilder();
         progressReporter = builder;
-        builder.buildClones();
+        builder.buildClones(threads);
         this.progressReporter = null;
     }
 
@@ -291,20 +613,67 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
             globalLogger.close();
         if (deferredAlignmentsLogger != null)
             deferredAlignmentsLogger.close();
+        if (deferredAlignmentsStore != null)
+            deferredAlignmentsStore.close();
+        if (windows != null)
+            windows.close();
+        spiller.close();
     }
 
-    public CloneSet getCloneSet() {
+    /**
+     * Returns statistics of D alignment cache used while building clones, or null if clones were not built yet or
+     * caching is disabled.
+     */
+    public CacheStats getDAlignmentCacheStats() {
+        return dAlignmentCacheStats;
+    }
+
+    private EnumMap<GeneType, GeneFeature> getAlignedFeatures() {
         EnumMap<GeneType, GeneFeature> features = new EnumMap<>(GeneType.class);
         for (GeneType geneType : GeneType.values()) {
             GeneFeature gf = parameters.cloneFactoryParameters.getFeatureToAlign(geneType);
             if (gf != null)
                 features.put(geneType, gf);
         }
-        return new CloneSet(Arrays.asList(realClones), usedAlleles.values(), features, parameters.getAssemblingFeatures());
+        return features;
+    }
+
+    /**
+     * Returns assembled clone set. If clones were spilled, clones are read into memory from the temporary file, so
+     * {@link #createCloneSetWriter(OutputStream)} should be used to write large clone sets.
+     */
+    public CloneSet getCloneSet() {
+        List<Clone> clones;
+        if (windows == null)
+            clones = Arrays.asList(realClones);
+        else {
+            clones = new ArrayList<>(windows.clonesStore.size());
+            try (OutputPortCloseable<Clone> port = windows.clonesStore.createPort()) {
+                for (Clone clone : CUtils.it(port))
+                    clones.add(clone);
+            }
+        }
+        return new CloneSet(clones, usedAlleles.values(), getAlignedFeatures(), parameters.getAssemblingFeatures());
+    }
+
+    /**
+     * Creates writer of assembled clone set. If clones were spilled, clones are streamed from the temporary file
+     * without materializing the clone set.
+     *
+     * @param outputStream output stream
+     * @return clone set writer
+     */
+    public CloneSetIO.CloneSetWriter createCloneSetWriter(OutputStream outputStream) {
+        if (windows == null)
+            return new CloneSetIO.CloneSetWriter(getCloneSet(), outputStream);
+        ClonesStore store = windows.clonesStore;
+        return new CloneSetIO.CloneSetWriter(store.createPort(), store.size(), store.getTotalCount(),
+                new ArrayList<>(usedAlleles.values()), getAlignedFeatures(), parameters.getAssemblingFeatures(),
+                outputStream);
     }
 
     public OutputPortCloseable<ReadToCloneMapping> getAssembledReadsPort() {
-        return new AssembledReadsPort(globalLogger.createEventsPort(), deferredAlignmentsLogger == null ? null : deferredAlignmentsLogger.createEventsPort(), idMapping);
+        return new AssembledReadsPort(globalLogger.createEventsPort(), deferredAlignmentsLogger == null ? null : deferredAlignmentsLogger.createEventsPort(), initialIdMapping, idMapping);
     }
 
     private int numberOfBadPoints(ClonalSequence clonalSequence) {
@@ -318,7 +687,7 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
         return badPoints;
     }
 
-    private final class InitialAssembler implements VoidProcessor<VDJCAlignments> {
+    private class InitialAssembler implements VoidProcessor<VDJCAlignments> {
         private void log(AssemblerEvent event) {
             if (globalLogger != null)
                 globalLogger.newEvent(event);
@@ -326,6 +695,24 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
 
         @Override
         public void process(VDJCAlignments input) {
+            ReentrantReadWriteLock spillLock = CloneAssembler.this.spillLock;
+            if (spillLock == null) {
+                process0(input);
+                return;
+            }
+
+            spillLock.readLock().lock();
+            try {
+                process0(input);
+            } finally {
+                spillLock.readLock().unlock();
+            }
+
+            if (accumulatorsMemory.get() > memoryBudget)
+                spill();
+        }
+
+        private void process0(VDJCAlignments input) {
             totalAlignments.incrementAndGet();
             final ClonalSequence target = extractClonalSequence(input);
             if (target == null) {
@@ -346,6 +733,8 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
             } else if (badPoints > 0) {
                 // Has some number of bad points but not greater then maxBadPointsToMap
                 log(new AssemblerEvent(input.getAlignmentsIndex(), input.getReadId(), AssemblerEvent.DEFERRED));
+                if (deferredAlignmentsStore != null)
+                    deferredAlignmentsStore.write(input);
                 onAlignmentDeferred(input);
                 return;
             }
@@ -361,6 +750,7 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
                     //Executed only once for newly created clone
                     accumulator = temp;
                     accumulator.setCloneIndex(cloneIndexGenerator.getAndIncrement());
+                    accumulatorsMemory.addAndGet(accumulator.estimateSize());
                     onNewCloneCreated(accumulator);
                 }
                 //accumulator variable contains correct clone from map
@@ -370,36 +760,110 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
             //Incrementing corresponding counter
             successfullyAssembledAlignments.incrementAndGet();
             onAlignmentAddedToClone(input, accumulator);
+            accumulate(accumulator, target, input);
+        }
+
+        void accumulate(CloneAccumulator accumulator, ClonalSequence target, VDJCAlignments input) {
             accumulator.accumulate(target, input, false);
         }
     }
 
-    private final class DeferredAlignmentsFilter implements Filter<VDJCAlignments> {
-        final Iterator<AssemblerEvent> events = globalLogger.events().iterator();
+    private final class ShardedInitialAssembler extends InitialAssembler {
+        // Main accumulator -> partial accumulator (identity-based lookup, CloneAccumulator doesn't override equals)
+        final HashMap<CloneAccumulator, CloneAccumulator> shard = new HashMap<>();
+
+        private ShardedInitialAssembler() {
+            shards.add(shard);
+        }
 
         @Override
-        public boolean accept(VDJCAlignments alignment) {
-            if (!events.hasNext())
-                throw new IllegalArgumentException("This filter can not be used in concurrent " +
-                        "environment. Perform pre-filtering in a single thread.");
-            AssemblerEvent event = events.next();
-            if (alignment.getAlignmentsIndex() != event.alignmentsIndex)
-                throw new IllegalArgumentException("This filter can not be used in concurrent " +
-                        "environment. Perform pre-filtering in a single thread.");
-            if (event.cloneIndex != AssemblerEvent.DEFERRED) {
-                deferredAlignmentsLogger.newEvent(new AssemblerEvent(event.alignmentsIndex, event.readId, AssemblerEvent.DROPPED));
-                return false;
+        void accumulate(CloneAccumulator accumulator, ClonalSequence target, VDJCAlignments input) {
+            CloneAccumulator partial = shard.get(accumulator);
+            if (partial == null) {
+                shard.put(accumulator, partial = new CloneAccumulator(accumulator.getSequence(),
+                        accumulator.getNRegions()));
+                // Partial accumulators count towards memory budget until shards are merged
+                accumulatorsMemory.addAndGet(partial.estimateSize());
             }
-            return true;
+            partial.accumulateUnsynchronized(target, input, false);
         }
     }
 
-    private final class DeferredAlignmentsMapper implements VoidProcessor<VDJCAlignments> {
+    private final class DeferredAlignmentsPort implements OutputPortCloseable<VDJCAlignments>, CanReportProgress {
+        final OutputPortCloseable<VDJCAlignments> deferred;
+        final OutputPortCloseable<AssemblerEvent> events = globalLogger.createEventsPort();
+        AssemblerEvent nextEvent = events.take();
+
+        private DeferredAlignmentsPort(OutputPortCloseable<VDJCAlignments> deferred) {
+            this.deferred = deferred;
+        }
+
+        @Override
+        public VDJCAlignments take() {
+            ArrayList<AssemblerEvent> dropped = new ArrayList<>();
+            VDJCAlignments alignments = take(dropped);
+            // Logging outside of the monitor: logger may block until events with lower indices are logged by other
+            // threads, and those threads may need to take alignments from this port
+            for (AssemblerEvent event : dropped)
+                deferredAlignmentsLogger.newEvent(event);
+            return alignments;
+        }
+
+        private synchronized VDJCAlignments take(ArrayList<AssemblerEvent> dropped) {
+            VDJCAlignments alignments = deferred.take();
+            // Collecting events for all non-deferred alignments preceding current one (or all remaining events)
+            long upTo = alignments == null ? Long.MAX_VALUE : alignments.getAlignmentsIndex();
+            while (nextEvent != null && nextEvent.alignmentsIndex < upTo) {
+                if (nextEvent.cloneIndex != AssemblerEvent.DEFERRED)
+                    dropped.add(new AssemblerEvent(nextEvent.alignmentsIndex, nextEvent.readId,
+                            AssemblerEvent.DROPPED));
+                nextEvent = events.take();
+            }
+            return alignments;
+        }
+
+        @Override
+        public double getProgress() {
+            return ((CanReportProgress) deferred).getProgress();
+        }
+
+        @Override
+        public boolean isFinished() {
+            return ((CanReportProgress) deferred).isFinished();
+        }
+
+        @Override
+        public synchronized void close() {
+            deferred.close();
+            events.close();
+        }
+    }
+
+    private class DeferredAlignmentsMapper implements VoidProcessor<VDJCAlignments> {
         final AssemblerUtils.MappingThresholdCalculator thresholdCalculator = parameters.getThresholdCalculator();
 
+        void log(AssemblerEvent event) {
+            deferredAlignmentsLogger.newEvent(event);
+        }
+
+        void skip(VDJCAlignments input) {
+            log(new AssemblerEvent(input.getAlignmentsIndex(), input.getReadId(), AssemblerEvent.DROPPED));
+        }
+
+        boolean accept(ClonalSequence clonalSequence) {
+            return true;
+        }
+
         @Override
         public void process(VDJCAlignments input) {
+            if (deferredAlignmentsIndex != null && !deferredAlignmentsIndex.isDeferred(input.getAlignmentsIndex())) {
+                skip(input);
+                return;
+            }
+
             final ClonalSequence clonalSequence = extractClonalSequence(input);
+            if (!accept(clonalSequence))
+                return;
 
             int badPoints = numberOfBadPoints(clonalSequence);
             int threshold = thresholdCalculator.getThreshold(badPoints);
@@ -429,8 +893,7 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
                     }
 
             if (candidates.isEmpty()) {
-                deferredAlignmentsLogger.newEvent(new AssemblerEvent(input.getAlignmentsIndex(), input.getReadId(),
-                        AssemblerEvent.DROPPED));
+                log(new AssemblerEvent(input.getAlignmentsIndex(), input.getReadId(), AssemblerEvent.DROPPED));
                 droppedAlignments.incrementAndGet();
                 onNoCandidateFoundForDefferedAlignment(input);
                 return;
@@ -446,7 +909,7 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
 
             mappedAlignments.incrementAndGet();
             successfullyAssembledAlignments.incrementAndGet();
-            deferredAlignmentsLogger.newEvent(new AssemblerEvent(input.getAlignmentsIndex(),
+            log(new AssemblerEvent(input.getAlignmentsIndex(),
                     input.getReadId(), minMismatches == 0 ?
                     accumulator.getCloneIndex() : -4 - accumulator.getCloneIndex()));
             onDefferedAlignmentMappedToClone(input, accumulator);
@@ -454,6 +917,28 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
         }
     }
 
+    /**
+     * Maps deferred alignments belonging to the current window of spilled clones; other alignments are mapped in
+     * passes for other windows. Results are logged at the end of mapping (see {@link DeferredMappingResults}).
+     */
+    private final class WindowDeferredAlignmentsMapper extends DeferredAlignmentsMapper {
+        final ClonesWindows windows = CloneAssembler.this.windows;
+
+        @Override
+        void log(AssemblerEvent event) {
+            windows.mappingResults.put(event);
+        }
+
+        @Override
+        void skip(VDJCAlignments input) {
+        }
+
+        @Override
+        boolean accept(ClonalSequence clonalSequence) {
+            return windows.contains(clonalSequence);
+        }
+    }
+
     private static final class DeferredAlignmentsMapperGuide implements MutationGuide<NucleotideSequence> {
         final SequenceQuality quality;
         final byte badQuality;
@@ -470,43 +955,315 @@ public final class CloneAssembler implements CanReportProgress, AutoCloseable {
         }
     }
 
+    /**
+     * State of memory-bounded processing of spilled accumulators. Accumulators are k-way merged from sorted runs
+     * (combining accumulators of the same clonal sequence created again after spilling) and split into windows fitting
+     * the memory budget. Windows are cut only between clones that can't interact: at gaps between lengths of clonal
+     * sequences larger than the number of indels allowed by clustering (i.e. at any change of length if clustering
+     * allows only substitutions). Deferred alignments are mapped only to clones with the same structure of clonal
+     * sequence, so each of them is mapped in the window containing its structure.
+     * Heads of clusters of each window are spilled in clustering order and merged to build clones in the same order as
+     * in the in-memory mode.
+     */
+    private final class ClonesWindows implements AutoCloseable {
+        final OutputPortCloseable<CloneAccumulator> merged;
+        final CloneAccumulatorSpiller heads = new CloneAccumulatorSpiller(usedAlleles.keySet(),
+                CloneAccumulatorSpiller.CLUSTERING_ORDER);
+        final int maxIndels;
+        // Clustered clone index -> index of cluster head (initial indices)
+        final TIntIntHashMap clusteredTo = new TIntIntHashMap();
+        // Cluster head index -> total count of clustered clones (if counts are added on clustering)
+        final TIntLongHashMap clusteredCounts = new TIntLongHashMap();
+        // Next accumulator from merged runs and first accumulator of the next window
+        CloneAccumulator lookahead, next;
+        // Bounds of current window (null for unbounded)
+        ClonalSequence lowerBound, upperBound;
+        List<CloneAccumulator> windowHeads;
+        boolean first = true, loaded = false, finished = false;
+        volatile DeferredMappingResults mappingResults;
+        ClonesStore clonesStore;
+
+        ClonesWindows(OutputPortCloseable<CloneAccumulator> merged) {
+            this.merged = merged;
+            TreeSearchParameters searchParameters = parameters.isClusteringEnabled() ?
+                    parameters.getCloneClusteringParameters().getSearchParameters() : null;
+            this.maxIndels = searchParameters == null ? 0 :
+                    Math.max(searchParameters.getMaxInsertions(), searchParameters.getMaxDeletions());
+            this.lookahead = merged.take();
+            this.next = takeCombined();
+        }
+
+        CloneAccumulator takeCombined() {
+            CloneAccumulator accumulator = lookahead;
+            if (accumulator == null)
+                return null;
+            while ((lookahead = merged.take()) != null &&
+                    CloneAccumulatorSpiller.SEQUENCE_COMPARATOR.compare(accumulator, lookahead) == 0) {
+                initialIdMapping.put(lookahead.getCloneIndex(), accumulator.getCloneIndex());
+                accumulator.merge(lookahead);
+                onSpilledCloneMerged(accumulator, lookahead);
+            }
+            return accumulator;
+        }
+
+        boolean canSplit(CloneAccumulator previous, CloneAccumulator next) {
+            // Accumulators are sorted by length of concatenated sequence first; clones of equal length may be clustered
+            // even if their parts differ in length (substitutions may move part boundaries within homopolymers)
+            return next.getSequence().getConcatenated().size() - previous.getSequence().getConcatenated().size()
+                    > maxIndels;
+        }
+
+        boolean contains(ClonalSequence sequence) {
+            return (lowerBound == null || CloneAccumulatorSpiller.compareStructure(sequence, lowerBound) >= 0)
+                    && (upperBound == null || CloneAccumulatorSpiller.compareStructure(sequence, upperBound) < 0);
+        }
+
+        boolean nextWindow() {
+            finishWindow();
+            if (next == null) {
+                if (!finished) {
+                    finished = true;
+                    merged.close();
+                    spiller.close();
+                }
+                return false;
+            }
+
+            lowerBound = first ? null : next.getSequence();
+            first = false;
+            long size = 0;
+            CloneAccumulator previous;
+            do {
+                clones.put(next.getSequence(), next);
+                size += next.estimateSize();
+                previous = next;
+                next = takeCombined();
+            } while (next != null && (size < memoryBudget || !canSplit(previous, next)));
+            upperBound = next == null ? null : next.getSequence();
+            loaded = true;
+
+            if (mappingResults != null)
+                createMappingTree();
+            return true;
+        }
+
+        void finishWindow() {
+            if (!loaded)
+                return;
+            loaded = false;
+            mappingTree = null;
+            List<CloneAccumulator> windowHeads = this.windowHeads != null ?
+                    this.windowHeads : new ArrayList<>(clones.values());
+            this.windowHeads = null;
+            Collections.sort(windowHeads, CloneAccumulatorSpiller.CLUSTERING_ORDER);
+            heads.spill(windowHeads);
+            clones.clear();
+        }
+
+        void cluster(int threads) {
+            if (!loaded)
+                throw new IllegalStateException("No window of clones.");
+            if (windowHeads != null)
+                throw new IllegalStateException("Already clustered.");
+            List<Cluster<CloneAccumulator>> clusters = performClustering(clones.values(), threads);
+            List<CloneAccumulator> windowHeads = new ArrayList<>(clusters.size());
+            for (Cluster<CloneAccumulator> cluster : clusters) {
+                final CloneAccumulator head = cluster.getHead();
+                cluster.processAllChildren(new TObjectProcedure<Cluster<CloneAccumulator>>() {
+                    @Override
+                    public boolean execute(Cluster<CloneAccumulator> object) {
+                        onClustered(head, object.getHead());
+                        // Counts are added when clones are built, to keep clustering order of heads
+                        if (parameters.isAddReadsCountOnClustering())
+                            clusteredCounts.adjustOrPutValue(head.getCloneIndex(), object.getHead().count,
+                                    object.getHead().count);
+                        clusteredTo.put(object.getHead().getCloneIndex(), head.getCloneIndex());
+                        return true;
+                    }
+                });
+                windowHeads.add(head);
+            }
+            this.windowHeads = windowHeads;
+        }
+
+        @Override
+        public void close() {
+            merged.close();
+            heads.close();
+            if (mappingResults != null)
+                mappingResults.close();
+            if (clonesStore != null)
+                clonesStore.close();
+        }
+    }
+
     private final class ClonesBuilder implements CanReportProgress {
         final int sourceSize;
-        volatile int progress;
+        final AtomicInteger progress = new AtomicInteger();
 
         private ClonesBuilder() {
-            this.sourceSize = clusteredClonesAccumulators != null ? clusteredClonesAccumulators.size() : clones.size();
+            if (windows != null)
+                this.sourceSize = (int) windows.heads.size();
+            else
+                this.sourceSize = clusteredClonesAccumulators != null ? clusteredClonesAccumulators.size() : clones.size();
         }
 
         @Override
         public double getProgress() {
-            return (1.0 * progress) / sourceSize;
+            return (1.0 * progress.get()) / sourceSize;
         }
 
         @Override
         public boolean isFinished() {
-            return progress == sourceSize;
+            return progress.get() == sourceSize;
         }
 
-        void buildClones() {
-            CloneFactory cloneFactory =
+        void buildClones(int threads) {
+            final CloneFactory cloneFactory =
                     new CloneFactory(parameters.getCloneFactoryParameters(),
                             parameters.getAssemblingFeatures(), usedAlleles);
-            Collection<CloneAccumulator> source;
+            if (windows != null)
+                buildSpilledClones(cloneFactory, threads);
+            else
+                buildClones(cloneFactory, threads);
+            dAlignmentCacheStats = cloneFactory.dAligner.getCacheStats();
+        }
+
+        private void buildClones(CloneFactory cloneFactory, int threads) {
+            final List<CloneAccumulator> source;
             if (clusteredClonesAccumulators != null)
                 source = clusteredClonesAccumulators;
             else
-                source = clones.values();
+                source = new ArrayList<>(clones.values());
             realClones = new Clone[source.size()];
-            int i = 0;
-            Iterator<CloneAccumulator> iterator = source.iterator();
-            while (iterator.hasNext()) {
-                CloneAccumulator accumulator = iterator.next();
-                int cloneIndex = accumulator.getCloneIndex();
-                assert realClones[cloneIndex] == null;
-                realClones[cloneIndex] = cloneFactory.create(cloneIndex, accumulator);
-                this.progress = ++i;
+            threads = Math.min(threads, source.size());
+            ExecutorService executor = threads <= 1 ? null : Executors.newFixedThreadPool(threads);
+            try {
+                build(createFactories(cloneFactory, threads), executor, source, realClones, 0);
+            } finally {
+                if (executor != null)
+                    executor.shutdownNow();
+            }
+        }
+
+        /**
+         * Builds clones from merged heads of clusters of all windows, by batches fitting the memory budget. Clones are
+         * written to temporary file.
+         */
+        private void buildSpilledClones(CloneFactory cloneFactory, int threads) {
+            final ClonesWindows windows = CloneAssembler.this.windows;
+            final ClonesStore store = windows.clonesStore = new ClonesStore(new ArrayList<>(usedAlleles.values()),
+                    new HasFeatureToAlign() {
+                        @Override
+                        public GeneFeature getFeatureToAlign(GeneType geneType) {
+                            return parameters.cloneFactoryParameters.getFeatureToAlign(geneType);
+                        }
+                    });
+            idMapping = new TIntIntHashMap(sourceSize + windows.clusteredTo.size());
+            threads = Math.min(threads, sourceSize);
+            List<CloneFactory> factories = createFactories(cloneFactory, threads);
+            ExecutorService executor = threads <= 1 ? null : Executors.newFixedThreadPool(threads);
+            try (OutputPortCloseable<CloneAccumulator> heads =
+                         windows.heads.merge(Collections.<CloneAccumulator>emptyList())) {
+                List<CloneAccumulator> batch = new ArrayList<>();
+                long batchSize = 0;
+                int cloneIndex = 0;
+                CloneAccumulator head;
+                while ((head = heads.take()) != null) {
+                    idMapping.put(head.getCloneIndex(), cloneIndex);
+                    head.count += windows.clusteredCounts.get(head.getCloneIndex());
+                    head.setCloneIndex(cloneIndex++);
+                    batch.add(head);
+                    if ((batchSize += head.estimateSize()) >= memoryBudget) {
+                        buildBatch(factories, executor, batch, store);
+                        batch.clear();
+                        batchSize = 0;
+                    }
+                }
+                buildBatch(factories, executor, batch, store);
+            } finally {
+                if (executor != null)
+                    executor.shutdownNow();
+                windows.heads.close();
+            }
+            store.finish();
+
+            TIntIntIterator it = windows.clusteredTo.iterator();
+            while (it.hasNext()) {
+                it.advance();
+                idMapping.put(it.key(), ~idMapping.get(it.value()));
+            }
+        }
+
+        private void buildBatch(List<CloneFactory> factories, ExecutorService executor,
+                                List<CloneAccumulator> batch, ClonesStore store) {
+            if (batch.isEmpty())
+                return;
+            Clone[] clones = new Clone[batch.size()];
+            build(factories, executor, batch, clones, batch.get(0).getCloneIndex());
+            for (Clone clone : clones)
+                store.write(clone);
+        }
+
+        private List<CloneFactory> createFactories(CloneFactory cloneFactory, int threads) {
+            if (threads <= 1)
+                return Collections.singletonList(cloneFactory);
+            List<CloneFactory> factories = new ArrayList<>(threads);
+            for (int t = 0; t < threads; ++t)
+                factories.add(new CloneFactory(cloneFactory));
+            return factories;
+        }
+
+        private void build(List<CloneFactory> factories, ExecutorService executor,
+                           List<CloneAccumulator> source, Clone[] target, int offset) {
+            AtomicInteger pointer = new AtomicInteger();
+            if (executor == null) {
+                new Worker(factories.get(0), source, target, offset, pointer).run();
+                return;
+            }
+
+            List<Future<?>> futures = new ArrayList<>(factories.size());
+            for (CloneFactory factory : factories)
+                futures.add(executor.submit(new Worker(factory, source, target, offset, pointer)));
+            for (Future<?> future : futures)
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException)
+                        throw (RuntimeException) e.getCause();
+                    throw new RuntimeException(e.getCause());
+                }
+        }
+
+        private final class Worker implements Runnable {
+            final CloneFactory cloneFactory;
+            final List<CloneAccumulator> source;
+            final Clone[] target;
+            final int offset;
+            final AtomicInteger pointer;
+
+            Worker(CloneFactory cloneFactory, List<CloneAccumulator> source, Clone[] target, int offset,
+                   AtomicInteger pointer) {
+                this.cloneFactory = cloneFactory;
+                this.source = source;
+                this.target = target;
+                this.offset = offset;
+                this.pointer = pointer;
+            }
+
+            @Override
+            public void run() {
+                int i;
+                while ((i = pointer.getAndIncrement()) < source.size()) {
+                    CloneAccumulator accumulator = source.get(i);
+                    int cloneIndex = accumulator.getCloneIndex();
+                    assert target[cloneIndex - offset] == null;
+                    target[cloneIndex - offset] = cloneFactory.create(cloneIndex, accumulator);
+                    progress.incrementAndGet();
+                }
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -43,6 +43,8 @@ public interface CloneAssemblerListener {
 
     void onAlignmentAddedToClone(VDJCAlignments alignments, CloneAccumulator accumulator);
 
+    void onSpilledCloneMerged(CloneAccumulator accumulator, CloneAccumulator duplicate);
+
     /* Mapping */
 
     void onNoCandidateFoundForDeferredAlignment(VDJCAlignments alignments);
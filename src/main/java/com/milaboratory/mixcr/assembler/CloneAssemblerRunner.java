@@ -30,7 +30,6 @@ package com.milaboratory.mixcr.assembler;
 
 import cc.redberry.pipe.CUtils;
 import cc.redberry.pipe.OutputPortCloseable;
-import cc.redberry.pipe.blocks.FilteringPort;
 import com.milaboratory.mixcr.basictypes.CloneSet;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
 import com.milaboratory.util.CanReportProgress;
@@ -76,51 +75,88 @@ public class CloneAssemblerRunner implements CanReportProgressAndStage {
                     innerProgress = (CanReportProgress) alignmentsPort;
             }
             try {
-                CUtils.processAllInParallel(CUtils.buffered(alignmentsPort, 128), assembler.getInitialAssembler(), threads);
+                CUtils.processAllInParallel(CUtils.buffered(alignmentsPort, 128), assembler.getInitialAssemblerFactory(), threads);
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
         }
-        //run mapping
+        if (assembler.hasSpilledClones())
+            runWindows();
+        else {
+            //run mapping
+            if (assembler.parameters.isMappingEnabled()) {
+                synchronized (this) {
+                    stage = "Preparing for mapping of low quality reads";
+                    innerProgress = null;
+                }
+                if (assembler.beginMapping()) {
+                    mapDeferredAlignments("Mapping low quality reads");
+                    assembler.endMapping();
+                }
+            }
+            //run clustering
+            if (assembler.parameters.isClusteringEnabled()) {
+                synchronized (this) {
+                    stage = "Clustering";
+                    innerProgress = assembler;
+                }
+                assembler.runClustering(threads);
+            }
+        }
+        //build clones
+        synchronized (this) {
+            stage = "Building clones";
+            innerProgress = assembler;
+        }
+        assembler.buildClones(threads);
+        isFinished = true;
+    }
+
+    /**
+     * Memory-bounded mode: mapping and clustering are performed for each window of spilled clones.
+     */
+    private void runWindows() {
+        boolean mapping = false;
         if (assembler.parameters.isMappingEnabled()) {
             synchronized (this) {
                 stage = "Preparing for mapping of low quality reads";
                 innerProgress = null;
             }
-            if (assembler.beginMapping()) {
-                try (OutputPortCloseable<VDJCAlignments> alignmentsPort = alignmentsProvider.create()) {
-                    synchronized (this) {
-                        stage = "Mapping low quality reads";
-                        if (alignmentsPort instanceof CanReportProgress)
-                            innerProgress = (CanReportProgress) alignmentsPort;
-                    }
-                    try {
-                        CUtils.processAllInParallel(CUtils.buffered(
-                                        new FilteringPort<>(alignmentsPort,
-                                                assembler.getDeferredAlignmentsFilter()), 128),
-                                assembler.getDeferredAlignmentsMapper(), threads);
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
-                    }
+            mapping = assembler.beginMapping();
+        }
+        int window = 0;
+        while (assembler.nextClonesWindow()) {
+            ++window;
+            if (mapping)
+                mapDeferredAlignments("Mapping low quality reads (window " + window + ")");
+            if (assembler.parameters.isClusteringEnabled()) {
+                synchronized (this) {
+                    stage = "Clustering (window " + window + ")";
+                    innerProgress = assembler;
                 }
-                assembler.endMapping();
+                assembler.runClustering(threads);
             }
         }
-        //run clustering
-        if (assembler.parameters.isClusteringEnabled()) {
+        if (mapping)
+            assembler.endMapping();
+    }
+
+    private void mapDeferredAlignments(String stage) {
+        // In single-pass mode only deferred alignments (stored during initial assembly) are read
+        try (OutputPortCloseable<VDJCAlignments> alignmentsPort = assembler.isSinglePassMapping() ?
+                assembler.getDeferredAlignmentsPort() : alignmentsProvider.create()) {
             synchronized (this) {
-                stage = "Clustering";
-                innerProgress = assembler;
+                this.stage = stage;
+                if (alignmentsPort instanceof CanReportProgress)
+                    innerProgress = (CanReportProgress) alignmentsPort;
+            }
+            try {
+                CUtils.processAllInParallel(CUtils.buffered(alignmentsPort, 128),
+                        assembler.getDeferredAlignmentsMapper(), threads);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
             }
-            assembler.runClustering();
-        }
-        //build clones
-        synchronized (this) {
-            stage = "Building clones";
-            innerProgress = assembler;
         }
-        assembler.buildClones();
-        isFinished = true;
     }
 
     public CloneSet getCloneSet() {
@@ -71,6 +71,18 @@ class CloneFactory {
         this.indexOfAssemblingFeatureWithD = indexOfAssemblingFeatureWithD;
     }
 
+    /**
+     * Creates a factory for use in another thread. D aligner (and its results cache, which is thread-safe) is shared
+     * with the original factory.
+     */
+    CloneFactory(CloneFactory prototype) {
+        this.parameters = prototype.parameters;
+        this.assemblingFeatures = prototype.assemblingFeatures;
+        this.usedAlleles = prototype.usedAlleles;
+        this.dAligner = prototype.dAligner;
+        this.indexOfAssemblingFeatureWithD = prototype.indexOfAssemblingFeatureWithD;
+    }
+
     Clone create(int id, CloneAccumulator accumulator) {
         EnumMap<GeneType, VDJCHit[]> hits = new EnumMap<>(GeneType.class);
         for (GeneType geneType : GeneType.values()) {
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.assembler;
+
+import cc.redberry.pipe.OutputPortCloseable;
+import com.milaboratory.mixcr.basictypes.Clone;
+import com.milaboratory.mixcr.basictypes.HasFeatureToAlign;
+import com.milaboratory.mixcr.basictypes.IOUtil;
+import com.milaboratory.mixcr.reference.Allele;
+import com.milaboratory.mixcr.util.TempFileManager;
+import com.milaboratory.primitivio.PrimitivI;
+import com.milaboratory.primitivio.PrimitivO;
+
+import java.io.*;
+import java.util.List;
+
+/**
+ * Temporary file with clones built by memory-bounded assembly, in the order of their indices. Alleles (and sequences of
+ * their aligned features) are stored as known references.
+ */
+final class ClonesStore implements AutoCloseable {
+    final File file;
+    final PrimitivO output;
+    final List<Allele> alleles;
+    final HasFeatureToAlign featuresToAlign;
+    int size = 0;
+    long totalCount = 0;
+    boolean finished = false;
+
+    ClonesStore(List<Allele> alleles, HasFeatureToAlign featuresToAlign) {
+        this.alleles = alleles;
+        this.featuresToAlign = featuresToAlign;
+        this.file = TempFileManager.getTempFile();
+        try {
+            this.output = new PrimitivO(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+        IOUtil.putAlleleReferences(output, alleles, featuresToAlign);
+    }
+
+    void write(Clone clone) {
+        if (finished)
+            throw new IllegalStateException("Already finished.");
+        output.writeObject(clone);
+        ++size;
+        totalCount += clone.getCount();
+    }
+
+    /**
+     * Returns number of stored clones.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns sum of counts of stored clones.
+     */
+    long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * Tells this class that all clones were written.
+     */
+    void finish() {
+        if (finished)
+            return;
+        finished = true;
+        output.close();
+    }
+
+    /**
+     * Returns port with all stored clones, in the order they were written.
+     */
+    OutputPortCloseable<Clone> createPort() {
+        finish();
+        try {
+            return new StoredClonesPort(new PrimitivI(new BufferedInputStream(new FileInputStream(file), 65536)));
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Deletes underlying file.
+     */
+    @Override
+    public void close() {
+        try {
+            finish();
+        } finally {
+            file.delete();
+        }
+    }
+
+    private final class StoredClonesPort implements OutputPortCloseable<Clone> {
+        final PrimitivI input;
+        int taken = 0;
+        boolean closed = false;
+
+        private StoredClonesPort(PrimitivI input) {
+            this.input = input;
+            IOUtil.putAlleleReferences(input, alleles, featuresToAlign);
+        }
+
+        @Override
+        public synchronized Clone take() {
+            if (closed)
+                return null;
+            if (taken == size) {
+                close();
+                return null;
+            }
+            ++taken;
+            return input.readObject(Clone.class);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed)
+                return;
+            closed = true;
+            input.close();
+        }
+    }
+}
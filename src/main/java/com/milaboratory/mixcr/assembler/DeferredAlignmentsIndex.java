@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.assembler;
+
+import cc.redberry.pipe.OutputPort;
+
+/**
+ * Compact bit set of indices of alignments deferred during initial assembly (one bit per alignment). Immutable after
+ * creation, so it can be queried from any number of threads.
+ */
+final class DeferredAlignmentsIndex {
+    final long[] data;
+
+    private DeferredAlignmentsIndex(long[] data) {
+        this.data = data;
+    }
+
+    boolean isDeferred(long alignmentsIndex) {
+        int word = (int) (alignmentsIndex >>> 6);
+        return word < data.length && (data[word] & (1L << alignmentsIndex)) != 0;
+    }
+
+    /**
+     * Builds index from initial assembly events.
+     *
+     * @param events          initial assembly events
+     * @param totalAlignments total number of alignments (used to allocate the index)
+     * @return index of deferred alignments
+     */
+    static DeferredAlignmentsIndex build(OutputPort<AssemblerEvent> events, long totalAlignments) {
+        long[] data = new long[(int) ((totalAlignments + 63) >>> 6)];
+        AssemblerEvent event;
+        while ((event = events.take()) != null)
+            if (event.cloneIndex == AssemblerEvent.DEFERRED)
+                data[(int) (event.alignmentsIndex >>> 6)] |= 1L << event.alignmentsIndex;
+        return new DeferredAlignmentsIndex(data);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.assembler;
+
+import cc.redberry.pipe.OutputPortCloseable;
+import com.milaboratory.mixcr.basictypes.HasFeatureToAlign;
+import com.milaboratory.mixcr.basictypes.IOUtil;
+import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.reference.Allele;
+import com.milaboratory.mixcr.reference.AlleleId;
+import com.milaboratory.mixcr.reference.AlleleResolver;
+import com.milaboratory.mixcr.util.TempFileManager;
+import com.milaboratory.primitivio.PrimitivI;
+import com.milaboratory.primitivio.PrimitivO;
+import com.milaboratory.util.CanReportProgress;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Temporary side file with deferred alignments. Filled during initial assembly, so mapping stage reads only deferred
+ * alignments instead of the whole input. Alleles (and sequences of their aligned features) are stored as known
+ * references, so records are as compact as in .vdjca file. Alignments are serialized by a dedicated writer thread;
+ * assembler threads only put them into a bounded queue.
+ */
+final class DeferredAlignmentsStore implements AutoCloseable {
+    static final int QUEUE_CAPACITY = 4096;
+    // End of input marker
+    static final Object END = new Object();
+    final File file;
+    final PrimitivO output;
+    final Map<AlleleId, Allele> alleles;
+    final HasFeatureToAlign featuresToAlign;
+    final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    final Thread writerThread;
+    volatile Throwable writerError;
+    volatile boolean finished = false;
+    // Number of stored alignments, modified only by the writer thread
+    volatile long count = 0;
+
+    DeferredAlignmentsStore(Map<AlleleId, Allele> alleles, HasFeatureToAlign featuresToAlign) {
+        this.alleles = alleles;
+        this.featuresToAlign = featuresToAlign;
+        this.file = TempFileManager.getTempFile();
+        try {
+            this.output = new PrimitivO(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+        IOUtil.writeAlleleReferences(output, new ArrayList<>(alleles.values()), featuresToAlign);
+        this.writerThread = new Thread(new Writer(), "DeferredAlignmentsWriter");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    void write(VDJCAlignments alignments) {
+        if (finished)
+            throw new IllegalStateException("Already finished.");
+        put(alignments);
+    }
+
+    private void put(Object object) {
+        try {
+            // Waiting with timeout, not to block forever if writer thread failed
+            while (!queue.offer(object, 100, TimeUnit.MILLISECONDS))
+                checkWriterError();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void checkWriterError() {
+        if (writerError != null)
+            throw new RuntimeException("Error in deferred alignments writer thread.", writerError);
+    }
+
+    /**
+     * Tells this class that all deferred alignments were written.
+     */
+    synchronized void finish() {
+        if (finished)
+            return;
+        finished = true;
+        put(END);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        checkWriterError();
+    }
+
+    /**
+     * Returns port with all stored alignments, in the order they were written. Original alignment indices are
+     * restored.
+     */
+    OutputPortCloseable<VDJCAlignments> createPort() {
+        finish();
+        try {
+            return new StoredAlignmentsPort(new PrimitivI(new BufferedInputStream(new FileInputStream(file), 65536)));
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Deletes underlying file.
+     */
+    @Override
+    public void close() {
+        try {
+            finish();
+        } finally {
+            file.delete();
+        }
+    }
+
+    private final class Writer implements Runnable {
+        @Override
+        public void run() {
+            try {
+                Object object;
+                while ((object = queue.take()) != END) {
+                    VDJCAlignments alignments = (VDJCAlignments) object;
+                    output.writeObject(alignments);
+                    output.writeLong(alignments.getAlignmentsIndex());
+                    ++count;
+                }
+                output.writeObject(null);
+                output.close();
+            } catch (Throwable e) {
+                writerError = e;
+                output.close();
+            }
+        }
+    }
+
+    private final class StoredAlignmentsPort implements OutputPortCloseable<VDJCAlignments>, CanReportProgress {
+        final PrimitivI input;
+        volatile long taken = 0;
+        boolean closed = false;
+
+        private StoredAlignmentsPort(PrimitivI input) {
+            this.input = input;
+            IOUtil.readAlleleReferences(input, new AlleleResolver() {
+                @Override
+                public Allele getAllele(AlleleId id) {
+                    return alleles.get(id);
+                }
+            }, featuresToAlign);
+        }
+
+        @Override
+        public synchronized VDJCAlignments take() {
+            if (closed)
+                return null;
+            VDJCAlignments alignments = input.readObject(VDJCAlignments.class);
+            if (alignments == null) {
+                close();
+                return null;
+            }
+            alignments.setAlignmentsIndex(input.readLong());
+            ++taken;
+            return alignments;
+        }
+
+        @Override
+        public double getProgress() {
+            return count == 0 ? 1.0 : (1.0 * taken) / count;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return closed;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed)
+                return;
+            closed = true;
+            input.close();
+        }
+    }
+}
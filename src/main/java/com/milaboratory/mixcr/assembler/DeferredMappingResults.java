@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.assembler;
+
+import cc.redberry.pipe.OutputPort;
+import com.milaboratory.mixcr.util.TempFileManager;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Results of mapping of deferred alignments performed in several passes (one pass per window of clones in
+ * memory-bounded assembly). Passes process alignments in arbitrary order, so results are stored in a temporary file
+ * (four bytes per alignment, at the position given by alignment index) and are logged in the order of alignment
+ * indices after the last pass.
+ */
+final class DeferredMappingResults implements AutoCloseable {
+    final File file;
+    final RandomAccessFile randomAccessFile;
+    final FileChannel channel;
+
+    DeferredMappingResults(long totalAlignments) {
+        this.file = TempFileManager.getTempFile();
+        try {
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            // Unwritten positions are read as zeros (no result)
+            randomAccessFile.setLength(4 * totalAlignments);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.channel = randomAccessFile.getChannel();
+    }
+
+    /**
+     * Stores result of mapping. Can be invoked from several threads concurrently.
+     *
+     * @param event mapping event
+     */
+    void put(AssemblerEvent event) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        // Inverted, so zero means absence of result (-1 is never used as clone index in events)
+        buffer.putInt(~event.cloneIndex);
+        buffer.flip();
+        try {
+            long position = 4 * event.alignmentsIndex;
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Logs mapping events for all alignments, in the order of initial assembly events: stored results for deferred
+     * alignments, {@link AssemblerEvent#DROPPED} for all other alignments (and deferred alignments without result).
+     *
+     * @param initialEvents events of initial assembly
+     * @param logger        mapping events logger
+     */
+    void log(OutputPort<AssemblerEvent> initialEvents, AssemblerEventLogger logger) {
+        try {
+            channel.close();
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                    65536))) {
+                AssemblerEvent event;
+                while ((event = initialEvents.take()) != null) {
+                    int result = input.readInt();
+                    logger.newEvent(new AssemblerEvent(event.alignmentsIndex, event.readId,
+                            event.cloneIndex == AssemblerEvent.DEFERRED && result != 0 ?
+                                    ~result : AssemblerEvent.DROPPED));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Deletes underlying file.
+     */
+    @Override
+    public void close() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            file.delete();
+        }
+    }
+}
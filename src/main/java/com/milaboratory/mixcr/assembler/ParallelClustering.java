@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.assembler;
+
+import com.milaboratory.core.clustering.Cluster;
+import com.milaboratory.core.clustering.Clustering;
+import com.milaboratory.core.clustering.ClusteringStrategy;
+import com.milaboratory.core.clustering.SequenceExtractor;
+import com.milaboratory.core.sequence.Sequence;
+import com.milaboratory.core.tree.NeighborhoodIterator;
+import com.milaboratory.core.tree.SequenceTreeMap;
+import com.milaboratory.core.tree.TreeSearchParameters;
+import com.milaboratory.util.CanReportProgress;
+import com.milaboratory.util.Factory;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multi-threaded version of {@link Clustering} producing exactly the same clusters (in the same order).
+ *
+ * <p>Objects are first split into connected components of the neighborhood graph (two objects are connected if one of
+ * them can be found from the other with the search parameters of the strategy). Clustering never crosses boundaries
+ * of these components, so each component is clustered independently (in parallel) with the serial algorithm, and
+ * resulting clusters are then ordered by their heads in the same way as in serial clustering.</p>
+ *
+ * @param <T> type of objects
+ * @param <S> type of sequences
+ */
+public final class ParallelClustering<T, S extends Sequence<S>> implements CanReportProgress {
+    final Collection<T> inputObjects;
+    final SequenceExtractor<T, S> sequenceExtractor;
+    final ClusteringStrategy<T, S> strategy;
+    final int threads;
+    final AtomicInteger progress = new AtomicInteger();
+    volatile boolean finished = false;
+
+    public ParallelClustering(Collection<T> inputObjects, SequenceExtractor<T, S> sequenceExtractor,
+                              ClusteringStrategy<T, S> strategy, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException();
+        this.inputObjects = inputObjects;
+        this.sequenceExtractor = sequenceExtractor;
+        this.strategy = strategy;
+        this.threads = threads;
+    }
+
+    @Override
+    public double getProgress() {
+        if (finished)
+            return 1.0;
+        // Each object is processed twice: at neighbors search and at clustering stages
+        return inputObjects.isEmpty() ? 0.0 : progress.get() / (2.0 * inputObjects.size());
+    }
+
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public List<Cluster<T>> performClustering() {
+        try {
+            if (inputObjects.isEmpty())
+                return new ArrayList<>();
+
+            // The same order as in serial clustering (Collections.sort is stable)
+            final List<T> objects = new ArrayList<>(inputObjects);
+            Collections.sort(objects, new Comparator<T>() {
+                @Override
+                public int compare(T o1, T o2) {
+                    int c = strategy.compare(o2, o1);
+                    return c != 0 ? c : sequenceExtractor.getSequence(o2).compareTo(sequenceExtractor.getSequence(o1));
+                }
+            });
+            final int size = objects.size();
+
+            final SequenceTreeMap<S, TIntArrayList> tree =
+                    new SequenceTreeMap<>(sequenceExtractor.getSequence(objects.get(0)).getAlphabet());
+            Factory<TIntArrayList> listFactory = new Factory<TIntArrayList>() {
+                @Override
+                public TIntArrayList create() {
+                    return new TIntArrayList(1);
+                }
+            };
+            for (int i = 0; i < size; ++i)
+                tree.createIfAbsent(sequenceExtractor.getSequence(objects.get(i)), listFactory).add(i);
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                // Searching neighbors (tree is not modified at this stage, so it can be accessed concurrently)
+                final TreeSearchParameters searchParameters = strategy.getSearchParameters();
+                final AtomicInteger pointer = new AtomicInteger();
+                List<Future<TIntArrayList>> edgesFutures = new ArrayList<>(threads);
+                for (int t = 0; t < threads; ++t)
+                    edgesFutures.add(executor.submit(new Callable<TIntArrayList>() {
+                        @Override
+                        public TIntArrayList call() {
+                            TIntArrayList edges = new TIntArrayList();
+                            int i;
+                            while ((i = pointer.getAndIncrement()) < size) {
+                                NeighborhoodIterator<S, TIntArrayList> iterator = tree.getNeighborhoodIterator(
+                                        sequenceExtractor.getSequence(objects.get(i)), searchParameters, null);
+                                TIntArrayList neighbors;
+                                while ((neighbors = iterator.next()) != null)
+                                    for (int k = 0; k < neighbors.size(); ++k)
+                                        if (neighbors.get(k) != i) {
+                                            edges.add(i);
+                                            edges.add(neighbors.get(k));
+                                        }
+                                progress.incrementAndGet();
+                            }
+                            return edges;
+                        }
+                    }));
+
+                // Connected components (union-find)
+                final int[] parents = new int[size];
+                for (int i = 0; i < size; ++i)
+                    parents[i] = i;
+                for (Future<TIntArrayList> future : edgesFutures) {
+                    TIntArrayList edges = get(future);
+                    for (int k = 0; k < edges.size(); k += 2)
+                        union(parents, edges.get(k), edges.get(k + 1));
+                }
+
+                Map<Integer, TIntArrayList> componentsMap = new HashMap<>();
+                for (int i = 0; i < size; ++i) {
+                    int root = find(parents, i);
+                    TIntArrayList component = componentsMap.get(root);
+                    if (component == null)
+                        componentsMap.put(root, component = new TIntArrayList(1));
+                    component.add(i);
+                }
+
+                // Singletons form trivial clusters
+                final Cluster<T>[] clustersByHead = new Cluster[size];
+                final List<TIntArrayList> components = new ArrayList<>();
+                for (TIntArrayList component : componentsMap.values())
+                    if (component.size() == 1) {
+                        clustersByHead[component.get(0)] = new Cluster<>(objects.get(component.get(0)));
+                        progress.incrementAndGet();
+                    } else
+                        components.add(component);
+                componentsMap = null;
+
+                // Largest components first, for better load balancing
+                Collections.sort(components, new Comparator<TIntArrayList>() {
+                    @Override
+                    public int compare(TIntArrayList o1, TIntArrayList o2) {
+                        return Integer.compare(o2.size(), o1.size());
+                    }
+                });
+
+                // Clustering of components
+                pointer.set(0);
+                List<Future<?>> clusteringFutures = new ArrayList<>(threads);
+                for (int t = 0; t < threads; ++t)
+                    clusteringFutures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            int c;
+                            while ((c = pointer.getAndIncrement()) < components.size()) {
+                                TIntArrayList component = components.get(c);
+                                // Indices in component are sorted, so objects are in the same order as in
+                                // serial clustering
+                                List<T> componentObjects = new ArrayList<>(component.size());
+                                for (int k = 0; k < component.size(); ++k)
+                                    componentObjects.add(objects.get(component.get(k)));
+                                List<Cluster<T>> clusters = new Clustering<>(componentObjects,
+                                        sequenceExtractor, strategy).performClustering();
+                                // Heads of clusters come in the same order as objects in component
+                                int k = 0;
+                                for (Cluster<T> cluster : clusters) {
+                                    while (componentObjects.get(k) != cluster.getHead())
+                                        ++k;
+                                    clustersByHead[component.get(k)] = cluster;
+                                }
+                                progress.addAndGet(component.size());
+                            }
+                        }
+                    }));
+                for (Future<?> future : clusteringFutures)
+                    get(future);
+
+                List<Cluster<T>> result = new ArrayList<>();
+                for (Cluster<T> cluster : clustersByHead)
+                    if (cluster != null)
+                        result.add(cluster);
+                return result;
+            } finally {
+                executor.shutdownNow();
+            }
+        } finally {
+            finished = true;
+        }
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i)
+            i = parents[i] = parents[parents[i]];
+        return i;
+    }
+
+    private static void union(int[] parents, int i, int j) {
+        i = find(parents, i);
+        j = find(parents, j);
+        if (i < j)
+            parents[j] = i;
+        else if (j < i)
+            parents[i] = j;
+    }
+
+    private static <V> V get(Future<V> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
@@ -41,6 +41,8 @@ public final class Clone extends VDJCObject {
     final long count;
     final int id;
     CloneSet parent = null;
+    // Total count of clones in the clone set, for clones read without materializing parent clone set
+    long totalCount = -1;
 
     public Clone(NSequenceWithQuality[] targets, EnumMap<GeneType, VDJCHit[]> hits, GeneFeature[] assemblingFeatures, long count, int id) {
         super(hits, targets);
@@ -55,10 +57,16 @@ public final class Clone extends VDJCObject {
         this.parent = set;
     }
 
+    void setTotalCount(long totalCount) {
+        this.totalCount = totalCount;
+    }
+
     public double getFraction() {
-        if (parent == null)
+        if (parent != null)
+            return 1.0 * count / parent.getTotalCount();
+        if (totalCount == -1)
             throw new NullPointerException("Parent not set yet.");
-        return 1.0 * count / parent.getTotalCount();
+        return 1.0 * count / totalCount;
     }
 
     public GeneFeature[] getAssemblingFeatures() {
@@ -28,12 +28,19 @@
  */
 package com.milaboratory.mixcr.basictypes;
 
+import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPort;
+import cc.redberry.pipe.OutputPortCloseable;
 import com.milaboratory.mixcr.reference.Allele;
 import com.milaboratory.mixcr.reference.AlleleResolver;
 import com.milaboratory.mixcr.reference.GeneFeature;
 import com.milaboratory.mixcr.reference.GeneType;
+import com.milaboratory.mixcr.util.BlockCompressedInputStream;
+import com.milaboratory.mixcr.util.BlockCompressedOutputStream;
 import com.milaboratory.primitivio.PrimitivI;
 import com.milaboratory.primitivio.PrimitivO;
+import com.milaboratory.primitivio.SerializersManager;
+import com.milaboratory.util.CanReportProgress;
 import com.milaboratory.util.CanReportProgressAndStage;
 
 import java.io.*;
@@ -43,22 +50,81 @@ import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.List;
 
+/**
+ * Reads and writes clone sets. Current format ({@link #MAGIC}):
+ *
+ * <pre>
+ * magic, byte flags
+ * header:  assembling features, aligned features, allele references, long total count, int number of clones
+ * clones:  each clone is serialized independently using {@link VDJCAlignmentsCodec} (alleles as indices in the list of
+ *          allele references from the header)
+ * index:   long offset of each clone (only for not compressed files)
+ * trailer: long offset of index (only for not compressed files)
+ * </pre>
+ *
+ * If {@link #FLAG_COMPRESSED} is set, everything after flags is written through {@link BlockCompressedOutputStream}.
+ * Not compressed files can be read lazily using {@link MappedCloneSet}.
+ *
+ * <p>Previous version: {@link #MAGIC_V1} - plain stream of clones.</p>
+ */
 public final class CloneSetIO {
-    static final String MAGIC = "MiXCR.CLNS.V01";
+    static final String MAGIC_V1 = "MiXCR.CLNS.V01";
+    static final String MAGIC = "MiXCR.CLNS.V02";
     static final int MAGIC_LENGTH = 14;
+    static final byte[] MAGIC_V1_BYTES = MAGIC_V1.getBytes(StandardCharsets.US_ASCII);
     static final byte[] MAGIC_BYTES = MAGIC.getBytes(StandardCharsets.US_ASCII);
+    static final int FLAG_COMPRESSED = 1;
 
     public static class CloneSetWriter implements CanReportProgressAndStage {
         final String stage = "Writing clones";
-        final PrimitivO output;
-        final CloneSet cloneSet;
+        final OutputStream outputStream;
+        final OutputPort<Clone> clones;
         final int size;
+        final long totalCount;
+        final List<Allele> usedAlleles;
+        final EnumMap<GeneType, GeneFeature> alignedFeatures;
+        final GeneFeature[] assemblingFeatures;
+        int compressionThreads = 0;
         volatile int current;
 
         public CloneSetWriter(CloneSet cloneSet, OutputStream outputStream) {
-            this.output = new PrimitivO(outputStream);
-            this.cloneSet = cloneSet;
-            this.size = cloneSet.size();
+            this(CUtils.asOutputPort(cloneSet.getClones()), cloneSet.size(), cloneSet.getTotalCount(),
+                    cloneSet.getUsedAlleles(), cloneSet.alignedFeatures, cloneSet.getAssemblingFeatures(),
+                    outputStream);
+        }
+
+        /**
+         * Creates writer of clones taken one by one from the port, so the clone set is never materialized in memory.
+         *
+         * @param clones             clones, in the order of their indices
+         * @param size               number of clones in the port
+         * @param totalCount         sum of counts of all clones
+         * @param usedAlleles        alleles used in clones
+         * @param alignedFeatures    features aligned in clones
+         * @param assemblingFeatures assembling features
+         * @param outputStream       output stream
+         */
+        public CloneSetWriter(OutputPort<Clone> clones, int size, long totalCount, List<Allele> usedAlleles,
+                              EnumMap<GeneType, GeneFeature> alignedFeatures, GeneFeature[] assemblingFeatures,
+                              OutputStream outputStream) {
+            this.outputStream = outputStream;
+            this.clones = clones;
+            this.size = size;
+            this.totalCount = totalCount;
+            this.usedAlleles = usedAlleles;
+            this.alignedFeatures = alignedFeatures;
+            this.assemblingFeatures = assemblingFeatures;
+        }
+
+        /**
+         * Enables compression. Must be invoked before {@link #write()}.
+         *
+         * @param threads number of background compression threads
+         */
+        public void enableCompression(int threads) {
+            if (threads <= 0)
+                throw new IllegalArgumentException();
+            this.compressionThreads = threads;
         }
 
         @Override
@@ -77,16 +143,59 @@ public final class CloneSetIO {
         }
 
         public void write() {
-            output.write(MAGIC_BYTES);
-            output.writeObject(cloneSet.getAssemblingFeatures());
-            IO.writeGT2GFMap(output, cloneSet.alignedFeatures);
-            IOUtil.writeAlleleReferences(output, cloneSet.getUsedAlleles(), new GT2GFAdapter(cloneSet.alignedFeatures));
+            try {
+                outputStream.write(MAGIC_BYTES);
+                outputStream.write(compressionThreads == 0 ? 0 : FLAG_COMPRESSED);
+                long position = MAGIC_LENGTH + 1;
 
-            output.writeInt(cloneSet.getClones().size());
+                BlockCompressedOutputStream compressedStream = null;
+                OutputStream output = outputStream;
+                if (compressionThreads != 0)
+                    output = compressedStream = new BlockCompressedOutputStream(outputStream, compressionThreads);
 
-            for (Clone clone : cloneSet) {
-                output.writeObject(clone);
-                ++current;
+                HasFeatureToAlign featuresToAlign = new GT2GFAdapter(alignedFeatures);
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                PrimitivO headerOutput = new PrimitivO(buffer);
+                headerOutput.writeObject(assemblingFeatures);
+                IO.writeGT2GFMap(headerOutput, alignedFeatures);
+                IOUtil.writeAlleleReferences(headerOutput, usedAlleles, featuresToAlign);
+                headerOutput.writeLong(totalCount);
+                headerOutput.writeInt(size);
+                position += buffer.size();
+                buffer.writeTo(output);
+                buffer.reset();
+
+                long[] offsets = new long[size];
+                VDJCAlignmentsCodec codec = new VDJCAlignmentsCodec(usedAlleles, featuresToAlign);
+                SerializersManager serializersManager = new SerializersManager();
+                int i = 0;
+                Clone clone;
+                while ((clone = clones.take()) != null) {
+                    if (i == size)
+                        throw new IllegalStateException("Too many clones.");
+                    offsets[i++] = position;
+                    // New output for each clone (primitivio retains references between objects), so each clone can
+                    // be decoded independently
+                    codec.writeClone(new PrimitivO(new DataOutputStream(buffer), serializersManager), clone);
+                    position += buffer.size();
+                    buffer.writeTo(output);
+                    buffer.reset();
+                    ++current;
+                }
+                if (i != size)
+                    throw new IllegalStateException("Too few clones.");
+
+                if (compressedStream != null)
+                    compressedStream.finish();
+                else {
+                    DataOutputStream indexOutput = new DataOutputStream(outputStream);
+                    for (long offset : offsets)
+                        indexOutput.writeLong(offset);
+                    indexOutput.writeLong(position);
+                    indexOutput.flush();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
         }
     }
@@ -104,18 +213,7 @@ public final class CloneSetIO {
     }
 
     public static void write(CloneSet cloneSet, OutputStream outputStream) {
-        PrimitivO output = new PrimitivO(outputStream);
-
-        // Writing magic bytes
-        output.write(MAGIC_BYTES);
-        output.writeObject(cloneSet.getAssemblingFeatures());
-        IO.writeGT2GFMap(output, cloneSet.alignedFeatures);
-        IOUtil.writeAlleleReferences(output, cloneSet.getUsedAlleles(), new GT2GFAdapter(cloneSet.alignedFeatures));
-
-        output.writeInt(cloneSet.getClones().size());
-
-        for (Clone clone : cloneSet)
-            output.writeObject(clone);
+        new CloneSetWriter(cloneSet, outputStream).write();
     }
 
     public static CloneSet read(String fileName, AlleleResolver alleleResolver) throws IOException {
@@ -131,12 +229,47 @@ public final class CloneSetIO {
     }
 
     public static CloneSet read(InputStream inputStream, AlleleResolver alleleResolver) {
+        ClonesPort port = createPort(inputStream, alleleResolver);
+        if (port.cloneSet != null)
+            return port.cloneSet;
+
+        List<Clone> clones = new ArrayList<>(port.size());
+        Clone clone;
+        while ((clone = port.take()) != null)
+            clones.add(clone);
+
+        Header header = port.header;
+        return new CloneSet(clones, header.alleles, header.alignedFeatures, header.assemblingFeatures);
+    }
+
+    public static ClonesPort createPort(String fileName, AlleleResolver alleleResolver) throws IOException {
+        return createPort(new File(fileName), alleleResolver);
+    }
+
+    public static ClonesPort createPort(File file, AlleleResolver alleleResolver) throws IOException {
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(file), 65536);
+        try {
+            return createPort(inputStream, alleleResolver);
+        } catch (RuntimeException e) {
+            inputStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates port that reads clones one by one without materializing the whole clone set (clone sets in the old format
+     * are read into memory). Closing the port closes the input stream.
+     */
+    public static ClonesPort createPort(InputStream inputStream, AlleleResolver alleleResolver) {
         PrimitivI input = new PrimitivI(inputStream);
 
         byte[] magicBytes = new byte[MAGIC_LENGTH];
         input.readFully(magicBytes);
 
-        if (!Arrays.equals(magicBytes, MAGIC_BYTES))
+        if (Arrays.equals(magicBytes, MAGIC_BYTES))
+            return new ClonesPort(inputStream, (input.readByte() & FLAG_COMPRESSED) != 0, alleleResolver);
+
+        if (!Arrays.equals(magicBytes, MAGIC_V1_BYTES))
             throw new RuntimeException("Wrong file format.");
 
         GeneFeature[] assemblingFeatures = input.readObject(GeneFeature[].class);
@@ -147,7 +280,173 @@ public final class CloneSetIO {
         for (int i = 0; i < count; i++)
             clones.add(input.readObject(Clone.class));
 
-        return new CloneSet(clones, alleles, alignedFeatures, assemblingFeatures);
+        return new ClonesPort(inputStream, new CloneSet(clones, alleles, alignedFeatures, assemblingFeatures));
+    }
+
+    /**
+     * Returns whether the file can be opened with {@link #openMapped(File, AlleleResolver)}: the file must be a not
+     * compressed clone set in the current format.
+     */
+    public static boolean isMappable(File file) throws IOException {
+        byte[] header = new byte[MAGIC_LENGTH + 1];
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            input.readFully(header);
+        } catch (EOFException e) {
+            return false;
+        }
+        return Arrays.equals(Arrays.copyOf(header, MAGIC_LENGTH), MAGIC_BYTES) &&
+                (header[MAGIC_LENGTH] & FLAG_COMPRESSED) == 0;
+    }
+
+    /**
+     * Opens not compressed clone set file for lazy reading of clones.
+     */
+    public static MappedCloneSet openMapped(File file, AlleleResolver alleleResolver) throws IOException {
+        return new MappedCloneSet(file, alleleResolver);
+    }
+
+    // Reading end of compressed data (also stops decompression thread)
+    private static void readEnd(BlockCompressedInputStream compressedStream) {
+        try {
+            if (compressedStream.read() != -1)
+                throw new RuntimeException("Wrong file format.");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Port of clones read from a stream (see {@link #createPort(InputStream, AlleleResolver)}). Fraction of returned
+     * clones is calculated using total count from the file header.
+     */
+    public static final class ClonesPort implements OutputPortCloseable<Clone>, CanReportProgress {
+        final InputStream inputStream;
+        final Header header;
+        // Not null for new format
+        final DataInputStream input;
+        final BlockCompressedInputStream compressedStream;
+        final SerializersManager serializersManager = new SerializersManager();
+        // Not null for the old format
+        final CloneSet cloneSet;
+        volatile int current = 0;
+        boolean closed = false;
+
+        ClonesPort(InputStream inputStream, boolean compressed, AlleleResolver alleleResolver) {
+            this.inputStream = inputStream;
+            this.compressedStream = compressed ? new BlockCompressedInputStream(inputStream) : null;
+            this.input = new DataInputStream(compressed ? compressedStream : inputStream);
+            this.header = Header.read(new PrimitivI(input, serializersManager), alleleResolver);
+            this.cloneSet = null;
+        }
+
+        ClonesPort(InputStream inputStream, CloneSet cloneSet) {
+            this.inputStream = inputStream;
+            this.header = new Header(cloneSet.assemblingFeatures, cloneSet.alignedFeatures, cloneSet.usedAlleles,
+                    cloneSet.totalCount, cloneSet.size());
+            this.input = null;
+            this.compressedStream = null;
+            this.cloneSet = cloneSet;
+        }
+
+        /**
+         * Returns number of clones.
+         */
+        public int size() {
+            return header.count;
+        }
+
+        public long getTotalCount() {
+            return header.totalCount;
+        }
+
+        public GeneFeature[] getAssemblingFeatures() {
+            return header.assemblingFeatures;
+        }
+
+        public List<Allele> getUsedAlleles() {
+            return header.alleles;
+        }
+
+        public GeneFeature getAlignedGeneFeature(GeneType geneType) {
+            return header.alignedFeatures.get(geneType);
+        }
+
+        @Override
+        public synchronized Clone take() {
+            if (current == header.count) {
+                if (compressedStream != null && !closed)
+                    readEnd(compressedStream);
+                return null;
+            }
+            Clone clone = cloneSet == null ?
+                    header.readClone(input, serializersManager) :
+                    cloneSet.get(current);
+            ++current;
+            return clone;
+        }
+
+        @Override
+        public double getProgress() {
+            return header.count == 0 ? 1.0 : (1.0 * current) / header.count;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return current == header.count;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                if (compressedStream != null)
+                    compressedStream.close();
+                inputStream.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    static final class Header {
+        final GeneFeature[] assemblingFeatures;
+        final EnumMap<GeneType, GeneFeature> alignedFeatures;
+        final VDJCAlignmentsCodec codec;
+        final List<Allele> alleles;
+        final long totalCount;
+        final int count;
+
+        Header(GeneFeature[] assemblingFeatures, EnumMap<GeneType, GeneFeature> alignedFeatures,
+               List<Allele> alleles, long totalCount, int count) {
+            this.assemblingFeatures = assemblingFeatures;
+            this.alignedFeatures = alignedFeatures;
+            this.codec = new VDJCAlignmentsCodec(alleles, new GT2GFAdapter(alignedFeatures));
+            this.alleles = alleles;
+            this.totalCount = totalCount;
+            this.count = count;
+        }
+
+        /**
+         * Reads clone written by {@link CloneSetWriter}. Clone is not attached to clone set, but fraction can be
+         * calculated using total count from the header.
+         */
+        Clone readClone(DataInput input, SerializersManager serializersManager) {
+            Clone clone = codec.readClone(new PrimitivI(input, serializersManager));
+            clone.setTotalCount(totalCount);
+            return clone;
+        }
+
+        static Header read(PrimitivI input, AlleleResolver alleleResolver) {
+            GeneFeature[] assemblingFeatures = input.readObject(GeneFeature[].class);
+            EnumMap<GeneType, GeneFeature> alignedFeatures = IO.readGF2GTMap(input);
+            List<Allele> alleles = IOUtil.readAlleleReferences(input, alleleResolver,
+                    new GT2GFAdapter(alignedFeatures));
+            long totalCount = input.readLong();
+            int count = input.readInt();
+            return new Header(assemblingFeatures, alignedFeatures, alleles, totalCount, count);
+        }
     }
 
     private static class GT2GFAdapter implements HasFeatureToAlign {
@@ -47,19 +47,22 @@ public class IOUtil {
         for (Allele allele : alleles)
             output.writeObject(allele.getId());
 
+        putAlleleReferences(output, alleles, featuresToAlign);
+    }
+
+    /**
+     * Puts alleles and sequences of their aligned features as known references (without writing anything to the
+     * stream).
+     */
+    public static void putAlleleReferences(PrimitivO output, List<Allele> alleles,
+                                           HasFeatureToAlign featuresToAlign) {
         // Putting alleles references and feature sequences to be serialized/deserialized as references
         for (Allele allele : alleles) {
             output.putKnownReference(allele);
             // Also put sequences of certain gene features of alleles as known references if required
-            if (featuresToAlign != null) {
-                GeneFeature featureToAlign = featuresToAlign.getFeatureToAlign(allele.getGeneType());
-                if (featureToAlign == null)
-                    continue;
-                NucleotideSequence featureSequence = allele.getFeature(featureToAlign);
-                if (featureSequence == null)
-                    continue;
-                output.putKnownReference(allele.getFeature(featuresToAlign.getFeatureToAlign(allele.getGeneType())));
-            }
+            NucleotideSequence featureSequence = getFeatureToAlign(allele, featuresToAlign);
+            if (featureSequence != null)
+                output.putKnownReference(featureSequence);
         }
     }
 
@@ -76,21 +79,34 @@ public class IOUtil {
             alleles.add(allele);
         }
 
+        putAlleleReferences(input, alleles, featuresToAlign);
+
+        return alleles;
+    }
+
+    /**
+     * Puts alleles and sequences of their aligned features as known references (without reading anything from the
+     * stream). Must be invoked with the same arguments as {@link #putAlleleReferences(PrimitivO, List,
+     * HasFeatureToAlign)} on the writer side.
+     */
+    public static void putAlleleReferences(PrimitivI input, List<Allele> alleles,
+                                           HasFeatureToAlign featuresToAlign) {
         // Putting alleles references and feature sequences to be serialized/deserialized as references
         for (Allele allele : alleles) {
             input.putKnownReference(allele);
             // Also put sequences of certain gene features of alleles as known references if required
-            if (featuresToAlign != null) {
-                GeneFeature featureToAlign = featuresToAlign.getFeatureToAlign(allele.getGeneType());
-                if (featureToAlign == null)
-                    continue;
-                NucleotideSequence featureSequence = allele.getFeature(featureToAlign);
-                if (featureSequence == null)
-                    continue;
+            NucleotideSequence featureSequence = getFeatureToAlign(allele, featuresToAlign);
+            if (featureSequence != null)
                 input.putKnownReference(featureSequence);
-            }
         }
+    }
 
-        return alleles;
+    private static NucleotideSequence getFeatureToAlign(Allele allele, HasFeatureToAlign featuresToAlign) {
+        if (featuresToAlign == null)
+            return null;
+        GeneFeature featureToAlign = featuresToAlign.getFeatureToAlign(allele.getGeneType());
+        if (featureToAlign == null)
+            return null;
+        return allele.getFeature(featureToAlign);
     }
 }
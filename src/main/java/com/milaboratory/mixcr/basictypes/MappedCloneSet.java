@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.basictypes;
+
+import cc.redberry.pipe.OutputPort;
+import com.milaboratory.mixcr.reference.Allele;
+import com.milaboratory.mixcr.reference.AlleleResolver;
+import com.milaboratory.mixcr.reference.GeneFeature;
+import com.milaboratory.mixcr.reference.GeneType;
+import com.milaboratory.primitivio.PrimitivI;
+import com.milaboratory.primitivio.SerializersManager;
+import com.milaboratory.util.CanReportProgress;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Clone set backed by memory-mapped .clns file. Clones are decoded on each access to {@link #get(int)}, so only
+ * accessed parts of the file are loaded into memory. Clones returned by this class are not attached to a {@link
+ * CloneSet}, but {@link Clone#getFraction()} can be used (total count is stored in the file header).
+ *
+ * <p>Methods of this class can be invoked from several threads.</p>
+ */
+public final class MappedCloneSet implements Iterable<Clone>, AutoCloseable {
+    // Size of mapped regions (each region is additionally extended by the size of the largest clone)
+    static final long SEGMENT_SIZE = 1L << 30;
+    final RandomAccessFile file;
+    final CloneSetIO.Header header;
+    // Offsets of clones in the file; last element is the end of the last clone
+    final long[] offsets;
+    final MappedByteBuffer[] segments;
+    // SerializersManager is not thread-safe
+    final ThreadLocal<SerializersManager> serializersManager = new ThreadLocal<SerializersManager>() {
+        @Override
+        protected SerializersManager initialValue() {
+            return new SerializersManager();
+        }
+    };
+
+    MappedCloneSet(File file, AlleleResolver alleleResolver) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        boolean success = false;
+        try {
+            try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file), 32768)) {
+                PrimitivI input = new PrimitivI(inputStream);
+                byte[] magicBytes = new byte[CloneSetIO.MAGIC_LENGTH];
+                input.readFully(magicBytes);
+                if (!Arrays.equals(magicBytes, CloneSetIO.MAGIC_BYTES) ||
+                        (input.readByte() & CloneSetIO.FLAG_COMPRESSED) != 0)
+                    throw new IOException("Lazy reading is supported only for not compressed files in format " +
+                            CloneSetIO.MAGIC + ".");
+                this.header = CloneSetIO.Header.read(input, alleleResolver);
+            }
+
+            // Reading index
+            long length = this.file.length();
+            this.file.seek(length - 8);
+            long indexOffset = this.file.readLong();
+            this.offsets = new long[header.count + 1];
+            try (FileInputStream indexStream = new FileInputStream(file)) {
+                indexStream.getChannel().position(indexOffset);
+                DataInputStream indexInput = new DataInputStream(new BufferedInputStream(indexStream, 32768));
+                for (int i = 0; i < header.count; ++i)
+                    offsets[i] = indexInput.readLong();
+            }
+            offsets[header.count] = indexOffset;
+            int maxCloneSize = 0;
+            for (int i = 0; i < header.count; ++i)
+                maxCloneSize = (int) Math.max(maxCloneSize, offsets[i + 1] - offsets[i]);
+
+            // Mapping file regions
+            FileChannel channel = this.file.getChannel();
+            this.segments = new MappedByteBuffer[(int) (indexOffset / SEGMENT_SIZE + 1)];
+            for (int i = 0; i < segments.length; ++i) {
+                long from = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, from,
+                        Math.min(SEGMENT_SIZE + maxCloneSize, indexOffset - from));
+            }
+            success = true;
+        } finally {
+            if (!success)
+                this.file.close();
+        }
+    }
+
+    public int size() {
+        return header.count;
+    }
+
+    public long getTotalCount() {
+        return header.totalCount;
+    }
+
+    public GeneFeature[] getAssemblingFeatures() {
+        return header.assemblingFeatures;
+    }
+
+    public List<Allele> getUsedAlleles() {
+        return header.alleles;
+    }
+
+    public GeneFeature getAlignedGeneFeature(GeneType geneType) {
+        return header.alignedFeatures.get(geneType);
+    }
+
+    /**
+     * Decodes clone with specified index (clones are not cached, each invocation decodes clone from the file).
+     *
+     * @param i clone index
+     * @return clone
+     */
+    public Clone get(int i) {
+        if (i < 0 || i >= header.count)
+            throw new IndexOutOfBoundsException();
+        int segment = (int) (offsets[i] / SEGMENT_SIZE);
+        ByteBuffer buffer = segments[segment].duplicate();
+        long segmentOffset = segment * SEGMENT_SIZE;
+        buffer.limit((int) (offsets[i + 1] - segmentOffset));
+        buffer.position((int) (offsets[i] - segmentOffset));
+        return header.readClone(new DataInputStream(new ByteBufferInputStream(buffer)), serializersManager.get());
+    }
+
+    /**
+     * Creates port returning clones with indices from the specified range in the order of indices. Clones are decoded
+     * by the thread invoking {@link OutputPort#take()}.
+     *
+     * @param from index of the first clone (inclusive)
+     * @param to   index of the last clone (exclusive)
+     * @return port with clones
+     */
+    public RangePort createPort(int from, int to) {
+        if (from < 0 || to > header.count || from > to)
+            throw new IndexOutOfBoundsException();
+        return new RangePort(from, to);
+    }
+
+    @Override
+    public Iterator<Clone> iterator() {
+        return new Iterator<Clone>() {
+            int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < header.count;
+            }
+
+            @Override
+            public Clone next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return get(next++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    public final class RangePort implements OutputPort<Clone>, CanReportProgress {
+        final int from, to;
+        final AtomicInteger next;
+
+        RangePort(int from, int to) {
+            this.from = from;
+            this.to = to;
+            this.next = new AtomicInteger(from);
+        }
+
+        @Override
+        public Clone take() {
+            int i = next.getAndIncrement();
+            if (i >= to) {
+                next.set(to);
+                return null;
+            }
+            return get(i);
+        }
+
+        @Override
+        public double getProgress() {
+            return from == to ? 1.0 : (1.0 * (next.get() - from)) / (to - from);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return next.get() >= to;
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return buffer.remaining();
+        }
+    }
+}
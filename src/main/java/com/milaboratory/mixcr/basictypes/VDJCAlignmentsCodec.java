@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.basictypes;
+
+import com.milaboratory.core.Range;
+import com.milaboratory.core.alignment.Alignment;
+import com.milaboratory.core.mutations.Mutations;
+import com.milaboratory.core.sequence.NSequenceWithQuality;
+import com.milaboratory.core.sequence.NucleotideSequence;
+import com.milaboratory.mixcr.reference.Allele;
+import com.milaboratory.mixcr.reference.GeneFeature;
+import com.milaboratory.mixcr.reference.GeneType;
+import com.milaboratory.primitivio.PrimitivI;
+import com.milaboratory.primitivio.PrimitivO;
+import gnu.trove.impl.Constants;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.milaboratory.core.mutations.Mutation.POSITION_OFFSET;
+
+/**
+ * Compact encoding of alignments used in .vdjca files (and of clones used in .clns files). Compared to {@link
+ * IO.VDJCAlignmentsSerializer}:
+ *
+ * <ul>
+ * <li>alleles are written as indices in the list of used alleles from the file header;</li>
+ * <li>aligned features and sequences of aligned features (first sequence of alignments) are not written if they are
+ * the same as in the file header (aligner parameters);</li>
+ * <li>ranges are written as varint start and length, mutation positions are delta-encoded;</li>
+ * <li>read id is delta-encoded relative to the previous alignments in the block.</li>
+ * </ul>
+ *
+ * Instances are immutable and can be used from several threads.
+ */
+final class VDJCAlignmentsCodec {
+    static final long NO_READ_ID = -1;
+    static final GeneType[] GENE_TYPES = GeneType.values();
+    // Hit flags
+    static final int CUSTOM_FEATURE = 1;
+    // Alignment flags
+    static final int NULL_ALIGNMENT = 0, COMPACT_ALIGNMENT = 1, CUSTOM_SEQUENCE1 = 2, FULL_ALIGNMENT = 3;
+    // Type and letters of mutation (everything except position)
+    static final int NON_POSITION_MASK = (1 << POSITION_OFFSET) - 1;
+
+    final List<Allele> alleles;
+    final TObjectIntHashMap<Allele> alleleIndices;
+    final HasFeatureToAlign featuresToAlign;
+
+    VDJCAlignmentsCodec(List<Allele> alleles, HasFeatureToAlign featuresToAlign) {
+        this.alleles = alleles;
+        this.featuresToAlign = featuresToAlign;
+        this.alleleIndices = new TObjectIntHashMap<>(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1);
+        for (int i = 0; i < alleles.size(); i++)
+            alleleIndices.put(alleles.get(i), i);
+    }
+
+    /**
+     * @param previousReadId read id of the previous alignments in the same block or {@link #NO_READ_ID}
+     */
+    void write(PrimitivO output, VDJCAlignments alignments, long previousReadId) {
+        output.writeObject(alignments.targets);
+
+        long readId = alignments.readId;
+        long delta = readId - previousReadId;
+        if (previousReadId != NO_READ_ID && readId >= previousReadId && delta < Integer.MAX_VALUE)
+            output.writeVarInt((int) delta + 1);
+        else {
+            output.writeVarInt(0);
+            output.writeLong(readId);
+        }
+
+        writeHits(output, alignments.hits);
+    }
+
+    /**
+     * Writes clone (used in .clns files). Clone is written without reference to other clones, so it can be decoded
+     * independently.
+     */
+    void writeClone(PrimitivO output, Clone clone) {
+        output.writeObject(clone.targets);
+        writeHits(output, clone.hits);
+        output.writeLong(clone.count);
+        output.writeInt(clone.id);
+        output.writeObject(clone.assemblingFeatures);
+    }
+
+    private void writeHits(PrimitivO output, EnumMap<GeneType, VDJCHit[]> hits) {
+        int mask = 0;
+        for (GeneType geneType : hits.keySet())
+            mask |= 1 << geneType.ordinal();
+        output.writeByte(mask);
+        for (Map.Entry<GeneType, VDJCHit[]> entry : hits.entrySet()) {
+            GeneFeature feature = featuresToAlign.getFeatureToAlign(entry.getKey());
+            VDJCHit[] gtHits = entry.getValue();
+            output.writeVarInt(gtHits.length);
+            for (VDJCHit hit : gtHits)
+                writeHit(output, hit, feature);
+        }
+    }
+
+    private void writeHit(PrimitivO output, VDJCHit hit, GeneFeature feature) {
+        int alleleIndex = alleleIndices.get(hit.getAllele());
+        if (alleleIndex == -1)
+            throw new IllegalArgumentException("Allele is not in the list of used alleles: " + hit.getAllele());
+        boolean customFeature = !hit.getAlignedFeature().equals(feature);
+        output.writeVarInt(alleleIndex << 1 | (customFeature ? CUSTOM_FEATURE : 0));
+        if (customFeature)
+            output.writeObject(hit.getAlignedFeature());
+        output.writeFloat(hit.getScore());
+
+        NucleotideSequence sequence1 = hit.getAllele().getFeature(hit.getAlignedFeature());
+        output.writeVarInt(hit.numberOfTargets());
+        for (int i = 0; i < hit.numberOfTargets(); ++i)
+            writeAlignment(output, hit.getAlignment(i), sequence1);
+    }
+
+    private static void writeAlignment(PrimitivO output, Alignment<NucleotideSequence> alignment,
+                                       NucleotideSequence sequence1) {
+        if (alignment == null) {
+            output.writeByte(NULL_ALIGNMENT);
+            return;
+        }
+
+        Range range1 = alignment.getSequence1Range(), range2 = alignment.getSequence2Range();
+        if (range1.isReverse() || range2.isReverse()) {
+            output.writeByte(FULL_ALIGNMENT);
+            output.writeObject(alignment);
+            return;
+        }
+
+        if (alignment.getSequence1() == sequence1 || alignment.getSequence1().equals(sequence1))
+            output.writeByte(COMPACT_ALIGNMENT);
+        else {
+            output.writeByte(CUSTOM_SEQUENCE1);
+            output.writeObject(alignment.getSequence1());
+        }
+
+        output.writeVarInt(range1.getFrom());
+        output.writeVarInt(range1.length());
+        output.writeVarInt(range2.getFrom());
+        output.writeVarInt(range2.length());
+
+        Mutations<NucleotideSequence> mutations = alignment.getAbsoluteMutations();
+        output.writeVarInt(mutations.size());
+        int previousPosition = 0;
+        for (int i = 0; i < mutations.size(); ++i) {
+            int mutation = mutations.getMutation(i);
+            int position = mutation >>> POSITION_OFFSET;
+            output.writeVarInt(zigZag(position - previousPosition));
+            output.writeVarInt(mutation & NON_POSITION_MASK);
+            previousPosition = position;
+        }
+
+        output.writeFloat(alignment.getScore());
+    }
+
+    /**
+     * @param previousReadId read id of the previous alignments in the same block or {@link #NO_READ_ID}
+     */
+    VDJCAlignments read(PrimitivI input, long previousReadId) {
+        NSequenceWithQuality[] targets = input.readObject(NSequenceWithQuality[].class);
+
+        int delta = input.readVarInt();
+        long readId = delta == 0 ? input.readLong() : previousReadId + delta - 1;
+
+        return new VDJCAlignments(readId, readHits(input), targets);
+    }
+
+    /**
+     * Reads clone written by {@link #writeClone(PrimitivO, Clone)}.
+     */
+    Clone readClone(PrimitivI input) {
+        NSequenceWithQuality[] targets = input.readObject(NSequenceWithQuality[].class);
+        EnumMap<GeneType, VDJCHit[]> hits = readHits(input);
+        long count = input.readLong();
+        int id = input.readInt();
+        GeneFeature[] assemblingFeatures = input.readObject(GeneFeature[].class);
+        return new Clone(targets, hits, assemblingFeatures, count, id);
+    }
+
+    private EnumMap<GeneType, VDJCHit[]> readHits(PrimitivI input) {
+        int mask = input.readByte();
+        EnumMap<GeneType, VDJCHit[]> hits = new EnumMap<>(GeneType.class);
+        for (GeneType geneType : GENE_TYPES) {
+            if ((mask & (1 << geneType.ordinal())) == 0)
+                continue;
+            GeneFeature feature = featuresToAlign.getFeatureToAlign(geneType);
+            VDJCHit[] gtHits = new VDJCHit[input.readVarInt()];
+            for (int i = 0; i < gtHits.length; i++)
+                gtHits[i] = readHit(input, feature);
+            hits.put(geneType, gtHits);
+        }
+        return hits;
+    }
+
+    private VDJCHit readHit(PrimitivI input, GeneFeature feature) {
+        int alleleIndex = input.readVarInt();
+        if ((alleleIndex & CUSTOM_FEATURE) != 0)
+            feature = input.readObject(GeneFeature.class);
+        Allele allele = alleles.get(alleleIndex >>> 1);
+        float score = input.readFloat();
+
+        NucleotideSequence sequence1 = allele.getFeature(feature);
+        Alignment<NucleotideSequence>[] alignments = new Alignment[input.readVarInt()];
+        for (int i = 0; i < alignments.length; i++)
+            alignments[i] = readAlignment(input, sequence1);
+        return new VDJCHit(allele, alignments, feature, score);
+    }
+
+    private static Alignment<NucleotideSequence> readAlignment(PrimitivI input, NucleotideSequence sequence1) {
+        switch (input.readByte()) {
+            case NULL_ALIGNMENT:
+                return null;
+            case FULL_ALIGNMENT:
+                return input.readObject(Alignment.class);
+            case CUSTOM_SEQUENCE1:
+                sequence1 = input.readObject(NucleotideSequence.class);
+            case COMPACT_ALIGNMENT:
+                break;
+            default:
+                throw new RuntimeException("Wrong file format.");
+        }
+
+        int from1 = input.readVarInt();
+        Range range1 = new Range(from1, from1 + input.readVarInt());
+        int from2 = input.readVarInt();
+        Range range2 = new Range(from2, from2 + input.readVarInt());
+
+        int[] mutations = new int[input.readVarInt()];
+        int position = 0;
+        for (int i = 0; i < mutations.length; i++) {
+            position += unZigZag(input.readVarInt());
+            mutations[i] = position << POSITION_OFFSET | input.readVarInt();
+        }
+
+        return new Alignment<>(sequence1, new Mutations<NucleotideSequence>(NucleotideSequence.ALPHABET, mutations),
+                range1, range2, input.readFloat());
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
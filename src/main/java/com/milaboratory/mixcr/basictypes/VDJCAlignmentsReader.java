@@ -31,35 +31,68 @@ package com.milaboratory.mixcr.basictypes;
 import cc.redberry.pipe.OutputPortCloseable;
 import com.milaboratory.mixcr.reference.Allele;
 import com.milaboratory.mixcr.reference.AlleleResolver;
+import com.milaboratory.mixcr.util.BlockCompression;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignerParameters;
 import com.milaboratory.primitivio.PrimitivI;
+import com.milaboratory.primitivio.SerializersManager;
 import com.milaboratory.util.CanReportProgress;
 import com.milaboratory.util.CountingInputStream;
 
 import java.io.*;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.*;
 
-import static com.milaboratory.mixcr.basictypes.VDJCAlignmentsWriter.MAGIC_BYTES;
-import static com.milaboratory.mixcr.basictypes.VDJCAlignmentsWriter.MAGIC_LENGTH;
+import static com.milaboratory.mixcr.basictypes.VDJCAlignmentsWriter.*;
 
 public class VDJCAlignmentsReader implements OutputPortCloseable<VDJCAlignments>, CanReportProgress {
     VDJCAlignerParameters parameters;
     List<Allele> usedAlleles;
-    final PrimitivI input;
+    PrimitivI input;
     final AlleleResolver alleleResolver;
+    // Not null if reader was created for a file (random access is possible)
+    final File file;
     long numberOfReads = -1;
     boolean closed = false;
     long counter = 0;
     final long size;
-    final CountingInputStream countingInputStream;
+    CountingInputStream countingInputStream;
+    // Position of the beginning of the current input stream in the file
+    long inputOffset = 0;
+    // Block format
+    boolean blockFormat, compressed, unordered;
+    // Decodes alignments inside blocks (block format only)
+    VDJCAlignmentsCodec codec;
+    final SerializersManager serializersManager = new SerializersManager();
+    int currentBlock = 0, endBlock = Integer.MAX_VALUE;
+    VDJCAlignments[] decodedBlock;
+    int decodedPointer = 0;
+    VDJCAlignments pending;
+    // Parallel decoding
+    int decodingThreads = 1;
+    ExecutorService decoder;
+    final ArrayDeque<Future<VDJCAlignments[]>> decodingBlocks = new ArrayDeque<>();
+    // SerializersManager is not thread-safe
+    final ThreadLocal<SerializersManager> decoderSerializersManager = new ThreadLocal<SerializersManager>() {
+        @Override
+        protected SerializersManager initialValue() {
+            return new SerializersManager();
+        }
+    };
+    // Block index (loaded on demand)
+    long[] blockOffsets, blockFirstAlignments, blockFirstReadIds;
+    // False for files written by "align --unordered" (first read ids of blocks are also checked, for files written
+    // before the flag was introduced)
+    boolean sortedByReadId;
+    long endOfBlocksOffset;
 
     public VDJCAlignmentsReader(String fileName, AlleleResolver alleleResolver) throws FileNotFoundException {
         this(new File(fileName), alleleResolver);
     }
 
     public VDJCAlignmentsReader(File file, AlleleResolver alleleResolver) throws FileNotFoundException {
-        this(new BufferedInputStream(new FileInputStream(file), 65536), alleleResolver, file.length());
+        this(new BufferedInputStream(new FileInputStream(file), 65536), alleleResolver, file.length(), file);
     }
 
     public VDJCAlignmentsReader(InputStream input, AlleleResolver alleleResolver) {
@@ -67,9 +100,14 @@ public class VDJCAlignmentsReader implements OutputPortCloseable<VDJCAlignments>
     }
 
     public VDJCAlignmentsReader(InputStream input, AlleleResolver alleleResolver, long size) {
+        this(input, alleleResolver, size, null);
+    }
+
+    private VDJCAlignmentsReader(InputStream input, AlleleResolver alleleResolver, long size, File file) {
         this.input = new PrimitivI(countingInputStream = new CountingInputStream(input));
         this.alleleResolver = alleleResolver;
         this.size = size;
+        this.file = file;
     }
 
     public void init() {
@@ -79,12 +117,20 @@ public class VDJCAlignmentsReader implements OutputPortCloseable<VDJCAlignments>
         assert MAGIC_BYTES.length == MAGIC_LENGTH;
         byte[] magic = new byte[MAGIC_LENGTH];
         input.readFully(magic);
-        if (!Arrays.equals(magic, MAGIC_BYTES))
+        if (Arrays.equals(magic, MAGIC_BYTES)) {
+            blockFormat = true;
+            byte flags = input.readByte();
+            compressed = (flags & FLAG_COMPRESSED) != 0;
+            unordered = (flags & FLAG_UNORDERED) != 0;
+        } else if (!Arrays.equals(magic, MAGIC_V2_BYTES))
             throw new RuntimeException("Wrong file format.");
 
         parameters = input.readObject(VDJCAlignerParameters.class);
 
         this.usedAlleles = IOUtil.readAlleleReferences(input, alleleResolver, parameters);
+
+        if (blockFormat)
+            codec = new VDJCAlignmentsCodec(usedAlleles, parameters);
     }
 
     public VDJCAlignerParameters getParameters() {
@@ -101,21 +147,196 @@ public class VDJCAlignmentsReader implements OutputPortCloseable<VDJCAlignments>
         return numberOfReads;
     }
 
+    /**
+     * Sets number of threads used to decode alignments. Blocks are decoded concurrently, while alignments are still
+     * returned by {@link #take()} in the file order and numbered the same way as in single-threaded mode. Has no effect
+     * for files written in the old (non-block) format.
+     *
+     * @param decodingThreads number of decoding threads
+     */
+    public void setDecodingThreads(int decodingThreads) {
+        if (decodingThreads <= 0)
+            throw new IllegalArgumentException();
+        if (decoder != null)
+            throw new IllegalStateException("Decoding already started.");
+        this.decodingThreads = decodingThreads;
+    }
+
+    /**
+     * Returns whether random access methods ({@link #seekToBlock(int)}, {@link #seekToAlignment(long)} and {@link
+     * #seekToReadId(long)}) can be used: file must be in block format, and reader must be created for a file (not a
+     * stream).
+     */
+    public boolean hasIndex() {
+        init();
+        return blockFormat && file != null;
+    }
+
+    public int getNumberOfBlocks() {
+        loadIndex();
+        return blockOffsets.length;
+    }
+
+    /**
+     * Returns total number of alignments in the file (available only if file has index).
+     */
+    public long getNumberOfAlignments() {
+        loadIndex();
+        return blockFirstAlignments[blockFirstAlignments.length - 1];
+    }
+
+    /**
+     * Returns index of the first alignment in the block (for block index equal to number of blocks returns total
+     * number of alignments).
+     */
+    public long getBlockFirstAlignment(int block) {
+        loadIndex();
+        return blockFirstAlignments[block];
+    }
+
+    private void loadIndex() {
+        if (blockOffsets != null)
+            return;
+        if (!hasIndex())
+            throw new IllegalStateException("Random access is available only for files in block format.");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(raf.length() - 8);
+            long indexOffset = raf.readLong();
+            byte[] index = new byte[(int) (raf.length() - 8 - indexOffset)];
+            raf.seek(indexOffset);
+            raf.readFully(index);
+            DataInputStream indexInput = new DataInputStream(new ByteArrayInputStream(index));
+            int blocks = indexInput.readInt();
+            long[] offsets = new long[blocks], firstAlignments = new long[blocks + 1],
+                    firstReadIds = new long[blocks];
+            for (int i = 0; i < blocks; ++i) {
+                offsets[i] = indexInput.readLong();
+                firstAlignments[i + 1] = firstAlignments[i] + indexInput.readInt();
+                firstReadIds[i] = indexInput.readLong();
+            }
+            // End marker (int) and number of processed reads (long) precede the index
+            endOfBlocksOffset = indexOffset - 12;
+            boolean sorted = true;
+            for (int i = 1; i < blocks; ++i)
+                if (firstReadIds[i - 1] > firstReadIds[i])
+                    sorted = false;
+            blockFirstAlignments = firstAlignments;
+            blockFirstReadIds = firstReadIds;
+            sortedByReadId = sorted && !unordered;
+            blockOffsets = offsets;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Positions reader at the beginning of the block. Block index equal to number of blocks positions reader at the
+     * end of alignments.
+     *
+     * @param block block index
+     */
+    public void seekToBlock(int block) {
+        loadIndex();
+        if (block < 0 || block > blockOffsets.length)
+            throw new IndexOutOfBoundsException();
+        reopen(block == blockOffsets.length ? endOfBlocksOffset : blockOffsets[block]);
+        counter = blockFirstAlignments[block];
+        currentBlock = block;
+    }
+
+    /**
+     * Limits the range of blocks returned by this reader: {@link #take()} returns null when the specified block is
+     * reached.
+     *
+     * @param endBlock index of the first block that will not be read (exclusive)
+     */
+    public void setEndBlock(int endBlock) {
+        this.endBlock = endBlock;
+    }
+
+    /**
+     * Positions reader so that the next alignment returned by {@link #take()} is the alignment with specified index.
+     *
+     * @param alignmentsIndex alignment index
+     */
+    public void seekToAlignment(long alignmentsIndex) {
+        loadIndex();
+        if (alignmentsIndex < 0)
+            throw new IndexOutOfBoundsException();
+        if (alignmentsIndex >= getNumberOfAlignments()) {
+            seekToBlock(blockOffsets.length);
+            return;
+        }
+        int block = Arrays.binarySearch(blockFirstAlignments, alignmentsIndex);
+        if (block < 0)
+            block = -block - 2;
+        // Blocks are not empty, so there are no duplicates in blockFirstAlignments
+        seekToBlock(block);
+        while (counter < alignmentsIndex)
+            take();
+    }
+
+    /**
+     * Positions reader so that the next alignment returned by {@link #take()} is the first alignment with read id
+     * greater or equal to the specified one (read ids are non-decreasing in files produced by align action).
+     *
+     * @param readId read id
+     * @throws IllegalStateException if alignments in the file are not ordered by read id (see align --unordered)
+     */
+    public void seekToReadId(long readId) {
+        loadIndex();
+        if (!sortedByReadId)
+            throw new IllegalStateException("Alignments are not ordered by read id.");
+        // Last block with the first read id less than required
+        int block = Arrays.binarySearch(blockFirstReadIds, readId);
+        if (block < 0)
+            block = -block - 2;
+        else
+            while (block >= 0 && blockFirstReadIds[block] >= readId)
+                --block;
+        seekToBlock(Math.max(block, 0));
+        VDJCAlignments alignments;
+        while ((alignments = take()) != null)
+            if (alignments.getReadId() >= readId) {
+                pending = alignments;
+                break;
+            }
+    }
+
+    private void reopen(long offset) {
+        try {
+            input.close();
+            FileInputStream fis = new FileInputStream(file);
+            fis.getChannel().position(offset);
+            input = new PrimitivI(countingInputStream = new CountingInputStream(new BufferedInputStream(fis, 65536)));
+            inputOffset = offset;
+            closed = false;
+            cancelDecoding();
+            decodedBlock = null;
+            pending = null;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public double getProgress() {
         if (size == 0)
             return Double.NaN;
-        return (1.0 * countingInputStream.getBytesRead()) / size;
+        return (1.0 * (inputOffset + countingInputStream.getBytesRead())) / size;
     }
 
     @Override
     public boolean isFinished() {
-        return countingInputStream.getBytesRead() == size || closed;
+        return inputOffset + countingInputStream.getBytesRead() == size || closed;
     }
 
     @Override
     public void close() {
         close(false);
+        cancelDecoding();
+        if (decoder != null)
+            decoder.shutdownNow();
     }
 
     private void close(boolean onEnd) {
@@ -134,20 +355,138 @@ public class VDJCAlignmentsReader implements OutputPortCloseable<VDJCAlignments>
         }
     }
 
-    @Override
-    public VDJCAlignments take() {
+    /**
+     * Reads next raw block from the input (block format only).
+     *
+     * @return decoder for the block or null if there are no more blocks
+     */
+    private BlockDecoder readBlock() {
         if (closed)
             return null;
+        if (currentBlock >= endBlock) {
+            close(false);
+            return null;
+        }
+        int blockSize = input.readInt();
+        if (blockSize == END_OF_BLOCKS) {
+            close(true);
+            return null;
+        }
+        int count = input.readInt();
+        int rawSize = -1, checksum = 0;
+        if (compressed) {
+            rawSize = input.readInt();
+            checksum = input.readInt();
+        }
+        byte[] block = new byte[blockSize];
+        input.readFully(block);
+        ++currentBlock;
+        return new BlockDecoder(block, count, rawSize, checksum);
+    }
 
-        init();
+    /**
+     * Returns next decoded block (block format only).
+     *
+     * @return false if there are no more blocks
+     */
+    private boolean nextBlock() {
+        // Compressed blocks are always decompressed in background
+        if (decodingThreads == 1 && !compressed) {
+            BlockDecoder block = readBlock();
+            if (block == null)
+                return false;
+            decodedBlock = block.decode(serializersManager);
+        } else {
+            if (decoder == null)
+                decoder = BlockCompression.createExecutor(decodingThreads, "VDJCAlignmentsDecoder");
 
-        VDJCAlignments alignments = input.readObject(VDJCAlignments.class);
+            // Keeping all decoding threads busy
+            BlockDecoder block;
+            while (decodingBlocks.size() < 2 * decodingThreads && (block = readBlock()) != null)
+                decodingBlocks.add(decoder.submit(block));
 
-        if (alignments == null)
-            close(true);
-        else
-            alignments.setAlignmentsIndex(counter++);
+            Future<VDJCAlignments[]> future = decodingBlocks.poll();
+            if (future == null)
+                return false;
+            try {
+                decodedBlock = future.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        decodedPointer = 0;
+        return true;
+    }
+
+    private void cancelDecoding() {
+        for (Future<VDJCAlignments[]> future : decodingBlocks)
+            future.cancel(false);
+        decodingBlocks.clear();
+    }
+
+    @Override
+    public VDJCAlignments take() {
+        if (pending != null) {
+            VDJCAlignments alignments = pending;
+            pending = null;
+            return alignments;
+        }
+
+        if (!closed)
+            init();
+
+        VDJCAlignments alignments;
+        if (blockFormat) {
+            // Decoded alignments may still be available after the input is closed
+            while (decodedBlock == null || decodedPointer == decodedBlock.length)
+                if (!nextBlock())
+                    return null;
+            alignments = decodedBlock[decodedPointer++];
+        } else {
+            if (closed)
+                return null;
+            alignments = input.readObject(VDJCAlignments.class);
+            if (alignments == null) {
+                close(true);
+                return null;
+            }
+        }
+
+        alignments.setAlignmentsIndex(counter++);
 
         return alignments;
     }
+
+    private final class BlockDecoder implements Callable<VDJCAlignments[]> {
+        final byte[] data;
+        final int count;
+        // Uncompressed size (-1 for not compressed blocks) and checksum
+        final int rawSize, checksum;
+
+        BlockDecoder(byte[] data, int count, int rawSize, int checksum) {
+            this.data = data;
+            this.count = count;
+            this.rawSize = rawSize;
+            this.checksum = checksum;
+        }
+
+        VDJCAlignments[] decode(SerializersManager serializersManager) {
+            byte[] data = rawSize == -1 ? this.data : BlockCompression.decompress(this.data, rawSize, checksum);
+            PrimitivI blockInput = new PrimitivI(new DataInputStream(new ByteArrayInputStream(data)),
+                    serializersManager);
+            IOUtil.putAlleleReferences(blockInput, usedAlleles, parameters);
+            VDJCAlignments[] result = new VDJCAlignments[count];
+            long previousReadId = VDJCAlignmentsCodec.NO_READ_ID;
+            for (int i = 0; i < count; ++i)
+                previousReadId = (result[i] = codec.read(blockInput, previousReadId)).getReadId();
+            return result;
+        }
+
+        @Override
+        public VDJCAlignments[] call() throws Exception {
+            return decode(decoderSerializersManager.get());
+        }
+    }
 }
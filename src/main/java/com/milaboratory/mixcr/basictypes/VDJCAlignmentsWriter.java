@@ -29,19 +29,98 @@
 package com.milaboratory.mixcr.basictypes;
 
 import com.milaboratory.mixcr.reference.Allele;
+import com.milaboratory.mixcr.util.BlockCompression;
 import com.milaboratory.mixcr.vdjaligners.VDJCAligner;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignerParameters;
 import com.milaboratory.primitivio.PrimitivO;
+import com.milaboratory.primitivio.SerializersManager;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.*;
 
+/**
+ * Writes alignments in block format ({@link #MAGIC}). After the header (parameters and used alleles) alignments are
+ * written in blocks of approximately {@link #DEFAULT_BLOCK_SIZE} bytes. Each block can be decoded independently (given
+ * the header), and the footer contains index of blocks, so the file can be read starting from any alignment or read
+ * id:
+ *
+ * <pre>
+ * header:  magic, byte flags, parameters, allele references
+ * block:   int payload size, int number of alignments, payload
+ * end:     int -1, long number of processed reads
+ * index:   int number of blocks, (long offset, int number of alignments, long id of the first read) per block
+ * trailer: long offset of index
+ * </pre>
+ *
+ * Alignments inside blocks are written using compact encoding (see {@link VDJCAlignmentsCodec}). If compression is
+ * enabled ({@link #FLAG_COMPRESSED}), block payloads are compressed on background threads (see {@link
+ * BlockCompression}), and the block header is extended: int compressed payload size, int number of alignments, int
+ * uncompressed payload size, int checksum of uncompressed payload. Files with alignments not ordered by read id are
+ * marked with {@link #FLAG_UNORDERED}.
+ *
+ * <p>If asynchronous writing is enabled ({@link #enableAsyncWriting(int)}), {@link #write(VDJCAlignments)} only
+ * collects alignments; blocks are encoded (and compressed) in parallel on background threads and then written to the
+ * output, in the original order, by a dedicated writer thread. The number of blocks in flight is bounded.</p>
+ *
+ * <p>Previous version: {@link #MAGIC_V2} - no blocks, alignments serialized with {@link IO.VDJCAlignmentsSerializer}
+ * one after another.</p>
+ */
 public final class VDJCAlignmentsWriter implements AutoCloseable {
-    static final String MAGIC = "MiXCR.VDJC.V02";
+    static final String MAGIC_V2 = "MiXCR.VDJC.V02";
+    static final String MAGIC = "MiXCR.VDJC.V03";
     static final int MAGIC_LENGTH = 14;
+    static final byte[] MAGIC_V2_BYTES = MAGIC_V2.getBytes(StandardCharsets.US_ASCII);
     static final byte[] MAGIC_BYTES = MAGIC.getBytes(StandardCharsets.US_ASCII);
-    final PrimitivO output;
+    static final int FLAG_COMPRESSED = 1;
+    // Alignments are not ordered by read id (align --unordered)
+    static final int FLAG_UNORDERED = 2;
+    static final int DEFAULT_BLOCK_SIZE = 1 << 18;
+    static final int END_OF_BLOCKS = -1;
+    // Initial estimate of encoded alignment size, used to split alignments into blocks in asynchronous mode
+    static final int ESTIMATED_ALIGNMENT_SIZE = 256;
+    final DataOutputStream output;
+    // Current position in the output
+    long position = 0;
+    // Current block
+    final ByteArrayOutputStream blockBuffer = new ByteArrayOutputStream();
+    final SerializersManager serializersManager = new SerializersManager();
+    PrimitivO blockOutput;
+    VDJCAlignerParameters parameters;
+    List<Allele> alleles;
+    VDJCAlignmentsCodec codec;
+    int blockAlignments = 0;
+    long blockFirstReadId, previousReadId;
+    int blockSize = DEFAULT_BLOCK_SIZE;
+    // Index
+    final TLongArrayList blockOffsets = new TLongArrayList(), blockFirstReadIds = new TLongArrayList();
+    final TIntArrayList blockCounts = new TIntArrayList();
+    // Compression
+    boolean compress = false;
+    int compressionThreads;
+    boolean unordered = false;
+    // Compresses blocks in synchronous mode (in asynchronous mode blocks are compressed by encoding threads)
+    ExecutorService compressor;
+    int maxPendingBlocks;
+    final ArrayDeque<PendingBlock> pendingBlocks = new ArrayDeque<>();
+    // Asynchronous writing
+    ExecutorService encoder, flusher;
+    Semaphore blocksInFlight;
+    ArrayList<VDJCAlignments> blockAlignmentsList;
+    // Estimated from the sizes of encoded blocks
+    volatile int alignmentsPerBlock;
+    volatile Throwable asyncError;
+    final ThreadLocal<SerializersManager> encoderSerializers = new ThreadLocal<SerializersManager>() {
+        @Override
+        protected SerializersManager initialValue() {
+            return new SerializersManager();
+        }
+    };
     long numberOfProcessedReads = -1;
     boolean header = false, closed = false;
 
@@ -54,13 +133,72 @@ public final class VDJCAlignmentsWriter implements AutoCloseable {
     }
 
     public VDJCAlignmentsWriter(OutputStream output) {
-        this.output = new PrimitivO(output);
+        this.output = new DataOutputStream(output);
     }
 
     public void setNumberOfProcessedReads(long numberOfProcessedReads) {
         this.numberOfProcessedReads = numberOfProcessedReads;
     }
 
+    /**
+     * Sets approximate size of blocks in bytes. Must be invoked before header.
+     *
+     * @param blockSize approximate block size in bytes
+     */
+    public void setBlockSize(int blockSize) {
+        if (header)
+            throw new IllegalStateException();
+        if (blockSize <= 0)
+            throw new IllegalArgumentException();
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Enables compression of blocks. Must be invoked before header.
+     *
+     * @param threads number of background compression threads; not used if asynchronous writing is enabled, as blocks
+     *                are then compressed by encoding threads
+     */
+    public void enableCompression(int threads) {
+        if (header)
+            throw new IllegalStateException();
+        if (threads <= 0)
+            throw new IllegalArgumentException();
+        this.compress = true;
+        this.compressionThreads = threads;
+    }
+
+    /**
+     * Marks alignments as not ordered by read id ({@link #FLAG_UNORDERED}), so that readers don't search them by read
+     * id. Must be invoked before header.
+     */
+    public void setUnordered() {
+        if (header)
+            throw new IllegalStateException();
+        this.unordered = true;
+    }
+
+    /**
+     * Enables asynchronous writing: alignments are encoded into blocks (and compressed, if compression is enabled) by
+     * background threads and written to the output by a dedicated thread. Must be invoked before header.
+     *
+     * @param threads number of background encoding threads
+     */
+    public void enableAsyncWriting(int threads) {
+        if (header)
+            throw new IllegalStateException();
+        if (threads <= 0)
+            throw new IllegalArgumentException();
+        if (encoder != null) {
+            encoder.shutdownNow();
+            flusher.shutdownNow();
+        }
+        this.encoder = BlockCompression.createExecutor(threads, "VDJCAlignmentsEncoder");
+        this.flusher = BlockCompression.createExecutor(1, "VDJCAlignmentsWriter");
+        this.blocksInFlight = new Semaphore(2 * threads + 2);
+        this.blockAlignmentsList = new ArrayList<>();
+    }
+
     public void header(VDJCAligner aligner) {
         header(aligner.getParameters(), aligner.getUsedAlleles());
     }
@@ -72,15 +210,30 @@ public final class VDJCAlignmentsWriter implements AutoCloseable {
         if (header)
             throw new IllegalStateException();
 
+        ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream();
+        PrimitivO headerOutput = new PrimitivO(headerBuffer);
+
         // Writing magic bytes
         assert MAGIC_BYTES.length == MAGIC_LENGTH;
-        output.write(MAGIC_BYTES);
+        headerOutput.write(MAGIC_BYTES);
+        headerOutput.writeByte((compress ? FLAG_COMPRESSED : 0) | (unordered ? FLAG_UNORDERED : 0));
 
         // Writing parameters
-        output.writeObject(parameters);
+        headerOutput.writeObject(parameters);
+
+        IOUtil.writeAlleleReferences(headerOutput, alleles, parameters);
 
-        IOUtil.writeAlleleReferences(output, alleles, parameters);
+        headerOutput.close();
+        writeRaw(headerBuffer.toByteArray());
 
+        this.parameters = parameters;
+        this.alleles = alleles;
+        this.codec = new VDJCAlignmentsCodec(alleles, parameters);
+        if (compress && encoder == null) {
+            this.compressor = BlockCompression.createExecutor(compressionThreads, "VDJCAlignmentsCompressor");
+            this.maxPendingBlocks = 2 * compressionThreads;
+        }
+        this.alignmentsPerBlock = Math.max(1, blockSize / ESTIMATED_ALIGNMENT_SIZE);
         header = true;
     }
 
@@ -91,16 +244,230 @@ public final class VDJCAlignmentsWriter implements AutoCloseable {
         if (alignment == null)
             throw new NullPointerException();
 
-        output.writeObject(alignment);
+        if (encoder != null) {
+            checkAsyncError();
+            blockAlignmentsList.add(alignment);
+            if (blockAlignmentsList.size() >= alignmentsPerBlock)
+                submitBlock();
+            return;
+        }
+
+        if (blockAlignments == 0) {
+            blockFirstReadId = alignment.getReadId();
+            // New output for each block (primitivio retains references between objects), so each block can be
+            // decoded independently
+            blockOutput = new PrimitivO(new DataOutputStream(blockBuffer), serializersManager);
+            IOUtil.putAlleleReferences(blockOutput, alleles, parameters);
+        }
+        codec.write(blockOutput, alignment,
+                blockAlignments == 0 ? VDJCAlignmentsCodec.NO_READ_ID : previousReadId);
+        previousReadId = alignment.getReadId();
+        ++blockAlignments;
+
+        if (blockBuffer.size() >= blockSize)
+            flushBlock();
+    }
+
+    private void flushBlock() {
+        if (blockAlignments == 0)
+            return;
+        try {
+            if (compressor == null)
+                writeBlock(blockBuffer.toByteArray(), blockAlignments, blockFirstReadId);
+            else {
+                final byte[] data = blockBuffer.toByteArray();
+                pendingBlocks.add(new PendingBlock(compressor.submit(new Callable<BlockCompression.CompressedBlock>() {
+                    @Override
+                    public BlockCompression.CompressedBlock call() throws Exception {
+                        return BlockCompression.compress(data, 0, data.length);
+                    }
+                }), blockAlignments, blockFirstReadId));
+                while (pendingBlocks.size() > maxPendingBlocks)
+                    writeCompressedBlock(pendingBlocks.poll());
+            }
+            blockBuffer.reset();
+            blockAlignments = 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void writeCompressedBlock(PendingBlock pendingBlock) throws IOException {
+        BlockCompression.CompressedBlock block;
+        try {
+            block = pendingBlock.block.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        writeBlock(block, pendingBlock.count, pendingBlock.firstReadId);
+    }
+
+    private void writeBlock(byte[] data, int count, long firstReadId) throws IOException {
+        blockOffsets.add(position);
+        blockCounts.add(count);
+        blockFirstReadIds.add(firstReadId);
+        output.writeInt(data.length);
+        output.writeInt(count);
+        output.write(data);
+        position += 8 + data.length;
+    }
+
+    private void writeBlock(BlockCompression.CompressedBlock block, int count, long firstReadId) throws IOException {
+        blockOffsets.add(position);
+        blockCounts.add(count);
+        blockFirstReadIds.add(firstReadId);
+        output.writeInt(block.data.length);
+        output.writeInt(count);
+        output.writeInt(block.rawSize);
+        output.writeInt(block.checksum);
+        output.write(block.data);
+        position += 16 + block.data.length;
+    }
+
+    /**
+     * Passes collected alignments to background encoding and schedules writing of the resulting block. Blocks if too
+     * many blocks are already in flight.
+     */
+    private void submitBlock() {
+        if (blockAlignmentsList.isEmpty())
+            return;
+        final List<VDJCAlignments> alignments = blockAlignmentsList;
+        blockAlignmentsList = new ArrayList<>(alignments.size());
+        try {
+            blocksInFlight.acquire();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        final Future<Object> block = encoder.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return encodeBlock(alignments);
+            }
+        });
+        final int count = alignments.size();
+        final long firstReadId = alignments.get(0).getReadId();
+        flusher.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Object data = block.get();
+                    if (asyncError != null)
+                        return;
+                    if (data instanceof byte[])
+                        writeBlock((byte[]) data, count, firstReadId);
+                    else
+                        writeBlock((BlockCompression.CompressedBlock) data, count, firstReadId);
+                } catch (ExecutionException e) {
+                    asyncError = e.getCause();
+                } catch (Throwable e) {
+                    asyncError = e;
+                } finally {
+                    blocksInFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Encodes alignments into a block payload; returns byte[] or {@link BlockCompression.CompressedBlock} if
+     * compression is enabled. Executed by encoding threads.
+     */
+    private Object encodeBlock(List<VDJCAlignments> alignments) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrimitivO blockOutput = new PrimitivO(new DataOutputStream(buffer), encoderSerializers.get());
+        IOUtil.putAlleleReferences(blockOutput, alleles, parameters);
+        long previousReadId = VDJCAlignmentsCodec.NO_READ_ID;
+        for (VDJCAlignments alignment : alignments) {
+            codec.write(blockOutput, alignment, previousReadId);
+            previousReadId = alignment.getReadId();
+        }
+        byte[] data = buffer.toByteArray();
+        // Adjusting number of alignments per block to match target block size
+        alignmentsPerBlock = Math.max(1, (int) Math.min(Integer.MAX_VALUE,
+                (long) blockSize * alignments.size() / Math.max(1, data.length)));
+        return compress ? BlockCompression.compress(data, 0, data.length) : data;
+    }
+
+    private void checkAsyncError() {
+        Throwable error = asyncError;
+        if (error == null)
+            return;
+        if (error instanceof RuntimeException)
+            throw (RuntimeException) error;
+        throw new RuntimeException(error);
+    }
+
+    private void finishAsyncWriting() {
+        submitBlock();
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            encoder.shutdownNow();
+        }
+        checkAsyncError();
+    }
+
+    private void writeRaw(byte[] bytes) {
+        try {
+            output.write(bytes);
+            position += bytes.length;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
     public void close() {
         if (!closed) {
-            output.writeObject(null);
-            output.writeLong(numberOfProcessedReads);
-            output.close();
+            try {
+                if (header) {
+                    if (encoder != null)
+                        finishAsyncWriting();
+                    flushBlock();
+                    while (!pendingBlocks.isEmpty())
+                        writeCompressedBlock(pendingBlocks.poll());
+                    output.writeInt(END_OF_BLOCKS);
+                    output.writeLong(numberOfProcessedReads);
+                    position += 12;
+
+                    long indexOffset = position;
+                    output.writeInt(blockOffsets.size());
+                    for (int i = 0; i < blockOffsets.size(); ++i) {
+                        output.writeLong(blockOffsets.get(i));
+                        output.writeInt(blockCounts.get(i));
+                        output.writeLong(blockFirstReadIds.get(i));
+                    }
+                    output.writeLong(indexOffset);
+                }
+                output.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                if (compressor != null)
+                    compressor.shutdownNow();
+                if (encoder != null) {
+                    encoder.shutdownNow();
+                    flusher.shutdownNow();
+                }
+            }
             closed = true;
         }
     }
+
+    private static final class PendingBlock {
+        final Future<BlockCompression.CompressedBlock> block;
+        final int count;
+        final long firstReadId;
+
+        PendingBlock(Future<BlockCompression.CompressedBlock> block, int count, long firstReadId) {
+            this.block = block;
+            this.count = count;
+            this.firstReadId = firstReadId;
+        }
+    }
 }
@@ -30,6 +30,7 @@ package com.milaboratory.mixcr.cli;
 
 import cc.redberry.pipe.CUtils;
 import cc.redberry.pipe.OutputPort;
+import cc.redberry.pipe.Processor;
 import cc.redberry.pipe.blocks.ParallelProcessor;
 import cc.redberry.pipe.util.Chunk;
 import cc.redberry.pipe.util.CountLimitingOutputPort;
@@ -43,12 +44,11 @@ import com.beust.jcommander.validators.PositiveInteger;
 import com.milaboratory.core.io.sequence.SequenceRead;
 import com.milaboratory.core.io.sequence.SequenceReaderCloseable;
 import com.milaboratory.core.io.sequence.fasta.FastaReader;
-import com.milaboratory.core.io.sequence.fastq.PairedFastqReader;
-import com.milaboratory.core.io.sequence.fastq.SingleFastqReader;
 import com.milaboratory.mitools.cli.Action;
 import com.milaboratory.mitools.cli.ActionHelper;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsWriter;
 import com.milaboratory.mixcr.reference.*;
+import com.milaboratory.mixcr.util.InFlightLimiter;
 import com.milaboratory.mixcr.vdjaligners.VDJCAligner;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignerParameters;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignmentResult;
@@ -94,21 +94,22 @@ public class ActionAlign implements Action {
 
         try (SequenceReaderCloseable<? extends SequenceRead> reader = actionParameters.createReader();
              VDJCAlignmentsWriter writer = actionParameters.getOutputName().equals(".") ? null : new VDJCAlignmentsWriter(actionParameters.getOutputName())) {
-            if (writer != null) writer.header(aligner);
+            if (writer != null) {
+                if (actionParameters.compress)
+                    writer.enableCompression(actionParameters.threads);
+                writer.enableAsyncWriting(actionParameters.threads);
+                if (actionParameters.unordered)
+                    writer.setUnordered();
+                writer.header(aligner);
+            }
             SmartProgressReporter.startProgressReport("Alignment", (CanReportProgress) reader);
             OutputPort<? extends SequenceRead> sReads = reader;
             if (actionParameters.limit != 0)
                 sReads = new CountLimitingOutputPort<>(sReads, actionParameters.limit);
-            OutputPort<Chunk<? extends SequenceRead>> mainInputReads = CUtils.buffered((OutputPort) chunked(sReads, 64), 16);
-            OutputPort<VDJCAlignmentResult> alignments = unchunked(new ParallelProcessor(mainInputReads, chunked(aligner), actionParameters.threads));
-            for (VDJCAlignmentResult result : CUtils.it(
-                    new OrderedOutputPort<>(alignments,
-                            new Indexer<VDJCAlignmentResult>() {
-                                @Override
-                                public long getIndex(VDJCAlignmentResult o) {
-                                    return o.read.getId();
-                                }
-                            }))) {
+            OutputPort<VDJCAlignmentResult> alignments = align(sReads, aligner, actionParameters.threads,
+                    actionParameters.chunkSize, actionParameters.inputBufferSize,
+                    new InFlightLimiter(actionParameters.getMaxChunksInFlight()), actionParameters.unordered);
+            for (VDJCAlignmentResult result : CUtils.it(alignments)) {
                 if (result.alignment == null)
                     continue;
                 if (writer != null)
@@ -118,9 +119,42 @@ public class ActionAlign implements Action {
                 writer.setNumberOfProcessedReads(reader.getNumberOfReads());
         }
 
-        if (report != null)
+        if (report != null) {
+            report.setDAlignmentCacheStats(aligner.getDAlignmentCacheStats());
             Util.writeReport(actionParameters.getInputForReport(), actionParameters.getOutputName(),
                     helper.getCommandLineArguments(), actionParameters.report, report);
+        }
+    }
+
+    /**
+     * Aligns reads by several threads in chunks of chunkSize reads. Results are returned in the order of reads, unless
+     * unordered is set; reordering is performed for whole chunks.
+     *
+     * @param reads           reads numbered sequentially (as by readers)
+     * @param aligner         aligner (processor of reads)
+     * @param limiter         bounds the number of chunks being read, aligned and reordered at once; when the limit
+     *                        is reached reading is suspended
+     * @param unordered       return results in the order they are produced by alignment threads
+     */
+    @SuppressWarnings("unchecked")
+    static OutputPort<VDJCAlignmentResult> align(OutputPort<? extends SequenceRead> reads, Processor aligner,
+                                                 int threads, final int chunkSize, int inputBufferSize,
+                                                 InFlightLimiter limiter, boolean unordered) {
+        OutputPort<Chunk<? extends SequenceRead>> mainInputReads = CUtils.buffered((OutputPort) limiter.enter(
+                chunked(reads, chunkSize)), inputBufferSize);
+        OutputPort<Chunk<VDJCAlignmentResult>> alignedChunks = new ParallelProcessor(mainInputReads,
+                chunked(aligner), threads);
+        if (!unordered)
+            // Reads are numbered sequentially by readers, so all chunks except the last one have exactly
+            // chunkSize reads
+            alignedChunks = new OrderedOutputPort<>(alignedChunks,
+                    new Indexer<Chunk<VDJCAlignmentResult>>() {
+                        @Override
+                        public long getIndex(Chunk<VDJCAlignmentResult> o) {
+                            return o.get(0).read.getId() / chunkSize;
+                        }
+                    });
+        return unchunked(limiter.leave(alignedChunks));
     }
 
     @Override
@@ -174,6 +208,33 @@ public class ActionAlign implements Action {
                 names = {"-d", "--noMerge"})
         public Boolean noMerge = false;
 
+        @Parameter(description = "Compress output file.",
+                names = {"-z", "--compress"})
+        public Boolean compress = false;
+
+        @Parameter(description = "Number of threads used to decompress each gzip input file (used for BGZF files, " +
+                "0 - auto).",
+                names = {"--inputThreads"})
+        public int inputThreads = 0;
+
+        @Parameter(description = "Number of reads passed to alignment threads at once.",
+                names = {"--chunkSize"}, validateWith = PositiveInteger.class)
+        public int chunkSize = 64;
+
+        @Parameter(description = "Number of read chunks buffered ahead of alignment threads.",
+                names = {"--inputBuffer"}, validateWith = PositiveInteger.class)
+        public int inputBufferSize = 16;
+
+        @Parameter(description = "Maximal number of reads being read, aligned or waiting to be written in the " +
+                "original order at the same time; bounds memory usage (0 - auto).",
+                names = {"--maxReadsInFlight"})
+        public int maxReadsInFlight = 0;
+
+        @Parameter(description = "Write alignments in the order they are produced by alignment threads, not in the " +
+                "order of input reads (random access by read id is not available for such files).",
+                names = {"--unordered"})
+        public Boolean unordered = false;
+
         public int getTaxonID() {
             return Species.fromStringStrict(species);
         }
@@ -212,15 +273,27 @@ public class ActionAlign implements Action {
             return parameters.get(parameters.size() - 1);
         }
 
+        public int getInputThreads() {
+            if (inputThreads > 0)
+                return inputThreads;
+            return Math.max(1, Math.min(4, threads / 8));
+        }
+
+        public int getMaxChunksInFlight() {
+            if (maxReadsInFlight > 0)
+                return Math.max(1, (maxReadsInFlight + chunkSize - 1) / chunkSize);
+            return inputBufferSize + 4 * threads;
+        }
+
         public SequenceReaderCloseable<? extends SequenceRead> createReader() throws IOException {
             if (isInputPaired())
-                return new PairedFastqReader(parameters.get(0), parameters.get(1));
+                return PipelinedFastqReader.open(parameters.get(0), parameters.get(1), getInputThreads());
             else {
                 String[] s = parameters.get(0).split("\\.");
                 if (s[s.length - 1].equals("fasta"))
                     return new FastaReader(parameters.get(0), true);
                 else
-                    return new SingleFastqReader(parameters.get(0));
+                    return PipelinedFastqReader.open(parameters.get(0), getInputThreads());
             }
         }
 
@@ -235,6 +308,10 @@ public class ActionAlign implements Action {
                 throw new ParameterException("Too many input files.");
             if (parameters.size() < 2)
                 throw new ParameterException("No output file.");
+            if (inputThreads < 0)
+                throw new ParameterException("Wrong number of input threads: " + inputThreads);
+            if (maxReadsInFlight < 0)
+                throw new ParameterException("Wrong maximal number of reads in flight: " + maxReadsInFlight);
             super.validate();
         }
     }
@@ -32,6 +32,7 @@ import cc.redberry.pipe.CUtils;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Parameters;
+import com.beust.jcommander.validators.PositiveInteger;
 import com.milaboratory.mitools.cli.Action;
 import com.milaboratory.mitools.cli.ActionHelper;
 import com.milaboratory.mitools.cli.ActionParameters;
@@ -62,6 +63,7 @@ public class ActionAlignmentsStat implements Action {
              PrintStream output = actionParameters.getOutputFileName().equals("-") ? System.out :
                      new PrintStream(new BufferedOutputStream(new FileOutputStream(actionParameters.getOutputFileName()), 32768))
         ) {
+            reader.setDecodingThreads(actionParameters.threads);
             long totalCount = 0;
             for (VDJCAlignments alignments : CUtils.it(reader)) {
                 ++totalCount;
@@ -98,6 +100,10 @@ public class ActionAlignmentsStat implements Action {
         @Parameter(description = "input_file.vdjca [output.txt]", variableArity = true)
         public List<String> parameters = new ArrayList<>();
 
+        @Parameter(description = "Number of alignment decoding threads",
+                names = {"-t", "--threads"}, validateWith = PositiveInteger.class)
+        public int threads = Runtime.getRuntime().availableProcessors();
+
         public String getInputFileName() {
             return parameters.get(0);
         }
@@ -41,6 +41,7 @@ import com.milaboratory.mixcr.basictypes.CloneSetIO;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsReader;
 import com.milaboratory.mixcr.reference.Allele;
 import com.milaboratory.mixcr.reference.LociLibraryManager;
+import com.milaboratory.mixcr.vdjaligners.VDJCAlignerParameters;
 import com.milaboratory.primitivio.PipeWriter;
 import com.milaboratory.util.SmartProgressReporter;
 
@@ -58,13 +59,15 @@ public class ActionAssemble implements Action {
     @Override
     public void go(ActionHelper helper) throws Exception {
         List<Allele> alleles;
+        VDJCAlignerParameters alignerParameters;
         try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(actionParameters.getInputFileName(), LociLibraryManager.getDefault())) {
             alleles = reader.getUsedAlleles();
+            alignerParameters = reader.getParameters();
         }
 
         AlignmentsProvider alignmentsProvider = AlignmentsProvider.Util.createProvider(
                 actionParameters.getInputFileName(),
-                LociLibraryManager.getDefault());
+                LociLibraryManager.getDefault(), actionParameters.threads);
 
         CloneAssemblerParameters assemblerParameters = actionParameters.getCloneAssemblerParameters();
 
@@ -81,19 +84,30 @@ public class ActionAssemble implements Action {
             if (report != null)
                 assembler.setListener(report);
 
+            assembler.setShardedAccumulation(actionParameters.shardedAccumulation);
+            if (actionParameters.memoryBudget != 0)
+                assembler.setMemoryBudget(actionParameters.memoryBudget * 1024L * 1024L);
+            // Memory-bounded mode maps deferred alignments in a separate pass for each window of clones, so only
+            // deferred alignments are re-read
+            if (actionParameters.singlePass || actionParameters.memoryBudget != 0)
+                assembler.enableSinglePassMapping(alignerParameters);
+
             CloneAssemblerRunner assemblerRunner = new CloneAssemblerRunner(
                     alignmentsProvider,
                     assembler, actionParameters.threads);
             SmartProgressReporter.startProgressReport(assemblerRunner);
             assemblerRunner.run();
             try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(actionParameters.getOutputFileName()), 65536)) {
-                CloneSetIO.CloneSetWriter writer = new CloneSetIO.CloneSetWriter(assemblerRunner.getCloneSet(), outputStream);
+                CloneSetIO.CloneSetWriter writer = assembler.createCloneSetWriter(outputStream);
+                if (actionParameters.compress)
+                    writer.enableCompression(actionParameters.threads);
                 SmartProgressReporter.startProgressReport(writer);
                 writer.write();
             }
 
             if (report != null) {
                 report.setTotalReads(alignmentsProvider.getTotalNumberOfReads());
+                report.setDAlignmentCacheStats(assembler.getDAlignmentCacheStats());
                 Util.writeReport(actionParameters.getInputFileName(), actionParameters.getOutputFileName(),
                         helper.getCommandLineArguments(), actionParameters.report, report);
             }
@@ -129,6 +143,27 @@ public class ActionAssemble implements Action {
                 names = {"-t", "--threads"}, validateWith = PositiveInteger.class)
         public int threads = Runtime.getRuntime().availableProcessors();
 
+        @Parameter(description = "Accumulate clonal statistics in per-thread shards (reduces contention on " +
+                "dominant clones, requires more memory).",
+                names = {"--shardedAccumulation"})
+        public Boolean shardedAccumulation = false;
+
+        @Parameter(description = "Store deferred (low quality) alignments in a temporary file during initial " +
+                "assembly, to avoid the second pass over the input file when mapping them to clones.",
+                names = {"--singlePass"})
+        public Boolean singlePass = false;
+
+        @Parameter(description = "Compress output file.",
+                names = {"-z", "--compress"})
+        public Boolean compress = false;
+
+        @Parameter(description = "Approximate limit for memory used by clone accumulators, in megabytes. " +
+                "Accumulators with low counts are spilled to temporary files when the limit is exceeded, and the " +
+                "rest of assembly is performed by windows of clones fitting the limit (0 - no limit). Implies " +
+                "--singlePass.",
+                names = {"--memoryBudget"}, validateWith = PositiveInteger.class)
+        public int memoryBudget = 0;
+
         @Parameter(description = "Report file.",
                 names = {"-r", "--report"})
         public String report;
@@ -32,6 +32,12 @@ import com.milaboratory.mitools.cli.Action;
 import com.milaboratory.mitools.cli.ActionHelpProvider;
 import com.milaboratory.mitools.cli.ActionHelper;
 import com.milaboratory.mitools.cli.ActionParametersParser;
+import com.milaboratory.mixcr.export.ColumnarWriter;
+import com.milaboratory.mixcr.export.ExportWriter;
+import com.milaboratory.mixcr.export.InfoWriter;
+
+import java.io.FileNotFoundException;
+import java.util.List;
 
 public abstract class ActionExport implements Action, ActionHelpProvider, ActionParametersParser {
     public ActionExportParameters parameters;
@@ -61,6 +67,18 @@ public abstract class ActionExport implements Action, ActionHelpProvider, Action
 
     abstract void go0() throws Exception;
 
+    /**
+     * Creates writer for the output file (tab-delimited or binary columnar) with attached field extractors.
+     */
+    @SuppressWarnings("unchecked")
+    <T> ExportWriter<T> createWriter() throws FileNotFoundException {
+        ExportWriter<T> writer = parameters.binary
+                ? new ColumnarWriter<T>(parameters.outputFile)
+                : new InfoWriter<T>(parameters.outputFile);
+        writer.attachInfoProviders((List) parameters.exporters);
+        return writer;
+    }
+
     @Override
     public ActionExportParameters params() {
         return parameters;
@@ -30,12 +30,10 @@ package com.milaboratory.mixcr.cli;
 
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsReader;
-import com.milaboratory.mixcr.export.InfoWriter;
+import com.milaboratory.mixcr.export.ExportWriter;
 import com.milaboratory.mixcr.reference.LociLibraryManager;
 import com.milaboratory.util.SmartProgressReporter;
 
-import java.util.List;
-
 public class ActionExportAlignments extends ActionExport {
     public ActionExportAlignments() {
         super(new ActionExportParameters(VDJCAlignments.class));
@@ -44,12 +42,10 @@ public class ActionExportAlignments extends ActionExport {
     @Override
     public void go0() throws Exception {
         try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(parameters.inputFile, LociLibraryManager.getDefault());
-             InfoWriter<VDJCAlignments> writer = new InfoWriter<>(parameters.outputFile)) {
+             ExportWriter<VDJCAlignments> writer = this.<VDJCAlignments>createWriter()) {
+            reader.setDecodingThreads(parameters.threads);
             SmartProgressReporter.startProgressReport("Exporting alignments", reader);
-            writer.attachInfoProviders((List) parameters.exporters);
-            VDJCAlignments alignments;
-            while ((alignments = reader.take()) != null)
-                writer.put(alignments);
+            writer.putAll(reader, parameters.threads);
         }
     }
 
@@ -29,17 +29,13 @@
 package com.milaboratory.mixcr.cli;
 
 import com.milaboratory.mixcr.basictypes.Clone;
-import com.milaboratory.mixcr.basictypes.CloneSet;
 import com.milaboratory.mixcr.basictypes.CloneSetIO;
-import com.milaboratory.mixcr.export.InfoWriter;
+import com.milaboratory.mixcr.basictypes.MappedCloneSet;
+import com.milaboratory.mixcr.export.ExportWriter;
 import com.milaboratory.mixcr.reference.LociLibraryManager;
-import com.milaboratory.util.CanReportProgressAndStage;
 import com.milaboratory.util.SmartProgressReporter;
 
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
-import java.io.InputStream;
-import java.util.List;
+import java.io.File;
 
 public class ActionExportClones extends ActionExport {
     public ActionExportClones() {
@@ -48,55 +44,27 @@ public class ActionExportClones extends ActionExport {
 
     @Override
     public void go0() throws Exception {
-        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(parameters.inputFile), 65536);
-             InfoWriter<Clone> writer = new InfoWriter<>(parameters.outputFile)) {
-            CloneSet set = CloneSetIO.read(inputStream, LociLibraryManager.getDefault());
-            writer.attachInfoProviders((List) parameters.exporters);
-            ExportClones exportClones = new ExportClones(set, writer);
-            SmartProgressReporter.startProgressReport(exportClones);
-            exportClones.run();
-            writer.close();
-        }
+        File file = new File(parameters.inputFile);
+        // Clones of not compressed files are decoded directly from the memory-mapped file
+        if (CloneSetIO.isMappable(file))
+            try (MappedCloneSet cloneSet = CloneSetIO.openMapped(file, LociLibraryManager.getDefault());
+                 ExportWriter<Clone> writer = this.<Clone>createWriter()) {
+                MappedCloneSet.RangePort clones = cloneSet.createPort(0, cloneSet.size());
+                SmartProgressReporter.startProgressReport("Exporting clones", clones);
+                writer.putAll(clones, parameters.threads);
+                writer.close();
+            }
+        else
+            try (CloneSetIO.ClonesPort clones = CloneSetIO.createPort(file, LociLibraryManager.getDefault());
+                 ExportWriter<Clone> writer = this.<Clone>createWriter()) {
+                SmartProgressReporter.startProgressReport("Exporting clones", clones);
+                writer.putAll(clones, parameters.threads);
+                writer.close();
+            }
     }
 
     @Override
     public String command() {
         return "exportClones";
     }
-
-    private static final class ExportClones implements CanReportProgressAndStage {
-        final CloneSet clones;
-        final InfoWriter<Clone> writer;
-        final int size;
-        volatile int current = 0;
-        final static String stage = "Exporting clones";
-
-        private ExportClones(CloneSet clones, InfoWriter<Clone> writer) {
-            this.clones = clones;
-            this.writer = writer;
-            this.size = clones.size();
-        }
-
-        @Override
-        public String getStage() {
-            return stage;
-        }
-
-        @Override
-        public double getProgress() {
-            return (1.0 * current) / size;
-        }
-
-        @Override
-        public boolean isFinished() {
-            return current == size;
-        }
-
-        void run() {
-            for (Clone clone : clones.getClones()) {
-                writer.put(clone);
-                ++current;
-            }
-        }
-    }
 }
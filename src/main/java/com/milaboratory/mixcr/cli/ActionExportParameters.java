@@ -57,17 +57,22 @@ public final class ActionExportParameters extends ActionParameters {
         description[0].add(FIELDS_SHORT + ", " + FIELDS_LONG);
         description[0].add(PRESET_SHORT + ", " + PRESET_LONG);
         description[0].add(PRESET_FILE_SHORT + ", " + PRESET_FILE_LONG);
+        description[0].add(THREADS_SHORT + ", " + THREADS_LONG);
+        description[0].add(BINARY_SHORT + ", " + BINARY_LONG);
         description[1].add("print this help message");
         description[1].add("print available fields to export");
         description[1].add("preset parameters (full, min)");
         description[1].add("file with preset parameters");
+        description[1].add("number of processing threads");
+        description[1].add("write binary columnar file instead of tab-delimited text");
         this.helpString =
                 "Usage: export(Type) [options] input_file output_file\n" +
                         "Options:\n" +
                         Util.printTwoColumns(4, description[0], description[1], 20, 50, 5, "\n") + "\n" +
                         "Examples:\n" +
                         "    exportClones -p all -nFeature CDR1 input.clns output.txt\n" +
-                        "    exportAlignments -pf params.txt -nFeature CDR1 -dAlignments input.clns output.txt\n";
+                        "    exportAlignments -pf params.txt -nFeature CDR1 -dAlignments input.clns output.txt\n" +
+                        "    exportClones -b -p min input.clns output.cols\n";
         description = FieldExtractors.getDescription(clazz);
         this.fieldsHelpString = "Available export fields:\n" + Util.printTwoColumns(
                 description[0], description[1], 20, 50, 5, "\n");
@@ -78,6 +83,8 @@ public final class ActionExportParameters extends ActionParameters {
     public String inputFile;
     public String outputFile;
     public ArrayList<FieldExtractor> exporters;
+    public int threads = Runtime.getRuntime().availableProcessors();
+    public boolean binary = false;
 
     public String printFieldsHelp() {
         return fieldsHelpString;
@@ -99,6 +106,7 @@ public final class ActionExportParameters extends ActionParameters {
                 return;
             }
         }
+        args = extractOptions(args);
         if (args.length < 2)
             throw new ParameterException("No output file specified.");
 
@@ -225,6 +233,26 @@ public final class ActionExportParameters extends ActionParameters {
         return preset.get(clazz).get(string);
     }
 
+    private String[] extractOptions(String[] args) {
+        List<String> result = new ArrayList<>(args.length);
+        for (int i = 0; i < args.length; ++i)
+            if (args[i].equals(BINARY_SHORT) || args[i].equals(BINARY_LONG))
+                binary = true;
+            else if (args[i].equals(THREADS_SHORT) || args[i].equals(THREADS_LONG)) {
+                if (i == args.length - 1)
+                    throw new ParameterException("Number of threads not specified.");
+                try {
+                    threads = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    throw new ParameterException("Wrong number of threads: " + args[i]);
+                }
+                if (threads <= 0)
+                    throw new ParameterException("Wrong number of threads: " + args[i]);
+            } else
+                result.add(args[i]);
+        return result.toArray(new String[result.size()]);
+    }
+
     private static void trim(String[] args) {
         for (int i = 0; i < args.length; i++)
             args[i] = args[i].trim();
@@ -235,7 +263,11 @@ public final class ActionExportParameters extends ActionParameters {
             PRESET_FILE_SHORT = "-pf",
             PRESET_FILE_LONG = "--presetFile",
             FIELDS_SHORT = "-l",
-            FIELDS_LONG = "--listFields";
+            FIELDS_LONG = "--listFields",
+            THREADS_SHORT = "-t",
+            THREADS_LONG = "--threads",
+            BINARY_SHORT = "-b",
+            BINARY_LONG = "--binary";
 
     public static boolean isPresetParameter(String string) {
         return string.equals(PRESET_SHORT) || string.equals(PRESET_LONG);
@@ -76,6 +76,14 @@ public class ActionPrettyAlignments implements Action {
             long countBefore = actionParameters.limitBefore == null ? Long.MAX_VALUE : actionParameters.limitBefore;
             long countAfter = actionParameters.limitAfter == null ? Long.MAX_VALUE : actionParameters.limitAfter;
             long skipAfter = actionParameters.skipAfter == null ? 0 : actionParameters.skipAfter;
+            if (actionParameters.filter == null && skipAfter > 0 && reader.hasIndex()) {
+                // Without filter skipped alignments may be jumped over using block index
+                long skip = Math.min(Math.min(skipAfter, countBefore), reader.getNumberOfAlignments());
+                reader.seekToAlignment(skip);
+                total = filtered = skip;
+                countBefore -= skip;
+                skipAfter -= skip;
+            }
             for (final VDJCAlignments alignments : CUtils.it(reader)) {
                 if (--countBefore < 0)
                     break;
@@ -28,8 +28,10 @@
  */
 package com.milaboratory.mixcr.cli;
 
+import com.google.common.cache.CacheStats;
 import com.milaboratory.core.io.sequence.SequenceRead;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.vdjaligners.PairedEndReadsLayout;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignerEventListener;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignmentFailCause;
 
@@ -41,6 +43,13 @@ public final class AlignerReport implements VDJCAlignerEventListener, ReportWrit
     private final AtomicLong successes = new AtomicLong(0);
     private final AtomicLong alignedOverlap = new AtomicLong(0);
     private final AtomicLong nonAlignedOverlap = new AtomicLong(0);
+    private final AtomicLong orientationDecided = new AtomicLong(0);
+    private final AtomicLong orientationAmbiguous = new AtomicLong(0);
+    private final AtomicLong alignmentCacheHits = new AtomicLong(0);
+    private final AtomicLong alignmentCacheMisses = new AtomicLong(0);
+    private volatile PairedEndReadsLayout detectedLayout = null;
+    private volatile long layoutCollinearVotes, layoutOppositeVotes;
+    private volatile CacheStats dAlignmentCacheStats = null;
 
     public long getFails(VDJCAlignmentFailCause cause) {
         return fails.get(cause.ordinal());
@@ -70,6 +79,14 @@ public final class AlignerReport implements VDJCAlignerEventListener, ReportWrit
         return nonAlignedOverlap.get();
     }
 
+    public long getOrientationDecided() {
+        return orientationDecided.get();
+    }
+
+    public long getOrientationAmbiguous() {
+        return orientationAmbiguous.get();
+    }
+
     @Override
     public void onFailedAlignment(SequenceRead read, VDJCAlignmentFailCause cause) {
         fails.incrementAndGet(cause.ordinal());
@@ -88,6 +105,49 @@ public final class AlignerReport implements VDJCAlignerEventListener, ReportWrit
             alignedOverlap.incrementAndGet();
     }
 
+    @Override
+    public void onOrientationPreScreen(SequenceRead read, boolean decided) {
+        if (decided)
+            orientationDecided.incrementAndGet();
+        else
+            orientationAmbiguous.incrementAndGet();
+    }
+
+    public long getAlignmentCacheHits() {
+        return alignmentCacheHits.get();
+    }
+
+    public long getAlignmentCacheMisses() {
+        return alignmentCacheMisses.get();
+    }
+
+    @Override
+    public void onAlignmentCacheLookup(boolean hit) {
+        if (hit)
+            alignmentCacheHits.incrementAndGet();
+        else
+            alignmentCacheMisses.incrementAndGet();
+    }
+
+    @Override
+    public void onReadsLayoutDetected(PairedEndReadsLayout layout, long collinearVotes, long oppositeVotes) {
+        this.layoutCollinearVotes = collinearVotes;
+        this.layoutOppositeVotes = oppositeVotes;
+        this.detectedLayout = layout;
+    }
+
+    public CacheStats getDAlignmentCacheStats() {
+        return dAlignmentCacheStats;
+    }
+
+    public void setDAlignmentCacheStats(CacheStats dAlignmentCacheStats) {
+        this.dAlignmentCacheStats = dAlignmentCacheStats;
+    }
+
+    public PairedEndReadsLayout getDetectedLayout() {
+        return detectedLayout;
+    }
+
     @Override
     public void writeReport(ReportHelper helper) {
         long total = getTotal();
@@ -100,6 +160,22 @@ public final class AlignerReport implements VDJCAlignerEventListener, ReportWrit
         helper.writePercentField("Overlapped, percent", alignedOverlap.get() + nonAlignedOverlap.get(), total);
         helper.writePercentField("Overlapped and aligned, percent", alignedOverlap.get(), total);
         helper.writePercentField("Overlapped and not aligned, percent", nonAlignedOverlap.get(), total);
+        long preScreened = orientationDecided.get() + orientationAmbiguous.get();
+        if (preScreened != 0)
+            helper.writePercentField("Strand determined by orientation pre-screen, percent",
+                    orientationDecided.get(), preScreened);
+        long cacheLookups = alignmentCacheHits.get() + alignmentCacheMisses.get();
+        if (cacheLookups != 0) {
+            helper.writeField("V/J/C alignment cache hits", alignmentCacheHits.get());
+            helper.writeField("V/J/C alignment cache misses", alignmentCacheMisses.get());
+            helper.writePercentField("V/J/C alignment cache hits, percent", alignmentCacheHits.get(), cacheLookups);
+        }
+        Util.writeCacheStats(helper, "D alignment", dAlignmentCacheStats);
+        if (detectedLayout != null) {
+            helper.writeField("Detected reads layout", detectedLayout);
+            helper.writePercentField("Sampled reads in opposite layout, percent", layoutOppositeVotes,
+                    layoutCollinearVotes + layoutOppositeVotes);
+        }
     }
 
     public long getTotal() {
@@ -28,6 +28,7 @@
  */
 package com.milaboratory.mixcr.cli;
 
+import com.google.common.cache.CacheStats;
 import com.milaboratory.mixcr.assembler.CloneAccumulator;
 import com.milaboratory.mixcr.assembler.CloneAssemblerListener;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
@@ -46,6 +47,7 @@ public final class CloneAssemblerReport implements CloneAssemblerListener, Repor
     final AtomicLong deferredAlignmentsMapped = new AtomicLong();
     final AtomicInteger clonesClustered = new AtomicInteger();
     final AtomicLong readsClustered = new AtomicLong();
+    CacheStats dAlignmentCacheStats = null;
 
     public long getTotalReads() {
         return totalReads;
@@ -120,6 +122,12 @@ public final class CloneAssemblerReport implements CloneAssemblerListener, Repor
         coreAlignments.incrementAndGet();
     }
 
+    @Override
+    public void onSpilledCloneMerged(CloneAccumulator accumulator, CloneAccumulator duplicate) {
+        // Clone with the same clonal sequence was created again after the first one had been spilled
+        clonesCreated.decrementAndGet();
+    }
+
     @Override
     public void onNoCandidateFoundForDeferredAlignment(VDJCAlignments alignments) {
         deferredAlignmentsDropped.incrementAndGet();
@@ -140,6 +148,14 @@ public final class CloneAssemblerReport implements CloneAssemblerListener, Repor
         this.totalReads = totalReads;
     }
 
+    public CacheStats getDAlignmentCacheStats() {
+        return dAlignmentCacheStats;
+    }
+
+    public void setDAlignmentCacheStats(CacheStats dAlignmentCacheStats) {
+        this.dAlignmentCacheStats = dAlignmentCacheStats;
+    }
+
     @Override
     public void writeReport(ReportHelper helper) {
         if (totalReads == -1)
@@ -167,5 +183,6 @@ public final class CloneAssemblerReport implements CloneAssemblerListener, Repor
                         droppedAsLowQuality.get(), totalReads)
                 .writePercentField("Percent of reads dropped due to failed mapping",
                         deferredAlignmentsDropped.get(), totalReads);
+        Util.writeCacheStats(helper, "D alignment", dAlignmentCacheStats);
     }
 }
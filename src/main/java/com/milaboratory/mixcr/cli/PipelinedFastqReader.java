@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.cli;
+
+import com.milaboratory.core.io.CompressionType;
+import com.milaboratory.core.io.sequence.PairedRead;
+import com.milaboratory.core.io.sequence.SequenceRead;
+import com.milaboratory.core.io.sequence.SequenceReaderCloseable;
+import com.milaboratory.core.io.sequence.SingleRead;
+import com.milaboratory.core.io.sequence.fastq.PairedFastqReader;
+import com.milaboratory.core.io.sequence.fastq.SingleFastqReader;
+import com.milaboratory.mixcr.util.ParallelGzipInputStream;
+import com.milaboratory.util.CanReportProgress;
+import com.milaboratory.util.CountingInputStream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * FASTQ reader with pipelined input: files are decompressed ahead on background threads (gzip members of BGZF files
+ * are inflated in parallel), the reading thread only splits records, and sequences with qualities are parsed lazily
+ * by the threads that process reads. Progress is reported by the amount of consumed (compressed) input.
+ */
+final class PipelinedFastqReader<R extends SequenceRead> implements SequenceReaderCloseable<R>, CanReportProgress {
+    final SequenceReaderCloseable<R> reader;
+    final CountingInputStream[] inputs;
+    final long totalSize;
+    volatile boolean finished = false;
+
+    private PipelinedFastqReader(SequenceReaderCloseable<R> reader, CountingInputStream[] inputs, long totalSize) {
+        this.reader = reader;
+        this.inputs = inputs;
+        this.totalSize = totalSize;
+    }
+
+    @Override
+    public R take() {
+        R read = reader.take();
+        if (read == null)
+            finished = true;
+        return read;
+    }
+
+    @Override
+    public long getNumberOfReads() {
+        return reader.getNumberOfReads();
+    }
+
+    @Override
+    public double getProgress() {
+        if (totalSize == 0)
+            return Double.NaN;
+        long read = 0;
+        for (CountingInputStream input : inputs)
+            read += input.getBytesRead();
+        return 1.0 * read / totalSize;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public void close() {
+        reader.close();
+    }
+
+    static PipelinedFastqReader<SingleRead> open(String fileName, int decompressionThreads) throws IOException {
+        File file = new File(fileName);
+        CountingInputStream input = new CountingInputStream(new FileInputStream(file));
+        return new PipelinedFastqReader<>(createReader(file, input, decompressionThreads),
+                new CountingInputStream[]{input}, file.length());
+    }
+
+    static PipelinedFastqReader<PairedRead> open(String fileName1, String fileName2,
+                                                 int decompressionThreads) throws IOException {
+        File file1 = new File(fileName1), file2 = new File(fileName2);
+        CountingInputStream input1 = new CountingInputStream(new FileInputStream(file1)),
+                input2 = new CountingInputStream(new FileInputStream(file2));
+        PairedFastqReader reader = new PairedFastqReader(
+                createReader(file1, input1, decompressionThreads),
+                createReader(file2, input2, decompressionThreads));
+        return new PipelinedFastqReader<>(reader, new CountingInputStream[]{input1, input2},
+                file1.length() + file2.length());
+    }
+
+    private static SingleFastqReader createReader(File file, InputStream input, int decompressionThreads)
+            throws IOException {
+        CompressionType compressionType = CompressionType.detectCompressionType(file);
+        InputStream decompressed;
+        switch (compressionType) {
+            case GZIP:
+                decompressed = new ParallelGzipInputStream(input, decompressionThreads);
+                break;
+            case None:
+                decompressed = input;
+                break;
+            default:
+                decompressed = compressionType.createInputStream(input, SingleFastqReader.DEFAULT_BUFFER_SIZE);
+        }
+        // Lazy reads: only record boundaries are detected in the reading thread
+        return new SingleFastqReader(decompressed, null, CompressionType.None, true,
+                SingleFastqReader.DEFAULT_BUFFER_SIZE, true);
+    }
+}
@@ -28,6 +28,7 @@
  */
 package com.milaboratory.mixcr.cli;
 
+import com.google.common.cache.CacheStats;
 import com.milaboratory.mixcr.reference.Locus;
 
 import java.io.File;
@@ -106,6 +107,13 @@ public final class Util {
         }
     }
 
+    static void writeCacheStats(ReportHelper helper, String cacheName, CacheStats stats) {
+        if (stats == null || stats.requestCount() == 0)
+            return;
+        helper.writeField(cacheName + " cache hits", stats.hitCount())
+                .writePercentField(cacheName + " cache hits, percent", stats.hitCount(), stats.requestCount())
+                .writeField(cacheName + " cache evictions", stats.evictionCount());
+    }
 
     public static String printTwoColumns(List<String> left, List<String> right, int leftWidth, int rightWidth, int sep) {
         return printTwoColumns(left, right, leftWidth, rightWidth, sep, "");
@@ -31,12 +31,19 @@ package com.milaboratory.mixcr.export;
 public abstract class AbstractField<T> implements Field<T> {
     protected final Class targetType;
     protected final String command, description;
+    protected final ColumnType columnType;
 
     protected AbstractField(Class targetType, String command,
                             String description) {
+        this(targetType, command, description, ColumnType.TEXT);
+    }
+
+    protected AbstractField(Class targetType, String command,
+                            String description, ColumnType columnType) {
         this.targetType = targetType;
         this.command = command;
         this.description = description;
+        this.columnType = columnType;
     }
 
     @Override
@@ -53,4 +60,9 @@ public abstract class AbstractField<T> implements Field<T> {
     public String getDescription() {
         return description;
     }
+
+    @Override
+    public ColumnType getColumnType() {
+        return columnType;
+    }
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.export;
+
+import com.milaboratory.core.sequence.Alphabet;
+import com.milaboratory.core.sequence.Sequence;
+import com.milaboratory.core.sequence.SequenceQuality;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer used to format exported rows without creating intermediate strings. Text is written as ASCII
+ * (strings with other characters are encoded using default charset).
+ */
+public final class ByteSink {
+    byte[] data;
+    int size = 0;
+
+    public ByteSink() {
+        this(256);
+    }
+
+    public ByteSink(int capacity) {
+        this.data = new byte[capacity];
+    }
+
+    private void ensureCapacity(int additional) {
+        if (size + additional > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + additional));
+    }
+
+    public ByteSink append(char c) {
+        ensureCapacity(1);
+        data[size++] = (byte) c;
+        return this;
+    }
+
+    public ByteSink append(String string) {
+        int length = string.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; ++i) {
+            char c = string.charAt(i);
+            if (c >= 128) {
+                byte[] bytes = string.getBytes();
+                ensureCapacity(bytes.length - i);
+                System.arraycopy(bytes, 0, data, size - i, bytes.length);
+                size += bytes.length - i;
+                return this;
+            }
+            data[size++] = (byte) c;
+        }
+        return this;
+    }
+
+    public ByteSink append(long value) {
+        if (value == Long.MIN_VALUE)
+            return append(Long.toString(value));
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10)
+            ++digits;
+        ensureCapacity(digits);
+        for (int i = size + digits - 1; i >= size; --i) {
+            data[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+        return this;
+    }
+
+    /**
+     * Appends value in the same format as {@link String#valueOf(float)}.
+     */
+    public ByteSink append(float value) {
+        // Integer values are formatted without allocations
+        if (value == (long) value && Math.abs(value) < 1.0E7f && !(value == 0 && 1 / value < 0))
+            return append((long) value).append('.').append('0');
+        return append(String.valueOf(value));
+    }
+
+    /**
+     * Appends letters of the sequence.
+     */
+    public ByteSink append(Sequence<?> sequence) {
+        int length = sequence.size();
+        Alphabet<?> alphabet = sequence.getAlphabet();
+        ensureCapacity(length);
+        for (int i = 0; i < length; ++i)
+            data[size++] = (byte) alphabet.symbolFromCode(sequence.codeAt(i));
+        return this;
+    }
+
+    /**
+     * Appends quality in Phred+33 format (the same as {@link SequenceQuality#toString()}).
+     */
+    public ByteSink append(SequenceQuality quality) {
+        int length = quality.size();
+        ensureCapacity(length);
+        for (int i = 0; i < length; ++i)
+            data[size++] = (byte) (quality.value(i) + 33);
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    public void writeTo(OutputStream output) throws IOException {
+        output.write(data, 0, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(data, 0, size);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.export;
+
+import cc.redberry.pipe.OutputPort;
+import cc.redberry.pipe.Processor;
+import cc.redberry.pipe.blocks.ParallelProcessor;
+import cc.redberry.pipe.util.Indexer;
+import cc.redberry.pipe.util.OrderedOutputPort;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Processes objects in chunks of {@link #CHUNK_SIZE} by several threads, results are returned in the original order
+ * of chunks. Used by export writers to format rows in parallel.
+ */
+final class ChunkedProcessing {
+    // Number of objects processed by one thread at a time
+    static final int CHUNK_SIZE = 1024;
+
+    private ChunkedProcessing() {
+    }
+
+    /**
+     * Port is accessed from different threads, but never concurrently.
+     *
+     * @param port      objects
+     * @param processor processes a chunk of objects
+     * @param threads   number of processing threads
+     * @return results of processing of consecutive chunks
+     */
+    static <T, R> OutputPort<R> process(OutputPort<? extends T> port, final Processor<List<T>, R> processor,
+                                        int threads) {
+        OutputPort<Chunk<T, R>> processed = new ParallelProcessor<>(new ChunkingPort<T, R>(port),
+                new Processor<Chunk<T, R>, Chunk<T, R>>() {
+                    @Override
+                    public Chunk<T, R> process(Chunk<T, R> chunk) {
+                        chunk.result = processor.process(chunk.objects);
+                        chunk.objects = null;
+                        return chunk;
+                    }
+                }, threads);
+        final OrderedOutputPort<Chunk<T, R>> ordered = new OrderedOutputPort<>(processed,
+                new Indexer<Chunk<T, R>>() {
+                    @Override
+                    public long getIndex(Chunk<T, R> o) {
+                        return o.index;
+                    }
+                });
+        return new OutputPort<R>() {
+            @Override
+            public R take() {
+                Chunk<T, R> chunk = ordered.take();
+                return chunk == null ? null : chunk.result;
+            }
+        };
+    }
+
+    private static final class Chunk<T, R> {
+        final long index;
+        List<T> objects;
+        R result;
+
+        Chunk(long index, List<T> objects) {
+            this.index = index;
+            this.objects = objects;
+        }
+    }
+
+    /**
+     * Splits objects into indexed chunks.
+     */
+    private static final class ChunkingPort<T, R> implements OutputPort<Chunk<T, R>> {
+        final OutputPort<? extends T> port;
+        long index = 0;
+
+        ChunkingPort(OutputPort<? extends T> port) {
+            this.port = port;
+        }
+
+        @Override
+        public synchronized Chunk<T, R> take() {
+            List<T> objects = new ArrayList<>(CHUNK_SIZE);
+            T t;
+            while (objects.size() < CHUNK_SIZE && (t = port.take()) != null)
+                objects.add(t);
+            if (objects.isEmpty())
+                return null;
+            return new Chunk<>(index++, objects);
+        }
+    }
+}
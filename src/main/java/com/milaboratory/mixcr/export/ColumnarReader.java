@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.export;
+
+import com.milaboratory.mixcr.util.BlockCompression;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads files written by {@link ColumnarWriter}. Only chunks of requested columns are loaded from disk.
+ */
+public final class ColumnarReader implements AutoCloseable {
+    final RandomAccessFile file;
+    final String[] headers, commands;
+    final ColumnType[] types;
+    final String[][] dictionaries;
+    // Number of rows and file positions of column chunks for each row group
+    final List<Integer> groupRows = new ArrayList<>();
+    final List<long[]> chunkPositions = new ArrayList<>();
+    final long numberOfRows;
+
+    public ColumnarReader(String fileName) throws IOException {
+        this(new File(fileName));
+    }
+
+    public ColumnarReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        boolean ok = false;
+        try {
+            byte[] magic = new byte[ColumnarWriter.MAGIC_LENGTH];
+            this.file.readFully(magic);
+            if (!Arrays.equals(magic, ColumnarWriter.MAGIC_BYTES))
+                throw new RuntimeException("Unsupported file format; .cols file of version " + new String(magic) +
+                        " while you are running MiXCR " + ColumnarWriter.MAGIC);
+
+            int columns = this.file.readInt();
+            headers = new String[columns];
+            commands = new String[columns];
+            types = new ColumnType[columns];
+            for (int i = 0; i < columns; ++i) {
+                headers[i] = this.file.readUTF();
+                commands[i] = this.file.readUTF();
+                types[i] = ColumnType.values()[this.file.readByte()];
+            }
+
+            int rows;
+            while ((rows = this.file.readInt()) != 0) {
+                long[] positions = new long[columns];
+                for (int i = 0; i < columns; ++i) {
+                    positions[i] = this.file.getFilePointer();
+                    int storedSize = this.file.readInt();
+                    int headerSize = this.file.readInt() == -1 ? 8 : 12;
+                    this.file.seek(positions[i] + headerSize + storedSize);
+                }
+                groupRows.add(rows);
+                chunkPositions.add(positions);
+            }
+
+            numberOfRows = this.file.readLong();
+            dictionaries = new String[columns][];
+            for (int i = 0; i < columns; ++i)
+                if (types[i] == ColumnType.DICTIONARY) {
+                    dictionaries[i] = new String[this.file.readInt()];
+                    for (int j = 0; j < dictionaries[i].length; ++j)
+                        dictionaries[i][j] = this.file.readUTF();
+                }
+            ok = true;
+        } finally {
+            if (!ok)
+                this.file.close();
+        }
+    }
+
+    public int getNumberOfColumns() {
+        return headers.length;
+    }
+
+    public String getHeader(int column) {
+        return headers[column];
+    }
+
+    /**
+     * Returns export field command (e.g. "-vHit") used to create the column.
+     */
+    public String getCommand(int column) {
+        return commands[column];
+    }
+
+    public ColumnType getColumnType(int column) {
+        return types[column];
+    }
+
+    /**
+     * Returns index of the column with specified header or -1 if there is no such column.
+     */
+    public int getColumnIndex(String header) {
+        for (int i = 0; i < headers.length; ++i)
+            if (headers[i].equals(header))
+                return i;
+        return -1;
+    }
+
+    /**
+     * Returns all distinct values of DICTIONARY column.
+     */
+    public String[] getDictionary(int column) {
+        if (types[column] != ColumnType.DICTIONARY)
+            throw new IllegalArgumentException("Not a dictionary column.");
+        return dictionaries[column].clone();
+    }
+
+    public long getNumberOfRows() {
+        return numberOfRows;
+    }
+
+    public int getNumberOfRowGroups() {
+        return groupRows.size();
+    }
+
+    public int getNumberOfRows(int rowGroup) {
+        return groupRows.get(rowGroup);
+    }
+
+    /**
+     * Reads all values of the column. Values are Long (INTEGER), Double (REAL) or String (DICTIONARY and TEXT)
+     * objects; empty values of non-text columns are null, empty values of text columns are empty strings.
+     */
+    public Object[] readColumn(int column) throws IOException {
+        if (numberOfRows > Integer.MAX_VALUE)
+            throw new IllegalStateException("Too many rows, read column by row groups.");
+        Object[] result = new Object[(int) numberOfRows];
+        int offset = 0;
+        for (int i = 0; i < groupRows.size(); ++i) {
+            Object[] values = readColumn(column, i);
+            System.arraycopy(values, 0, result, offset, values.length);
+            offset += values.length;
+        }
+        return result;
+    }
+
+    /**
+     * Reads values of the column from the row group.
+     *
+     * @see #readColumn(int)
+     */
+    public synchronized Object[] readColumn(int column, int rowGroup) throws IOException {
+        int rows = groupRows.get(rowGroup);
+        file.seek(chunkPositions.get(rowGroup)[column]);
+        byte[] data = new byte[file.readInt()];
+        int rawSize = file.readInt();
+        if (rawSize == -1)
+            file.readFully(data);
+        else {
+            int checksum = file.readInt();
+            file.readFully(data);
+            data = BlockCompression.decompress(data, rawSize, checksum);
+        }
+
+        int presenceSize = (rows + 7) >> 3;
+        ByteBuffer buffer = ByteBuffer.wrap(data, presenceSize, data.length - presenceSize);
+        Object[] result = new Object[rows];
+        for (int i = 0; i < rows; ++i) {
+            if ((data[i >> 3] & (1 << (i & 7))) == 0) {
+                if (types[column] == ColumnType.TEXT)
+                    result[i] = "";
+                continue;
+            }
+            switch (types[column]) {
+                case INTEGER:
+                    result[i] = ColumnarIO.unZigZag(ColumnarIO.readVarLong(buffer));
+                    break;
+                case REAL:
+                    result[i] = buffer.getDouble();
+                    break;
+                case DICTIONARY:
+                    result[i] = dictionaries[column][(int) ColumnarIO.readVarLong(buffer)];
+                    break;
+                case TEXT:
+                    byte[] bytes = new byte[(int) ColumnarIO.readVarLong(buffer)];
+                    buffer.get(bytes);
+                    result[i] = new String(bytes);
+                    break;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.export;
+
+import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPort;
+import cc.redberry.pipe.Processor;
+import com.milaboratory.mixcr.util.BlockCompression;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Writes exported fields in binary columnar format. Rows are grouped in row groups of {@link #ROW_GROUP_SIZE} rows,
+ * each row group contains one chunk per column, so a reader can load only required columns (see {@link
+ * ColumnarReader}). Column storage is determined by {@link Field#getColumnType()}.
+ *
+ * <p>File layout:</p>
+ * <pre>
+ * magic ("MiXCR.COLS.V01")
+ * int number of columns; for each column: UTF header, UTF command, byte column type
+ * row groups: int number of rows (&gt; 0); for each column: chunk frame
+ * int 0
+ * long total number of rows
+ * for each DICTIONARY column: int size, UTF values
+ * </pre>
+ *
+ * Chunk frame is: int stored size, int raw size (-1 for uncompressed chunks), int checksum (compressed chunks only)
+ * and data. Raw chunk data is a bitmap of present (non-empty) values followed by values of present rows. Empty values
+ * of all column types are stored only as absent bits.
+ */
+public final class ColumnarWriter<T> implements ExportWriter<T> {
+    public static final String MAGIC = "MiXCR.COLS.V01";
+    static final int MAGIC_LENGTH = 14;
+    static final byte[] MAGIC_BYTES = MAGIC.getBytes();
+    public static final int ROW_GROUP_SIZE = 1 << 16;
+
+    final ArrayList<AbstractFieldExtractor<? super T>> fieldExtractors = new ArrayList<>();
+    final DataOutputStream output;
+    final int rowGroupSize;
+    final ByteSink value = new ByteSink();
+    List<ColumnBuffer> columns;
+    int rows = 0;
+    long totalRows = 0;
+    boolean closed = false;
+
+    public ColumnarWriter(String file) throws FileNotFoundException {
+        this(new BufferedOutputStream(new FileOutputStream(new File(file)), 65536));
+    }
+
+    public ColumnarWriter(OutputStream outputStream) {
+        this(outputStream, ROW_GROUP_SIZE);
+    }
+
+    public ColumnarWriter(OutputStream outputStream, int rowGroupSize) {
+        this.output = new DataOutputStream(outputStream);
+        this.rowGroupSize = rowGroupSize;
+    }
+
+    @Override
+    public void attachInfoProvider(AbstractFieldExtractor<? super T> provider) {
+        if (columns != null)
+            throw new IllegalStateException("Header already written.");
+        fieldExtractors.add(provider);
+    }
+
+    @Override
+    public void attachInfoProviders(List<AbstractFieldExtractor<? super T>> providers) {
+        for (AbstractFieldExtractor<? super T> provider : providers)
+            attachInfoProvider(provider);
+    }
+
+    private void ensureInitialized() {
+        if (columns != null)
+            return;
+        columns = new ArrayList<>(fieldExtractors.size());
+        try {
+            output.write(MAGIC_BYTES);
+            output.writeInt(fieldExtractors.size());
+            for (AbstractFieldExtractor<? super T> extractor : fieldExtractors) {
+                ColumnType type = extractor.getDescriptor().getColumnType();
+                output.writeUTF(extractor.getHeader());
+                output.writeUTF(extractor.getDescriptor().getCommand());
+                output.writeByte(type.ordinal());
+                columns.add(new ColumnBuffer(type, extractor.getHeader()));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void put(T t) {
+        ensureInitialized();
+        for (int i = 0; i < fieldExtractors.size(); ++i) {
+            value.reset();
+            appendValue(t, i, value);
+            columns.get(i).add(rows, value.data, 0, value.size);
+        }
+        if (++rows == rowGroupSize)
+            flushRowGroup();
+    }
+
+    /**
+     * Writes all objects from the port. Values are formatted by several threads (in chunks of {@link
+     * ChunkedProcessing#CHUNK_SIZE} objects, the same way as in {@link InfoWriter}), rows are encoded into columns in
+     * the calling thread in the original order of objects.
+     *
+     * @param port    objects
+     * @param threads number of formatting threads
+     */
+    @Override
+    public void putAll(OutputPort<? extends T> port, int threads) {
+        if (threads == 1 || fieldExtractors.isEmpty()) {
+            for (T t : CUtils.it(port))
+                put(t);
+            return;
+        }
+
+        ensureInitialized();
+        final int numberOfColumns = fieldExtractors.size();
+        OutputPort<ChunkValues> formatted = ChunkedProcessing.process(port, new Processor<List<T>, ChunkValues>() {
+            @Override
+            public ChunkValues process(List<T> objects) {
+                ChunkValues values = new ChunkValues(objects.size() * numberOfColumns);
+                int k = 0;
+                for (T t : objects)
+                    for (int i = 0; i < numberOfColumns; ++i) {
+                        appendValue(t, i, values.data);
+                        values.ends[k++] = values.data.size;
+                    }
+                return values;
+            }
+        }, threads);
+
+        for (ChunkValues values : CUtils.it(formatted)) {
+            int from = 0;
+            for (int k = 0; k < values.ends.length; ) {
+                for (int i = 0; i < numberOfColumns; ++i) {
+                    int to = values.ends[k++];
+                    columns.get(i).add(rows, values.data.data, from, to);
+                    from = to;
+                }
+                if (++rows == rowGroupSize)
+                    flushRowGroup();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void appendValue(T t, int column, ByteSink sink) {
+        AbstractFieldExtractor<? super T> extractor = fieldExtractors.get(column);
+        if (extractor instanceof ByteFieldExtractor)
+            ((ByteFieldExtractor<T>) extractor).appendTo(t, sink);
+        else
+            sink.append(extractor.extractValue(t));
+    }
+
+    private void flushRowGroup() {
+        if (rows == 0)
+            return;
+        try {
+            output.writeInt(rows);
+            for (ColumnBuffer column : columns)
+                column.flush(rows, output);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        totalRows += rows;
+        rows = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        ensureInitialized();
+        flushRowGroup();
+        output.writeInt(0);
+        output.writeLong(totalRows);
+        for (ColumnBuffer column : columns)
+            if (column.type == ColumnType.DICTIONARY) {
+                output.writeInt(column.dictionaryValues.size());
+                for (String v : column.dictionaryValues)
+                    output.writeUTF(v);
+            }
+        output.close();
+    }
+
+    /**
+     * Values of a chunk of rows formatted to a single buffer, row by row.
+     */
+    private static final class ChunkValues {
+        final ByteSink data;
+        // End offsets of values in data
+        final int[] ends;
+
+        ChunkValues(int numberOfValues) {
+            this.data = new ByteSink(16 * numberOfValues);
+            this.ends = new int[numberOfValues];
+        }
+    }
+
+    private static final class ColumnBuffer {
+        final ColumnType type;
+        final String header;
+        final ByteArrayOutputStream valuesBuffer = new ByteArrayOutputStream();
+        final DataOutputStream values = new DataOutputStream(valuesBuffer);
+        final HashMap<String, Integer> dictionary;
+        final ArrayList<String> dictionaryValues;
+        byte[] presence = new byte[1024];
+
+        ColumnBuffer(ColumnType type, String header) {
+            this.type = type;
+            this.header = header;
+            if (type == ColumnType.DICTIONARY) {
+                this.dictionary = new HashMap<>();
+                this.dictionaryValues = new ArrayList<>();
+            } else {
+                this.dictionary = null;
+                this.dictionaryValues = null;
+            }
+        }
+
+        void add(int row, byte[] data, int from, int to) {
+            if (presence.length <= row >> 3)
+                presence = Arrays.copyOf(presence, presence.length * 2);
+            if (from == to)
+                return;
+            presence[row >> 3] |= 1 << (row & 7);
+            try {
+                switch (type) {
+                    case INTEGER:
+                        ColumnarIO.writeVarLong(values, ColumnarIO.zigZag(parseLong(data, from, to)));
+                        break;
+                    case REAL:
+                        values.writeDouble(Double.parseDouble(new String(data, from, to - from)));
+                        break;
+                    case DICTIONARY:
+                        String string = new String(data, from, to - from);
+                        Integer index = dictionary.get(string);
+                        if (index == null) {
+                            dictionary.put(string, index = dictionaryValues.size());
+                            dictionaryValues.add(string);
+                        }
+                        ColumnarIO.writeVarLong(values, index);
+                        break;
+                    case TEXT:
+                        ColumnarIO.writeVarLong(values, to - from);
+                        values.write(data, from, to - from);
+                        break;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Wrong value in column \"" + header + "\": "
+                        + new String(data, from, to - from), e);
+            }
+        }
+
+        private static long parseLong(byte[] data, int from, int to) {
+            int i = from;
+            boolean negative = data[from] == '-';
+            if (negative)
+                ++i;
+            if (i == to)
+                throw new NumberFormatException();
+            long result = 0;
+            for (; i < to; ++i) {
+                int digit = data[i] - '0';
+                if (digit < 0 || digit > 9)
+                    throw new NumberFormatException();
+                result = result * 10 + digit;
+            }
+            return negative ? -result : result;
+        }
+
+        void flush(int rows, DataOutputStream output) throws IOException {
+            int presenceSize = (rows + 7) >> 3;
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream(presenceSize + valuesBuffer.size());
+            chunk.write(presence, 0, presenceSize);
+            valuesBuffer.writeTo(chunk);
+            byte[] raw = chunk.toByteArray();
+            if (type == ColumnType.TEXT) {
+                BlockCompression.CompressedBlock compressed = BlockCompression.compress(raw, 0, raw.length);
+                output.writeInt(compressed.data.length);
+                output.writeInt(compressed.rawSize);
+                output.writeInt(compressed.checksum);
+                output.write(compressed.data);
+            } else {
+                output.writeInt(raw.length);
+                output.writeInt(-1);
+                output.write(raw);
+            }
+            Arrays.fill(presence, 0, presenceSize, (byte) 0);
+            valuesBuffer.reset();
+        }
+    }
+}
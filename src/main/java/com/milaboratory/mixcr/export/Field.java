@@ -35,5 +35,10 @@ public interface Field<T> {
 
     String getDescription();
 
+    /**
+     * Type of extracted values, used by binary columnar export.
+     */
+    ColumnType getColumnType();
+
     FieldExtractor<T> create(String[] args);
 }
@@ -47,7 +47,13 @@ import java.util.List;
 
 public final class FieldExtractors {
     private static final String NULL = "";
-    private static final DecimalFormat SCORE_FORMAT = new DecimalFormat("#.#");
+    // DecimalFormat is not thread-safe, and rows may be formatted in parallel
+    private static final ThreadLocal<DecimalFormat> SCORE_FORMAT = new ThreadLocal<DecimalFormat>() {
+        @Override
+        protected DecimalFormat initialValue() {
+            return new DecimalFormat("#.#");
+        }
+    };
 
     static Field[] descriptors = null;
 
@@ -56,18 +62,24 @@ public final class FieldExtractors {
             List<Field> desctiptorsList = new ArrayList<>();
 
             // Number of targets
-            desctiptorsList.add(new PL_O("-targets", "Export number of targets", "Number of targets") {
+            desctiptorsList.add(new PL_O("-targets", "Export number of targets", "Number of targets",
+                    ColumnType.INTEGER) {
                 @Override
                 protected String extract(VDJCObject object) {
                     return Integer.toString(object.numberOfTargets());
                 }
+
+                @Override
+                protected void extract(VDJCObject object, ByteSink sink) {
+                    sink.append(object.numberOfTargets());
+                }
             });
 
             // Best hits, segment name
             for (final GeneType type : GeneType.values()) {
                 char l = type.getLetter();
                 desctiptorsList.add(new PL_O("-" + Character.toLowerCase(l) + "Hit",
-                        "Export best " + l + " hit", "Best " + l + " hit") {
+                        "Export best " + l + " hit", "Best " + l + " hit", ColumnType.DICTIONARY) {
                     @Override
                     protected String extract(VDJCObject object) {
                         VDJCHit bestHit = object.getBestHit(type);
@@ -75,6 +87,13 @@ public final class FieldExtractors {
                             return NULL;
                         return bestHit.getAllele().getName();
                     }
+
+                    @Override
+                    protected void extract(VDJCObject object, ByteSink sink) {
+                        VDJCHit bestHit = object.getBestHit(type);
+                        if (bestHit != null)
+                            sink.append(bestHit.getAllele().getName());
+                    }
                 });
             }
 
@@ -82,7 +101,7 @@ public final class FieldExtractors {
             for (final GeneType type : GeneType.values()) {
                 char l = type.getLetter();
                 desctiptorsList.add(new PL_O("-" + Character.toLowerCase(l) + "HitScore",
-                        "Export best score for best " + l + " hit", "Best " + l + " hit score") {
+                        "Export best score for best " + l + " hit", "Best " + l + " hit score", ColumnType.REAL) {
                     @Override
                     protected String extract(VDJCObject object) {
                         VDJCHit bestHit = object.getBestHit(type);
@@ -90,6 +109,13 @@ public final class FieldExtractors {
                             return NULL;
                         return String.valueOf(bestHit.getScore());
                     }
+
+                    @Override
+                    protected void extract(VDJCObject object, ByteSink sink) {
+                        VDJCHit bestHit = object.getBestHit(type);
+                        if (bestHit != null)
+                            sink.append(bestHit.getScore());
+                    }
                 });
             }
 
@@ -108,7 +134,7 @@ public final class FieldExtractors {
                         StringBuilder sb = new StringBuilder();
                         for (int i = 0; ; i++) {
                             sb.append(hits[i].getAllele().getName())
-                                    .append("(").append(SCORE_FORMAT.format(hits[i].getScore()))
+                                    .append("(").append(SCORE_FORMAT.get().format(hits[i].getScore()))
                                     .append(")");
                             if (i == hits.length - 1)
                                 break;
@@ -116,6 +142,24 @@ public final class FieldExtractors {
                         }
                         return sb.toString();
                     }
+
+                    @Override
+                    protected void extract(VDJCObject object, ByteSink sink) {
+                        VDJCHit[] hits = object.getHits(type);
+                        if (hits == null)
+                            return;
+                        for (int i = 0; i < hits.length; i++) {
+                            if (i != 0)
+                                sink.append(',');
+                            sink.append(hits[i].getAllele().getName()).append('(');
+                            float score = hits[i].getScore();
+                            if (score == (long) score && !(score == 0 && 1 / score < 0))
+                                sink.append((long) score);
+                            else
+                                sink.append(SCORE_FORMAT.get().format(score));
+                            sink.append(')');
+                        }
+                    }
                 });
             }
 
@@ -182,6 +226,11 @@ public final class FieldExtractors {
                     public String convert(NSequenceWithQuality seq) {
                         return seq.getSequence().toString();
                     }
+
+                    @Override
+                    public void convert(NSequenceWithQuality seq, ByteSink sink) {
+                        sink.append(seq.getSequence());
+                    }
                 });
 
                 desctiptorsList.add(new FeatureExtractorDescriptor("-qFeature", "Export quality string of specified gene feature", "Qual.") {
@@ -189,6 +238,11 @@ public final class FieldExtractors {
                     public String convert(NSequenceWithQuality seq) {
                         return seq.getQuality().toString();
                     }
+
+                    @Override
+                    public void convert(NSequenceWithQuality seq, ByteSink sink) {
+                        sink.append(seq.getQuality());
+                    }
                 });
 
                 desctiptorsList.add(new FeatureExtractorDescriptor("-aaFeature", "Export amino acid sequence of specified gene feature", "AA. seq.") {
@@ -198,25 +252,38 @@ public final class FieldExtractors {
                     }
                 });
 
-                desctiptorsList.add(new FeatureExtractorDescriptor("-minFeatureQuality", "Export minimal quality of specified gene feature", "Min. qual.") {
+                desctiptorsList.add(new FeatureExtractorDescriptor("-minFeatureQuality", "Export minimal quality of specified gene feature", "Min. qual.",
+                        ColumnType.INTEGER) {
                     @Override
                     public String convert(NSequenceWithQuality seq) {
                         return "" + seq.getQuality().minValue();
                     }
+
+                    @Override
+                    public void convert(NSequenceWithQuality seq, ByteSink sink) {
+                        sink.append(seq.getQuality().minValue());
+                    }
                 });
 
-                desctiptorsList.add(new FeatureExtractorDescriptor("-avrgFeatureQuality", "Export average quality of specified gene feature", "Avrg. qual.") {
+                desctiptorsList.add(new FeatureExtractorDescriptor("-avrgFeatureQuality", "Export average quality of specified gene feature", "Avrg. qual.",
+                        ColumnType.REAL) {
                     @Override
                     public String convert(NSequenceWithQuality seq) {
                         return "" + seq.getQuality().meanValue();
                     }
                 });
 
-                desctiptorsList.add(new PL_A("-readId", "Export number of read corresponding to alignment", "Read id") {
+                desctiptorsList.add(new PL_A("-readId", "Export number of read corresponding to alignment", "Read id",
+                        ColumnType.INTEGER) {
                     @Override
                     protected String extract(VDJCAlignments object) {
                         return "" + object.getReadId();
                     }
+
+                    @Override
+                    protected void extract(VDJCAlignments object, ByteSink sink) {
+                        sink.append(object.getReadId());
+                    }
                 });
 
                 desctiptorsList.add(new ExtractSequence(VDJCAlignments.class, "-sequence",
@@ -227,14 +294,19 @@ public final class FieldExtractors {
                         "Export initial read quality, or 2 qualities in case of paired-end reads",
                         "Read(s) sequence qualities"));
 
-                desctiptorsList.add(new PL_C("-count", "Export clone count", "Clone count") {
+                desctiptorsList.add(new PL_C("-count", "Export clone count", "Clone count", ColumnType.INTEGER) {
                     @Override
                     protected String extract(Clone object) {
                         return "" + object.getCount();
                     }
+
+                    @Override
+                    protected void extract(Clone object, ByteSink sink) {
+                        sink.append(object.getCount());
+                    }
                 });
 
-                desctiptorsList.add(new PL_C("-fraction", "Export clone fraction", "Clone fraction") {
+                desctiptorsList.add(new PL_C("-fraction", "Export clone fraction", "Clone fraction", ColumnType.REAL) {
                     @Override
                     protected String extract(Clone object) {
                         return "" + object.getFraction();
@@ -252,40 +324,40 @@ public final class FieldExtractors {
             }
 
             // V, D and J coordinates in respect to CDR3 region
-            desctiptorsList.add(new PL_O("-vEnd",
+            desctiptorsList.add(new ExtractCoordinate("-vEnd",
                     "Export coordinate of last V segment nucleotide in respect to CDR3 region", "V end") {
                 @Override
-                protected String extract(VDJCObject object) {
+                protected int coordinate(VDJCObject object) {
                     Range range = object.getRelativeRange(GeneFeature.CDR3, GeneFeature.VCDR3Part);
 
-                    return Integer.toString(range == null ? -1 : range.getUpper() - 1);
+                    return range == null ? -1 : range.getUpper() - 1;
                 }
             });
-            desctiptorsList.add(new PL_O("-dStart",
+            desctiptorsList.add(new ExtractCoordinate("-dStart",
                     "Export coordinate of first D segment nucleotide in respect to CDR3 region", "D start") {
                 @Override
-                protected String extract(VDJCObject object) {
+                protected int coordinate(VDJCObject object) {
                     Range range = object.getRelativeRange(GeneFeature.CDR3, GeneFeature.DCDR3Part);
 
-                    return Integer.toString(range == null ? -1 : range.getLower());
+                    return range == null ? -1 : range.getLower();
                 }
             });
-            desctiptorsList.add(new PL_O("-dEnd",
+            desctiptorsList.add(new ExtractCoordinate("-dEnd",
                     "Export coordinate of last D segment nucleotide in respect to CDR3 region", "D end") {
                 @Override
-                protected String extract(VDJCObject object) {
+                protected int coordinate(VDJCObject object) {
                     Range range = object.getRelativeRange(GeneFeature.CDR3, GeneFeature.DCDR3Part);
 
-                    return Integer.toString(range == null ? -1 : range.getUpper() - 1);
+                    return range == null ? -1 : range.getUpper() - 1;
                 }
             });
-            desctiptorsList.add(new PL_O("-jStart",
+            desctiptorsList.add(new ExtractCoordinate("-jStart",
                     "Export coordinate of first J segment nucleotide in respect to CDR3 region", "J start") {
                 @Override
-                protected String extract(VDJCObject object) {
+                protected int coordinate(VDJCObject object) {
                     Range range = object.getRelativeRange(GeneFeature.CDR3, GeneFeature.JCDR3Part);
 
-                    return Integer.toString(range == null ? -1 : range.getLower());
+                    return range == null ? -1 : range.getLower();
                 }
             });
 
@@ -318,31 +390,70 @@ public final class FieldExtractors {
         PL_O(String command, String description, String header) {
             super(VDJCObject.class, command, description, header);
         }
+
+        PL_O(String command, String description, String header, ColumnType columnType) {
+            super(VDJCObject.class, command, description, header, columnType);
+        }
     }
 
     static abstract class PL_A extends FieldParameterless<VDJCAlignments> {
         PL_A(String command, String description, String header) {
             super(VDJCAlignments.class, command, description, header);
         }
+
+        PL_A(String command, String description, String header, ColumnType columnType) {
+            super(VDJCAlignments.class, command, description, header, columnType);
+        }
     }
 
     static abstract class PL_C extends FieldParameterless<Clone> {
         PL_C(String command, String description, String header) {
             super(Clone.class, command, description, header);
         }
+
+        PL_C(String command, String description, String header, ColumnType columnType) {
+            super(Clone.class, command, description, header, columnType);
+        }
     }
 
     static abstract class WP_O<P> extends FieldWithParameters<VDJCObject, P> {
         protected WP_O(String command, String description) {
             super(VDJCObject.class, command, description);
         }
+
+        protected WP_O(String command, String description, ColumnType columnType) {
+            super(VDJCObject.class, command, description, columnType);
+        }
+    }
+
+    private static abstract class ExtractCoordinate extends PL_O {
+        ExtractCoordinate(String command, String description, String header) {
+            super(command, description, header, ColumnType.INTEGER);
+        }
+
+        protected abstract int coordinate(VDJCObject object);
+
+        @Override
+        protected String extract(VDJCObject object) {
+            return Integer.toString(coordinate(object));
+        }
+
+        @Override
+        protected void extract(VDJCObject object, ByteSink sink) {
+            sink.append(coordinate(object));
+        }
     }
 
     private static abstract class FeatureExtractorDescriptor extends WP_O<GeneFeature> {
         final String prefix;
 
         protected FeatureExtractorDescriptor(String command, String description, String prefix) {
-            super(command, description);
+            this(command, description, prefix, ColumnType.TEXT);
+        }
+
+        protected FeatureExtractorDescriptor(String command, String description, String prefix,
+                                             ColumnType columnType) {
+            super(command, description, columnType);
             this.prefix = prefix;
         }
 
@@ -366,7 +477,18 @@ public final class FieldExtractors {
             return convert(feature);
         }
 
+        @Override
+        protected void appendValue(VDJCObject object, GeneFeature parameters, ByteSink sink) {
+            NSequenceWithQuality feature = object.getFeature(parameters);
+            if (feature != null)
+                convert(feature, sink);
+        }
+
         public abstract String convert(NSequenceWithQuality seq);
+
+        public void convert(NSequenceWithQuality seq, ByteSink sink) {
+            sink.append(convert(seq));
+        }
     }
 
     private static class ExtractSequence extends FieldParameterless<VDJCObject> {
@@ -385,6 +507,15 @@ public final class FieldExtractors {
             }
             return sb.toString();
         }
+
+        @Override
+        protected void extract(VDJCObject object, ByteSink sink) {
+            for (int i = 0; i < object.numberOfTargets(); i++) {
+                if (i != 0)
+                    sink.append(',');
+                sink.append(object.getTarget(i).getSequence());
+            }
+        }
     }
 
     private static class ExtractSequenceQaulity extends FieldParameterless<VDJCObject> {
@@ -403,5 +534,14 @@ public final class FieldExtractors {
             }
             return sb.toString();
         }
+
+        @Override
+        protected void extract(VDJCObject object, ByteSink sink) {
+            for (int i = 0; i < object.numberOfTargets(); i++) {
+                if (i != 0)
+                    sink.append(',');
+                sink.append(object.getTarget(i).getQuality());
+            }
+        }
     }
 }
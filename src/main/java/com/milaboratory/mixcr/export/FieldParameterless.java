@@ -33,19 +33,43 @@ public abstract class FieldParameterless<T> extends AbstractField<T> {
 
     protected FieldParameterless(Class targetType, String command,
                                  String description, String header) {
-        super(targetType, command, description);
+        this(targetType, command, description, header, ColumnType.TEXT);
+    }
+
+    protected FieldParameterless(Class targetType, String command,
+                                 String description, String header, ColumnType columnType) {
+        super(targetType, command, description, columnType);
         this.header = header;
     }
 
     protected abstract String extract(T object);
 
+    /**
+     * Writes the same value as {@link #extract(Object)} to the sink. Override to avoid creation of intermediate
+     * strings.
+     */
+    protected void extract(T object, ByteSink sink) {
+        sink.append(extract(object));
+    }
+
     @Override
     public FieldExtractor<T> create(String[] args) {
-        return new AbstractFieldExtractor<T>(header, this) {
-            @Override
-            public String extractValue(T object) {
-                return extract(object);
-            }
-        };
+        return new ByteExtractor();
+    }
+
+    private final class ByteExtractor extends AbstractFieldExtractor<T> implements ByteFieldExtractor<T> {
+        ByteExtractor() {
+            super(FieldParameterless.this.header, FieldParameterless.this);
+        }
+
+        @Override
+        public String extractValue(T object) {
+            return extract(object);
+        }
+
+        @Override
+        public void appendTo(T object, ByteSink sink) {
+            extract(object, sink);
+        }
     }
 }
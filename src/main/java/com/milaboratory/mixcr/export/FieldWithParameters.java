@@ -33,21 +33,46 @@ public abstract class FieldWithParameters<T, P> extends AbstractField<T> {
         super(targetType, command, description);
     }
 
+    public FieldWithParameters(Class targetType, String command, String description, ColumnType columnType) {
+        super(targetType, command, description, columnType);
+    }
+
     protected abstract P getParameters(String[] string);
 
     protected abstract String getHeader(P parameters);
 
     protected abstract String extractValue(T object, P parameters);
 
+    /**
+     * Writes the same value as {@link #extractValue(Object, Object)} to the sink. Override to avoid creation of
+     * intermediate strings.
+     */
+    protected void appendValue(T object, P parameters, ByteSink sink) {
+        sink.append(extractValue(object, parameters));
+    }
+
     @Override
     public FieldExtractor<T> create(String[] args) {
-        final P params = getParameters(args);
-        String header = getHeader(params);
-        return new AbstractFieldExtractor<T>(header, this) {
-            @Override
-            public String extractValue(T object) {
-                return FieldWithParameters.this.extractValue(object, params);
-            }
-        };
+        P params = getParameters(args);
+        return new ByteExtractor(getHeader(params), params);
+    }
+
+    private final class ByteExtractor extends AbstractFieldExtractor<T> implements ByteFieldExtractor<T> {
+        final P params;
+
+        ByteExtractor(String header, P params) {
+            super(header, FieldWithParameters.this);
+            this.params = params;
+        }
+
+        @Override
+        public String extractValue(T object) {
+            return FieldWithParameters.this.extractValue(object, params);
+        }
+
+        @Override
+        public void appendTo(T object, ByteSink sink) {
+            appendValue(object, params, sink);
+        }
     }
 }
@@ -28,25 +28,31 @@
  */
 package com.milaboratory.mixcr.export;
 
-import cc.redberry.pipe.InputPort;
+import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPort;
+import cc.redberry.pipe.Processor;
 
 import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
 
-public final class InfoWriter<T> implements InputPort<T>, AutoCloseable {
+public final class InfoWriter<T> implements ExportWriter<T> {
     final ArrayList<AbstractFieldExtractor<? super T>> fieldExtractors = new ArrayList<>();
     final OutputStream outputStream;
+    // Reused for rows written by put(...)
+    final ByteSink row = new ByteSink();
     boolean initialized;
 
     public InfoWriter(String file) throws FileNotFoundException {
         this(new BufferedOutputStream(new FileOutputStream(new File(file)), 65536));
     }
 
+    @Override
     public void attachInfoProvider(AbstractFieldExtractor<? super T> provider) {
         fieldExtractors.add(provider);
     }
 
+    @Override
     public void attachInfoProviders(List<AbstractFieldExtractor<? super T>> providers) {
         fieldExtractors.addAll(providers);
     }
@@ -77,19 +83,64 @@ public final class InfoWriter<T> implements InputPort<T>, AutoCloseable {
         ensureInitialized();
         if (fieldExtractors.isEmpty())
             return;
+        row.reset();
+        writeRow(t, row);
         try {
-            outputStream.write('\n');
-            for (int i = 0; ; ++i) {
-                outputStream.write(fieldExtractors.get(i).extractValue(t).getBytes());
-                if (i == fieldExtractors.size() - 1)
-                    break;
-                outputStream.write('\t');
+            row.writeTo(outputStream);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes all objects from the port. Rows are formatted by several threads (in chunks of {@link
+     * ChunkedProcessing#CHUNK_SIZE} objects) and written in the original order of objects. Port is accessed from
+     * different threads, but never concurrently.
+     *
+     * @param port    objects
+     * @param threads number of formatting threads
+     */
+    @Override
+    public void putAll(OutputPort<? extends T> port, int threads) {
+        if (threads == 1 || fieldExtractors.isEmpty()) {
+            for (T t : CUtils.it(port))
+                put(t);
+            return;
+        }
+
+        ensureInitialized();
+        OutputPort<ByteSink> formatted = ChunkedProcessing.process(port, new Processor<List<T>, ByteSink>() {
+            @Override
+            public ByteSink process(List<T> objects) {
+                ByteSink rows = new ByteSink(64 * objects.size());
+                for (T t : objects)
+                    writeRow(t, rows);
+                return rows;
             }
+        }, threads);
+        try {
+            for (ByteSink rows : CUtils.it(formatted))
+                rows.writeTo(outputStream);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private void writeRow(T t, ByteSink sink) {
+        sink.append('\n');
+        for (int i = 0; ; ++i) {
+            AbstractFieldExtractor<? super T> extractor = fieldExtractors.get(i);
+            if (extractor instanceof ByteFieldExtractor)
+                ((ByteFieldExtractor<T>) extractor).appendTo(t, sink);
+            else
+                sink.append(extractor.extractValue(t));
+            if (i == fieldExtractors.size() - 1)
+                break;
+            sink.append('\t');
+        }
+    }
+
     @Override
     public void close() throws IOException {
         outputStream.close();
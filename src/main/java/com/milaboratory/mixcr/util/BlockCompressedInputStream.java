@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.util;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads streams written by {@link BlockCompressedOutputStream}. Blocks are read and decompressed ahead on a background
+ * thread. The background thread is stopped when the end of compressed data is reached or the stream is closed.
+ */
+public final class BlockCompressedInputStream extends InputStream {
+    static final int READ_AHEAD = 4;
+    final DataInputStream input;
+    final ExecutorService executor;
+    final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    final Callable<byte[]> readTask = new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception {
+            return readBlock();
+        }
+    };
+    // Accessed only from the background thread
+    boolean endReached = false;
+    byte[] block = new byte[0];
+    int pointer = 0;
+    boolean finished = false, closed = false;
+
+    public BlockCompressedInputStream(InputStream input) {
+        this.input = new DataInputStream(input);
+        this.executor = BlockCompression.createExecutor(1, "BlockDecompressor");
+        for (int i = 0; i < READ_AHEAD; ++i)
+            pending.add(executor.submit(readTask));
+    }
+
+    private byte[] readBlock() throws IOException {
+        if (endReached)
+            return null;
+        int rawSize = input.readInt();
+        if (rawSize == BlockCompressedOutputStream.END_OF_BLOCKS) {
+            endReached = true;
+            return null;
+        }
+        byte[] data = new byte[input.readInt()];
+        int checksum = input.readInt();
+        input.readFully(data);
+        return BlockCompression.decompress(data, rawSize, checksum);
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (finished)
+            return false;
+        byte[] next;
+        try {
+            next = pending.poll().get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+        if (next == null) {
+            finished = true;
+            executor.shutdownNow();
+            return false;
+        }
+        pending.add(executor.submit(readTask));
+        block = next;
+        pointer = 0;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (pointer == block.length)
+            if (!nextBlock())
+                return -1;
+        return block[pointer++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        while (pointer == block.length)
+            if (!nextBlock())
+                return -1;
+        int n = Math.min(len, block.length - pointer);
+        System.arraycopy(block, pointer, b, off, n);
+        pointer += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return block.length - pointer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        executor.shutdownNow();
+        input.close();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Output stream that splits data into blocks and compresses them on background threads (see {@link BlockCompression}).
+ * Stream format:
+ *
+ * <pre>
+ * frame: int raw size, int compressed size, int checksum, compressed data
+ * end:   int -1
+ * </pre>
+ *
+ * Closing this stream closes the underlying stream, use {@link #finish()} to complete compressed data leaving the
+ * underlying stream open.
+ */
+public final class BlockCompressedOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 18;
+    static final int END_OF_BLOCKS = -1;
+    final DataOutputStream output;
+    final ExecutorService executor;
+    final int maxPendingBlocks;
+    final ArrayDeque<Future<BlockCompression.CompressedBlock>> pending = new ArrayDeque<>();
+    byte[] buffer;
+    int size = 0;
+    boolean finished = false, closed = false;
+
+    public BlockCompressedOutputStream(OutputStream output, int threads) {
+        this(output, threads, DEFAULT_BLOCK_SIZE);
+    }
+
+    public BlockCompressedOutputStream(OutputStream output, int threads, int blockSize) {
+        if (threads <= 0 || blockSize <= 0)
+            throw new IllegalArgumentException();
+        this.output = new DataOutputStream(output);
+        this.executor = BlockCompression.createExecutor(threads, "BlockCompressor");
+        this.maxPendingBlocks = 2 * threads;
+        this.buffer = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (finished)
+            throw new IOException("Stream is finished.");
+        buffer[size++] = (byte) b;
+        if (size == buffer.length)
+            submitBlock();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished)
+            throw new IOException("Stream is finished.");
+        while (len > 0) {
+            int n = Math.min(len, buffer.length - size);
+            System.arraycopy(b, off, buffer, size, n);
+            size += n;
+            off += n;
+            len -= n;
+            if (size == buffer.length)
+                submitBlock();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        if (size == 0)
+            return;
+        final byte[] data = buffer;
+        final int length = size;
+        pending.add(executor.submit(new Callable<BlockCompression.CompressedBlock>() {
+            @Override
+            public BlockCompression.CompressedBlock call() throws Exception {
+                return BlockCompression.compress(data, 0, length);
+            }
+        }));
+        buffer = new byte[buffer.length];
+        size = 0;
+        while (pending.size() > maxPendingBlocks)
+            writeBlock(pending.poll());
+    }
+
+    private void writeBlock(Future<BlockCompression.CompressedBlock> future) throws IOException {
+        BlockCompression.CompressedBlock block;
+        try {
+            block = future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        output.writeInt(block.rawSize);
+        output.writeInt(block.data.length);
+        output.writeInt(block.checksum);
+        output.write(block.data);
+    }
+
+    /**
+     * Writes all buffered data and the end marker without closing the underlying stream. No data can be written after
+     * this method is invoked.
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        finished = true;
+        try {
+            submitBlock();
+            while (!pending.isEmpty())
+                writeBlock(pending.poll());
+            output.writeInt(END_OF_BLOCKS);
+            output.flush();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            finish();
+        } finally {
+            output.close();
+        }
+    }
+}
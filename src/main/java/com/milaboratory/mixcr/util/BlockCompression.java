@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of data blocks with CRC32 checksums of uncompressed data. Used by block-compressed file formats.
+ */
+public final class BlockCompression {
+    private BlockCompression() {
+    }
+
+    public static CompressedBlock compress(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream result = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished())
+                result.write(buffer, 0, deflater.deflate(buffer));
+            return new CompressedBlock(result.toByteArray(), length, (int) crc.getValue());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static byte[] decompress(byte[] data, int rawSize, int checksum) {
+        byte[] result = new byte[rawSize];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            int size = 0;
+            while (size < rawSize && !inflater.finished()) {
+                int n = inflater.inflate(result, size, rawSize - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                size += n;
+            }
+            if (size != rawSize || !inflater.finished())
+                throw new RuntimeException("Corrupted compressed block.");
+        } catch (DataFormatException e) {
+            throw new RuntimeException("Corrupted compressed block.", e);
+        } finally {
+            inflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(result);
+        if ((int) crc.getValue() != checksum)
+            throw new RuntimeException("Wrong checksum of compressed block.");
+        return result;
+    }
+
+    /**
+     * Creates executor with daemon threads for background compression / decompression.
+     */
+    public static ExecutorService createExecutor(int threads, final String name) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static final class CompressedBlock {
+        public final byte[] data;
+        public final int rawSize;
+        public final int checksum;
+
+        public CompressedBlock(byte[] data, int rawSize, int checksum) {
+            this.data = data;
+            this.rawSize = rawSize;
+            this.checksum = checksum;
+        }
+    }
+}
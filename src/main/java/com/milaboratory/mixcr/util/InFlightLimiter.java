@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.util;
+
+import cc.redberry.pipe.OutputPort;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounds the number of objects (e.g. chunks of reads) simultaneously present in a section of a processing pipeline.
+ * Objects entering the section are taken from the port returned by {@link #enter(OutputPort)}, and objects leaving it
+ * are taken from the port returned by {@link #leave(OutputPort)}. When the limit is reached, taking from the entry port
+ * blocks until some object leaves the section, so backpressure is propagated to the source.
+ *
+ * <p>Each object leaving the section must correspond to exactly one object that entered it. The limit must be large
+ * enough to let the object required by an ordering stage inside the section enter it (i.e. in-flight objects must not
+ * wait for objects that were not taken yet); for a reordering stage fed by a source in the order of indices this
+ * always holds.</p>
+ */
+public final class InFlightLimiter {
+    final Semaphore permits;
+
+    /**
+     * @param maxInFlight maximal number of objects inside the section
+     */
+    public InFlightLimiter(int maxInFlight) {
+        if (maxInFlight <= 0)
+            throw new IllegalArgumentException();
+        this.permits = new Semaphore(maxInFlight);
+    }
+
+    public int getAvailable() {
+        return permits.availablePermits();
+    }
+
+    public <T> OutputPort<T> enter(final OutputPort<T> source) {
+        return new OutputPort<T>() {
+            @Override
+            public T take() {
+                permits.acquireUninterruptibly();
+                T object = source.take();
+                if (object == null)
+                    permits.release();
+                return object;
+            }
+        };
+    }
+
+    public <T> OutputPort<T> leave(final OutputPort<T> port) {
+        return new OutputPort<T>() {
+            @Override
+            public T take() {
+                T object = port.take();
+                if (object != null)
+                    permits.release();
+                return object;
+            }
+        };
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses gzip stream ahead of the consumer on background threads.
+ *
+ * <p>If the stream is BGZF (blocked gzip, as produced by {@code bgzip}), independent gzip members are inflated in
+ * parallel by several threads, and the order of decompressed blocks is preserved. For an ordinary gzip stream
+ * decompression is sequential, but still performed on a dedicated background thread.</p>
+ */
+public final class ParallelGzipInputStream extends InputStream {
+    static final int PLAIN_BLOCK_SIZE = 1 << 16;
+    static final int BGZF_HEADER_SIZE = 18;
+    static final int READ_AHEAD_PER_THREAD = 4;
+    final DataInputStream input;
+    final ExecutorService executor;
+    final boolean bgzf;
+    final int readAhead;
+    final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    // Used only in non-BGZF mode, accessed only from the background thread
+    final GZIPInputStream gzipInput;
+    final Callable<byte[]> plainReadTask = new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception {
+            return readPlainBlock();
+        }
+    };
+    // In BGZF mode accessed only from the consumer thread, otherwise only from the background thread
+    boolean endReached = false;
+    byte[] block = new byte[0];
+    int pointer = 0;
+    boolean finished = false, closed = false;
+
+    /**
+     * @param input   gzip compressed stream
+     * @param threads number of decompression threads (used only for BGZF streams)
+     */
+    public ParallelGzipInputStream(InputStream input, int threads) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(input, PLAIN_BLOCK_SIZE);
+        this.bgzf = isBgzf(buffered);
+        if (bgzf) {
+            this.input = new DataInputStream(buffered);
+            this.gzipInput = null;
+            this.executor = BlockCompression.createExecutor(threads, "BGZFDecompressor");
+            this.readAhead = READ_AHEAD_PER_THREAD * threads;
+        } else {
+            this.input = null;
+            this.gzipInput = new GZIPInputStream(buffered, PLAIN_BLOCK_SIZE);
+            this.executor = BlockCompression.createExecutor(1, "GZIPDecompressor");
+            this.readAhead = READ_AHEAD_PER_THREAD;
+        }
+        for (int i = 0; i < readAhead; ++i)
+            submitNext();
+    }
+
+    /**
+     * Returns true if stream is in BGZF format
+     */
+    public boolean isBgzf() {
+        return bgzf;
+    }
+
+    static boolean isBgzf(BufferedInputStream input) throws IOException {
+        byte[] header = new byte[BGZF_HEADER_SIZE];
+        input.mark(BGZF_HEADER_SIZE);
+        int read = 0, r;
+        while (read < BGZF_HEADER_SIZE && (r = input.read(header, read, BGZF_HEADER_SIZE - read)) > 0)
+            read += r;
+        input.reset();
+        return read == BGZF_HEADER_SIZE
+                && (header[0] & 0xFF) == 31 && (header[1] & 0xFF) == 139 && header[2] == 8
+                && (header[3] & 4) != 0 // FEXTRA
+                && header[12] == 'B' && header[13] == 'C';
+    }
+
+    private void submitNext() throws IOException {
+        if (!bgzf) {
+            pending.add(executor.submit(plainReadTask));
+            return;
+        }
+        if (endReached)
+            return;
+        // Raw BGZF block is read on the calling thread, only inflation is performed in parallel
+        final byte[] rawBlock = readRawBgzfBlock();
+        if (rawBlock == null) {
+            endReached = true;
+            return;
+        }
+        pending.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return inflateBgzfBlock(rawBlock);
+            }
+        }));
+    }
+
+    private byte[] readRawBgzfBlock() throws IOException {
+        int b = input.read();
+        if (b == -1)
+            return null;
+        byte[] header = new byte[BGZF_HEADER_SIZE];
+        header[0] = (byte) b;
+        input.readFully(header, 1, BGZF_HEADER_SIZE - 1);
+        if ((header[0] & 0xFF) != 31 || (header[1] & 0xFF) != 139 || (header[3] & 4) == 0
+                || header[12] != 'B' || header[13] != 'C')
+            throw new IOException("Malformed BGZF block.");
+        int blockSize = ((header[16] & 0xFF) | (header[17] & 0xFF) << 8) + 1;
+        byte[] rawBlock = new byte[blockSize];
+        System.arraycopy(header, 0, rawBlock, 0, BGZF_HEADER_SIZE);
+        input.readFully(rawBlock, BGZF_HEADER_SIZE, blockSize - BGZF_HEADER_SIZE);
+        return rawBlock;
+    }
+
+    static byte[] inflateBgzfBlock(byte[] rawBlock) throws IOException {
+        int extraLength = (rawBlock[10] & 0xFF) | (rawBlock[11] & 0xFF) << 8;
+        int dataOffset = 12 + extraLength;
+        int trailer = rawBlock.length - 8;
+        int checksum = readIntLE(rawBlock, trailer);
+        int rawSize = readIntLE(rawBlock, trailer + 4);
+        byte[] result = new byte[rawSize];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(rawBlock, dataOffset, trailer - dataOffset);
+            int size = 0;
+            while (size < rawSize) {
+                int n = inflater.inflate(result, size, rawSize - size);
+                if (n == 0 && (inflater.finished() || inflater.needsInput()))
+                    throw new EOFException("Truncated BGZF block.");
+                size += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(result);
+        if ((int) crc.getValue() != checksum)
+            throw new IOException("Wrong BGZF block checksum.");
+        return result;
+    }
+
+    private static int readIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8
+                | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24;
+    }
+
+    private byte[] readPlainBlock() throws IOException {
+        if (endReached)
+            return null;
+        byte[] buffer = new byte[PLAIN_BLOCK_SIZE];
+        int size = 0, r;
+        while (size < buffer.length && (r = gzipInput.read(buffer, size, buffer.length - size)) > 0)
+            size += r;
+        if (size < buffer.length) {
+            endReached = true;
+            if (size == 0)
+                return null;
+            byte[] tmp = new byte[size];
+            System.arraycopy(buffer, 0, tmp, 0, size);
+            buffer = tmp;
+        }
+        return buffer;
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (finished)
+            return false;
+        Future<byte[]> future = pending.poll();
+        byte[] next = null;
+        if (future != null)
+            try {
+                next = future.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        if (next == null) {
+            finished = true;
+            executor.shutdownNow();
+            return false;
+        }
+        submitNext();
+        block = next;
+        pointer = 0;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (pointer == block.length)
+            if (!nextBlock())
+                return -1;
+        return block[pointer++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        while (pointer == block.length)
+            if (!nextBlock())
+                return -1;
+        int n = Math.min(len, block.length - pointer);
+        System.arraycopy(block, pointer, b, off, n);
+        pointer += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return block.length - pointer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        executor.shutdownNow();
+        if (bgzf)
+            input.close();
+        else
+            gzipInput.close();
+    }
+}
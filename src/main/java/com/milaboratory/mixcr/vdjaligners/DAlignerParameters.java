@@ -38,8 +38,10 @@ import com.milaboratory.mixcr.reference.GeneFeature;
 @JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY, isGetterVisibility = JsonAutoDetect.Visibility.NONE,
         getterVisibility = JsonAutoDetect.Visibility.NONE)
 public final class DAlignerParameters extends GeneAlignmentParameters<DAlignerParameters> {
+    public static final int DEFAULT_CACHE_SIZE = 5000;
     private float absoluteMinScore, relativeMinScore;
     private int maxHits;
+    private int cacheSize = DEFAULT_CACHE_SIZE;
     private AlignmentScoring<NucleotideSequence> scoring;
 
     @JsonCreator
@@ -92,9 +94,23 @@ public final class DAlignerParameters extends GeneAlignmentParameters<DAlignerPa
         return this;
     }
 
+    /**
+     * Maximal number of D alignment results memoized by exact target range (0 disables the cache). Doesn't affect
+     * alignment results, so it is not taken into account in {@link #equals(Object)}.
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public DAlignerParameters setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
     @Override
     public DAlignerParameters clone() {
-        return new DAlignerParameters(geneFeatureToAlign, absoluteMinScore, relativeMinScore, maxHits, scoring);
+        return new DAlignerParameters(geneFeatureToAlign, absoluteMinScore, relativeMinScore, maxHits, scoring)
+                .setCacheSize(cacheSize);
     }
 
     @Override
@@ -104,6 +120,7 @@ public final class DAlignerParameters extends GeneAlignmentParameters<DAlignerPa
                 ", relativeMinScore=" + relativeMinScore +
                 ", maxHits=" + maxHits +
                 ", scoring=" + scoring +
+                ", cacheSize=" + cacheSize +
                 '}';
     }
 
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.vdjaligners;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.milaboratory.core.alignment.KAligner;
+import com.milaboratory.core.alignment.KAlignerParameters;
+import com.milaboratory.core.alignment.KAlignmentResult;
+import com.milaboratory.core.sequence.NucleotideSequence;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Bounded concurrent memo cache for V/J/C {@link KAligner} results. Amplicon libraries contain many reads with
+ * identical sequences, so results are stored by exact target sequence and aligned range. Eviction is performed in
+ * approximately least-recently-used order.
+ *
+ * <p>Cached {@link KAlignmentResult}s are shared between threads, so aligners must be created in non-lazy mode (all
+ * hit alignments are built before result is returned). To guarantee this, only results of aligners created by {@link
+ * #createAligner(KAlignerParameters)} can be cached.</p>
+ */
+final class KAlignmentCache {
+    private final Cache<Key, KAlignmentResult> cache;
+    // Aligners created by this cache; filled before the cache is published to aligning threads
+    private final Set<KAligner> aligners = Collections.newSetFromMap(new IdentityHashMap<KAligner, Boolean>());
+
+    KAlignmentCache(int maximumSize) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .build();
+    }
+
+    /**
+     * Creates non-lazy aligner, which results can be put to this cache. Must be invoked before the cache is shared
+     * between threads.
+     */
+    KAligner createAligner(KAlignerParameters parameters) {
+        KAligner aligner = new KAligner(parameters, false);
+        aligners.add(aligner);
+        return aligner;
+    }
+
+    KAlignmentResult get(Key key) {
+        return cache.getIfPresent(key);
+    }
+
+    void put(Key key, KAlignmentResult result) {
+        if (!aligners.contains(key.aligner))
+            throw new IllegalArgumentException("Only results of aligners created by this cache can be cached.");
+        cache.put(key, result);
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    static final class Key {
+        final KAligner aligner;
+        final NucleotideSequence target;
+        final int from, to;
+        final int hash;
+
+        Key(KAligner aligner, NucleotideSequence target, int from, int to) {
+            this.aligner = aligner;
+            this.target = target;
+            this.from = from;
+            this.to = to;
+            int h = System.identityHashCode(aligner);
+            h = 31 * h + target.hashCode();
+            h = 31 * h + from;
+            h = 31 * h + to;
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return aligner == key.aligner && from == key.from && to == key.to && hash == key.hash
+                    && target.equals(key.target);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -34,38 +34,64 @@ import com.milaboratory.mixcr.basictypes.VDJCHit;
 import com.milaboratory.mixcr.reference.Allele;
 import com.milaboratory.mixcr.reference.GeneFeature;
 
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * V and J alignment results for one strand of a single read. Instances are reused between reads (see {@link
+ * #set(KAlignmentResult, KAlignmentResult)}); {@link #vHits} and {@link #jHits} are reusable buffers, only first
+ * {@link #vHitsCount} / {@link #jHitsCount} elements are meaningful.
+ */
 final class KVJResultsForSingle {
-    public final KAlignmentResult vResult, jResult;
     public final boolean isRC;
-    public KAlignmentHit[] vHits, jHits;
+    public KAlignmentResult vResult, jResult;
+    public KAlignmentHit[] vHits = new KAlignmentHit[0], jHits = new KAlignmentHit[0];
+    public int vHitsCount, jHitsCount;
+
+    public KVJResultsForSingle(boolean isRC) {
+        this.isRC = isRC;
+    }
 
-    public KVJResultsForSingle(KAlignmentResult vResult, KAlignmentResult jResult, boolean isRC) {
+    public void set(KAlignmentResult vResult, KAlignmentResult jResult) {
         this.vResult = vResult;
         this.jResult = jResult;
-        this.isRC = isRC;
+        this.vHitsCount = this.jHitsCount = 0;
     }
 
-    private static KAlignmentHit[] extractHits(float minScore, KAlignmentResult result, int maxHits) {
+    /**
+     * Releases references to alignment results of the previous read.
+     */
+    public void clear() {
+        set(null, null);
+        Arrays.fill(vHits, null);
+        Arrays.fill(jHits, null);
+    }
+
+    private static KAlignmentHit[] ensureCapacity(KAlignmentHit[] buffer, int size) {
+        return buffer.length >= size ? buffer : new KAlignmentHit[size];
+    }
+
+    private static int extractHits(float minScore, KAlignmentResult result, int maxHits, KAlignmentHit[] buffer) {
+        List<KAlignmentHit> hits = result.getHits();
         int count = 0;
-        for (KAlignmentHit hit : result.getHits())
+        for (KAlignmentHit hit : hits)
             if (hit.getAlignment().getScore() > minScore) {
+                buffer[count] = hit;
                 if (++count >= maxHits)
                     break;
             } else
                 break;
-
-        KAlignmentHit[] res = new KAlignmentHit[count];
-        for (int i = 0; i < count; ++i)
-            res[i] = result.getHits().get(i);
-
-        return res;
+        return count;
     }
 
     public void calculateHits(float minTotalScore, int maxHits) {
-        this.vHits = extractHits(minTotalScore - jResult.getBestHit().getAlignment().getScore(), vResult, maxHits);
-        this.jHits = extractHits(minTotalScore - vResult.getBestHit().getAlignment().getScore(), jResult, maxHits);
+        // At least one hit is always extracted
+        vHits = ensureCapacity(vHits, Math.max(maxHits, 1));
+        jHits = ensureCapacity(jHits, Math.max(maxHits, 1));
+        this.vHitsCount = extractHits(minTotalScore - jResult.getBestHit().getAlignment().getScore(), vResult,
+                maxHits, vHits);
+        this.jHitsCount = extractHits(minTotalScore - vResult.getBestHit().getAlignment().getScore(), jResult,
+                maxHits, jHits);
     }
 
     public boolean isEmpty() {
@@ -87,21 +113,20 @@ final class KVJResultsForSingle {
     }
 
     public boolean hasVJHits() {
-        return vHits != null && vHits.length > 0 &&
-                jHits != null && jHits.length > 0;
+        return vHitsCount > 0 && jHitsCount > 0;
     }
 
     public VDJCHit[] getVHits(List<Allele> alleles, GeneFeature feature) {
-        return createHits(vHits, alleles, feature);
+        return createHits(vHits, vHitsCount, alleles, feature);
     }
 
     public VDJCHit[] getJHits(List<Allele> alleles, GeneFeature feature) {
-        return createHits(jHits, alleles, feature);
+        return createHits(jHits, jHitsCount, alleles, feature);
     }
 
-    public static VDJCHit[] createHits(KAlignmentHit[] kHits, List<Allele> alleles, GeneFeature feature) {
-        VDJCHit[] hits = new VDJCHit[kHits.length];
-        for (int i = 0; i < kHits.length; i++)
+    public static VDJCHit[] createHits(KAlignmentHit[] kHits, int count, List<Allele> alleles, GeneFeature feature) {
+        VDJCHit[] hits = new VDJCHit[count];
+        for (int i = 0; i < count; i++)
             hits[i] = new VDJCHit(alleles.get(kHits[i].getId()), kHits[i].getAlignment(), feature);
         return hits;
     }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.vdjaligners;
+
+import com.milaboratory.core.alignment.AlignmentScoring;
+import com.milaboratory.core.alignment.LinearGapAlignmentScoring;
+import com.milaboratory.core.sequence.NucleotideSequence;
+
+import java.util.List;
+
+/**
+ * Calculates scores of optimal local (Smith-Waterman) alignments of a target sequence with a set of short reference
+ * sequences (e.g. D genes) without building alignment matrices and traceback. Used to select references for which
+ * full alignment should be built. Only linear gap scoring is supported.
+ *
+ * <p>Single instance may be shared between several threads.</p>
+ */
+final class LocalScoreCalculator {
+    /**
+     * Score profiles: profiles[referenceIndex][nucleotideCode][positionInReference]
+     */
+    private final int[][][] profiles;
+    private final int gapPenalty;
+    private final int maxReferenceLength;
+
+    private LocalScoreCalculator(int[][][] profiles, int gapPenalty, int maxReferenceLength) {
+        this.profiles = profiles;
+        this.gapPenalty = gapPenalty;
+        this.maxReferenceLength = maxReferenceLength;
+    }
+
+    /**
+     * Returns score of optimal local alignment for each reference (zero if there are no positively scored
+     * alignments).
+     */
+    int[] calculateScores(NucleotideSequence target) {
+        int[] scores = new int[profiles.length];
+        int targetSize = target.size();
+        if (targetSize == 0)
+            return scores;
+
+        byte[] codes = new byte[targetSize];
+        for (int i = 0; i < targetSize; ++i)
+            codes[i] = target.codeAt(i);
+
+        // Previous row of scoring matrix (along reference)
+        int[] row = new int[maxReferenceLength];
+        for (int r = 0; r < profiles.length; ++r) {
+            int[][] profile = profiles[r];
+            int length = profile[0].length;
+            for (int j = 0; j < length; ++j)
+                row[j] = 0;
+            int best = 0;
+            for (int i = 0; i < targetSize; ++i) {
+                int[] scoreRow = profile[codes[i]];
+                int diagonal = 0, left = 0, value;
+                for (int j = 0; j < length; ++j) {
+                    int up = row[j];
+                    value = diagonal + scoreRow[j];
+                    if (up + gapPenalty > value)
+                        value = up + gapPenalty;
+                    if (left + gapPenalty > value)
+                        value = left + gapPenalty;
+                    if (value < 0)
+                        value = 0;
+                    if (value > best)
+                        best = value;
+                    diagonal = up;
+                    row[j] = left = value;
+                }
+            }
+            scores[r] = best;
+        }
+        return scores;
+    }
+
+    /**
+     * Creates calculator for given references or returns null if scoring is not supported.
+     */
+    static LocalScoreCalculator create(AlignmentScoring<NucleotideSequence> scoring,
+                                       List<NucleotideSequence> references) {
+        if (!(scoring instanceof LinearGapAlignmentScoring))
+            return null;
+        int alphabetSize = NucleotideSequence.ALPHABET.size();
+        int[][][] profiles = new int[references.size()][alphabetSize][];
+        int maxLength = 0;
+        for (int r = 0; r < references.size(); ++r) {
+            NucleotideSequence reference = references.get(r);
+            maxLength = Math.max(maxLength, reference.size());
+            for (byte code = 0; code < alphabetSize; ++code) {
+                int[] scores = profiles[r][code] = new int[reference.size()];
+                for (int j = 0; j < scores.length; ++j)
+                    scores[j] = scoring.getScore(reference.codeAt(j), code);
+            }
+        }
+        return new LocalScoreCalculator(profiles,
+                ((LinearGapAlignmentScoring) scoring).getGapPenalty(), maxLength);
+    }
+}
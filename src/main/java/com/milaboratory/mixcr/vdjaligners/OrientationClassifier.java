@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.vdjaligners;
+
+import com.milaboratory.core.sequence.NucleotideSequence;
+
+/**
+ * Cheap classifier of read strand. K-mers of V and J references are stored in a bit set, and k-mers of the read and
+ * of its reverse complement vote for the corresponding strand. Strand is decided only if it has enough votes and
+ * strongly dominates over the opposite one.
+ */
+final class OrientationClassifier {
+    static final int K = 12;
+    static final int MIN_VOTES = 3;
+    // Winning strand must have at least DOMINANCE times more votes than the opposite one
+    static final int DOMINANCE = 4;
+    private static final int MASK = (1 << (2 * K)) - 1;
+
+    final long[] kmers = new long[1 << (2 * K - 6)];
+
+    void addReference(NucleotideSequence sequence) {
+        int kmer = 0;
+        for (int i = 0; i < sequence.size(); ++i) {
+            kmer = ((kmer << 2) | sequence.codeAt(i)) & MASK;
+            if (i >= K - 1)
+                kmers[kmer >>> 6] |= 1L << (kmer & 63);
+        }
+    }
+
+    private boolean contains(int kmer) {
+        return (kmers[kmer >>> 6] & (1L << (kmer & 63))) != 0;
+    }
+
+    /**
+     * Returns 1 if read is in forward orientation, -1 if it is reverse complement to the references and 0 if
+     * orientation can't be decided.
+     */
+    int classify(NucleotideSequence read) {
+        int forward = 0, reverse = 0;
+        // K-mer of the read and k-mer of reverse complement of the read ending at the same position
+        int kmer = 0, kmerRC = 0;
+        for (int i = 0; i < read.size(); ++i) {
+            int code = read.codeAt(i);
+            kmer = ((kmer << 2) | code) & MASK;
+            // Complement of A, G, C, T codes (0, 1, 2, 3) is 3 - code
+            kmerRC = (kmerRC >>> 2) | ((3 - code) << (2 * K - 2));
+            if (i < K - 1)
+                continue;
+            if (contains(kmer))
+                ++forward;
+            if (contains(kmerRC))
+                ++reverse;
+        }
+        if (forward >= MIN_VOTES && forward >= DOMINANCE * reverse)
+            return 1;
+        if (reverse >= MIN_VOTES && reverse >= DOMINANCE * forward)
+            return -1;
+        return 0;
+    }
+}
@@ -78,6 +78,19 @@ public enum PairedEndReadsLayout {
                                     read.getRead(0).getData().getReverseComplement())};
                 }
             }
+    ),
+    /**
+     * Layout is detected by aligner using first aligned reads (processed as {@link #Unknown}), then aligner switches
+     * to the dominant layout (see {@link VDJCAlignerPVFirst}). With merging of paired reads enabled, reads are not
+     * merged until layout is detected (see {@link VDJCAlignerWithMerge}).
+     */
+    Auto(null,
+            new PairedTargetProvider() {
+                @Override
+                public PairedTarget[] createTargets(PairedRead read) {
+                    return Unknown.createTargets(read);
+                }
+            }
     );
     private final Boolean isOpposite;
     private final PairedTargetProvider provider;
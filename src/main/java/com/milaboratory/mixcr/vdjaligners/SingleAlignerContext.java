@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.vdjaligners;
+
+import com.milaboratory.core.sequence.NucleotideSequence;
+
+/**
+ * Per-thread reusable state of {@link VDJCAlignerSJFirst}: alignment results for both strands of the current read
+ * and lazily calculated reverse complement of the read.
+ */
+final class SingleAlignerContext {
+    final KVJResultsForSingle forward = new KVJResultsForSingle(false),
+            reverse = new KVJResultsForSingle(true);
+    NucleotideSequence target, targetRC;
+
+    void reset(NucleotideSequence target) {
+        this.target = target;
+        this.targetRC = null;
+        forward.set(null, null);
+        reverse.set(null, null);
+    }
+
+    /**
+     * Releases references to the current read, so they are not retained by idle threads.
+     */
+    void clear() {
+        target = targetRC = null;
+        forward.clear();
+        reverse.clear();
+    }
+
+    NucleotideSequence getTargetRC() {
+        if (targetRC == null)
+            targetRC = target.getReverseComplement();
+        return targetRC;
+    }
+
+    NucleotideSequence getTarget(boolean isRC) {
+        return isRC ? getTargetRC() : target;
+    }
+}
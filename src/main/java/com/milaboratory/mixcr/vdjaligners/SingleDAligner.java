@@ -30,6 +30,7 @@ package com.milaboratory.mixcr.vdjaligners;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import com.milaboratory.core.alignment.Aligner;
 import com.milaboratory.core.alignment.Alignment;
@@ -41,28 +42,35 @@ import com.milaboratory.mixcr.reference.GeneFeature;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class SingleDAligner {
+    /**
+     * Maximal number of results kept in the per-thread cache tier
+     */
+    static final int LOCAL_CACHE_SIZE = 256;
+
     private final AlignmentScoring<NucleotideSequence> scoring;
     private final float absoluteMinScore, relativeMinScore;
     private final int maxHits;
     private final List<NucleotideSequence> sequences = new ArrayList<>();
     private final List<Allele> alleles;
     private final GeneFeature featureToAlign;
-
-    private final LoadingCache<NucleotideSequence, List<PreVDJCHit>> resultsCache =
-            CacheBuilder.newBuilder()
-                    .maximumSize(5000)
-                    .recordStats()
-                    .build(
-                            new CacheLoader<NucleotideSequence, List<PreVDJCHit>>() {
-                                public List<PreVDJCHit> load(NucleotideSequence key) {
-                                    return _align(key);
-                                }
-                            }
-                    );
+    // Null if scoring is not supported by score-only pre-calculation
+    private final LocalScoreCalculator scoreCalculator;
+
+    // Thread-safe, so single instance may be shared between several threads; null if caching is disabled
+    private final LoadingCache<NucleotideSequence, List<PreVDJCHit>> resultsCache;
+    // Small per-thread LRU tier in front of the shared cache, so that recurring D regions are served without
+    // taking the shared cache segment locks; null if caching is disabled
+    private final ThreadLocal<LocalCache> localCaches;
+    // Hit counters of all per-thread caches, for statistics; only counters are kept here (not caches themselves), so
+    // caches are released together with their threads
+    private final List<AtomicLong> localCacheHits = new ArrayList<>();
 
     public SingleDAligner(DAlignerParameters parameters,
                           List<Allele> alleles) {
@@ -74,6 +82,55 @@ public final class SingleDAligner {
         for (Allele allele : alleles)
             sequences.add(allele.getFeature(featureToAlign));
         this.alleles = new ArrayList<>(alleles);
+        this.scoreCalculator = LocalScoreCalculator.create(scoring, sequences);
+        this.resultsCache = parameters.getCacheSize() <= 0 ? null :
+                CacheBuilder.newBuilder()
+                        .maximumSize(parameters.getCacheSize())
+                        .recordStats()
+                        .build(
+                                new CacheLoader<NucleotideSequence, List<PreVDJCHit>>() {
+                                    public List<PreVDJCHit> load(NucleotideSequence key) {
+                                        return _align(key);
+                                    }
+                                }
+                        );
+        final int localCacheSize = Math.min(LOCAL_CACHE_SIZE, parameters.getCacheSize());
+        this.localCaches = resultsCache == null ? null : new ThreadLocal<LocalCache>() {
+            @Override
+            protected LocalCache initialValue() {
+                LocalCache cache = new LocalCache(localCacheSize);
+                synchronized (localCacheHits) {
+                    localCacheHits.add(cache.hits);
+                }
+                return cache;
+            }
+        };
+    }
+
+    /**
+     * Returns statistics of D alignment cache or null if caching is disabled.
+     */
+    public CacheStats getCacheStats() {
+        if (resultsCache == null)
+            return null;
+        long localHits = 0;
+        synchronized (localCacheHits) {
+            for (AtomicLong hits : localCacheHits)
+                localHits += hits.get();
+        }
+        return resultsCache.stats().plus(new CacheStats(localHits, 0, 0, 0, 0, 0));
+    }
+
+    private List<PreVDJCHit> getCached(NucleotideSequence key) throws ExecutionException {
+        LocalCache localCache = localCaches.get();
+        List<PreVDJCHit> result = localCache.get(key);
+        if (result != null) {
+            localCache.hits.incrementAndGet();
+            return result;
+        }
+        result = resultsCache.get(key);
+        localCache.put(key, result);
+        return result;
     }
 
     List<PreVDJCHit> align0(NucleotideSequence sequence, int from, int to) {
@@ -83,7 +140,7 @@ public final class SingleDAligner {
         NucleotideSequence key = sequence.getRange(from, to);
 
         try {
-            List<PreVDJCHit> cachedResult = resultsCache.get(key);
+            List<PreVDJCHit> cachedResult = resultsCache == null ? _align(key) : getCached(key);
             List<PreVDJCHit> result = new ArrayList<>(cachedResult.size());
 
             PreVDJCHit h;
@@ -128,9 +185,24 @@ public final class SingleDAligner {
         if (sequence.size() == 0)
             return Collections.EMPTY_LIST;
 
+        // Scores of all alleles are calculated first, so that alignments (with traceback) are built only for
+        // alleles passing both absolute and relative thresholds
+        int[] scores = null;
+        float preThreshold = absoluteMinScore;
+        if (scoreCalculator != null) {
+            scores = scoreCalculator.calculateScores(sequence);
+            int topScore = 0;
+            for (int score : scores)
+                topScore = Math.max(topScore, score);
+            preThreshold = Math.max(absoluteMinScore, topScore * relativeMinScore);
+        }
+
         List<PreVDJCHit> result = new ArrayList<>();
         Alignment<NucleotideSequence> alignment;
         for (int i = 0; i < sequences.size(); ++i) {
+            if (scores != null && scores[i] < preThreshold)
+                continue;
+
             alignment = Aligner.alignLocal(scoring, sequences.get(i), sequence);
 
             if (alignment == null || alignment.getScore() < absoluteMinScore)
@@ -153,4 +225,23 @@ public final class SingleDAligner {
 
         return result;
     }
+
+    /**
+     * Access-ordered LRU map used by a single thread.
+     */
+    private static final class LocalCache extends LinkedHashMap<NucleotideSequence, List<PreVDJCHit>> {
+        final int maxSize;
+        // Incremented only by the owning thread, read by getCacheStats() from other threads
+        final AtomicLong hits = new AtomicLong();
+
+        LocalCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<NucleotideSequence, List<PreVDJCHit>> eldest) {
+            return size() > maxSize;
+        }
+    }
 }
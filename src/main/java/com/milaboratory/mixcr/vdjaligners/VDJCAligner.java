@@ -29,6 +29,7 @@
 package com.milaboratory.mixcr.vdjaligners;
 
 import cc.redberry.pipe.Processor;
+import com.google.common.cache.CacheStats;
 import com.milaboratory.core.io.sequence.SequenceRead;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
 import com.milaboratory.mixcr.reference.Allele;
@@ -66,6 +67,21 @@ public abstract class VDJCAligner<R extends SequenceRead> implements Processor<R
             listener.onSuccessfulAlignment(read, alignment);
     }
 
+    protected final void onOrientationPreScreen(SequenceRead read, boolean decided) {
+        if (listener != null)
+            listener.onOrientationPreScreen(read, decided);
+    }
+
+    protected final void onAlignmentCacheLookup(boolean hit) {
+        if (listener != null)
+            listener.onAlignmentCacheLookup(hit);
+    }
+
+    protected final void onReadsLayoutDetected(PairedEndReadsLayout layout, long collinearVotes, long oppositeVotes) {
+        if (listener != null)
+            listener.onReadsLayoutDetected(layout, collinearVotes, oppositeVotes);
+    }
+
     public boolean isInitialized() {
         return initialized;
     }
@@ -82,6 +98,11 @@ public abstract class VDJCAligner<R extends SequenceRead> implements Processor<R
 
     protected abstract void init();
 
+    /**
+     * Returns statistics of D alignment cache, or null if D genes are not aligned or caching is disabled.
+     */
+    public abstract CacheStats getDAlignmentCacheStats();
+
     public VDJCAlignerParameters getParameters() {
         return parameters.clone();
     }
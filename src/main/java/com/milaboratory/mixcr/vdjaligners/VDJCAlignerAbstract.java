@@ -28,8 +28,12 @@
  */
 package com.milaboratory.mixcr.vdjaligners;
 
+import com.google.common.cache.CacheStats;
 import com.milaboratory.core.alignment.KAligner;
+import com.milaboratory.core.alignment.KAlignerParameters;
+import com.milaboratory.core.alignment.KAlignmentResult;
 import com.milaboratory.core.io.sequence.SequenceRead;
+import com.milaboratory.core.sequence.NucleotideSequence;
 import com.milaboratory.mixcr.reference.Allele;
 import com.milaboratory.mixcr.reference.GeneType;
 
@@ -40,15 +44,19 @@ public abstract class VDJCAlignerAbstract<R extends SequenceRead> extends VDJCAl
     protected volatile KAligner vAligner = null;
     protected volatile KAligner jAligner = null;
     protected volatile KAligner cAligner = null;
+    protected volatile OrientationClassifier orientationClassifier = null;
+    protected volatile KAlignmentCache alignmentCache = null;
 
     public VDJCAlignerAbstract(VDJCAlignerParameters parameters) {
         super(parameters);
     }
 
-    private KAligner createKAligner(GeneType geneType) {
+    private KAligner createKAligner(GeneType geneType, KAlignmentCache cache) {
         if (parameters.getVJCGeneAlignerParameters(geneType) != null &&
                 !allelesToAlign.get(geneType).isEmpty()) {
-            KAligner aligner = new KAligner(parameters.getVJCGeneAlignerParameters(geneType).getParameters());
+            KAlignerParameters alignerParameters = parameters.getVJCGeneAlignerParameters(geneType).getParameters();
+            // Aligners used with cache are created by the cache, so that cached results are not lazy
+            KAligner aligner = cache == null ? new KAligner(alignerParameters) : cache.createAligner(alignerParameters);
             for (Allele a : allelesToAlign.get(geneType))
                 aligner.addReference(a.getFeature(parameters.getVJCGeneAlignerParameters(geneType).getGeneFeatureToAlign()));
             return aligner;
@@ -63,8 +71,52 @@ public abstract class VDJCAlignerAbstract<R extends SequenceRead> extends VDJCAl
         if (dAlignerParameters != null && dAlleles.size() != 0)
             singleDAligner = new SingleDAligner(dAlignerParameters,
                     allelesToAlign.get(GeneType.Diversity));
-        vAligner = createKAligner(GeneType.Variable);
-        jAligner = createKAligner(GeneType.Joining);
-        cAligner = createKAligner(GeneType.Constant);
+        KAlignmentCache cache = parameters.getAlignmentCacheSize() > 0 ?
+                new KAlignmentCache(parameters.getAlignmentCacheSize()) : null;
+        vAligner = createKAligner(GeneType.Variable, cache);
+        jAligner = createKAligner(GeneType.Joining, cache);
+        cAligner = createKAligner(GeneType.Constant, cache);
+        if (parameters.isOrientationPreScreen())
+            orientationClassifier = createOrientationClassifier();
+        alignmentCache = cache;
+    }
+
+    @Override
+    public CacheStats getDAlignmentCacheStats() {
+        SingleDAligner dAligner = singleDAligner;
+        return dAligner == null ? null : dAligner.getCacheStats();
+    }
+
+    /**
+     * Aligns target range with one of V, J or C aligners, taking result from alignment cache if it is enabled.
+     */
+    protected final KAlignmentResult align(KAligner aligner, NucleotideSequence target, int from, int to) {
+        KAlignmentCache cache = alignmentCache;
+        if (cache == null)
+            return aligner.align(target, from, to);
+        KAlignmentCache.Key key = new KAlignmentCache.Key(aligner, target, from, to);
+        KAlignmentResult result = cache.get(key);
+        onAlignmentCacheLookup(result != null);
+        if (result == null) {
+            result = aligner.align(target, from, to);
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    protected final KAlignmentResult align(KAligner aligner, NucleotideSequence target) {
+        return align(aligner, target, 0, target.size());
+    }
+
+    private OrientationClassifier createOrientationClassifier() {
+        OrientationClassifier classifier = new OrientationClassifier();
+        for (GeneType geneType : new GeneType[]{GeneType.Variable, GeneType.Joining}) {
+            KGeneAlignmentParameters geneParameters = parameters.getVJCGeneAlignerParameters(geneType);
+            if (geneParameters == null)
+                continue;
+            for (Allele a : allelesToAlign.get(geneType))
+                classifier.addReference(a.getFeature(geneParameters.getGeneFeatureToAlign()));
+        }
+        return classifier;
     }
 }
@@ -37,4 +37,27 @@ public interface VDJCAlignerEventListener {
     void onSuccessfulAlignment(SequenceRead read, VDJCAlignments alignment);
 
     void onSuccessfulOverlap(SequenceRead read, VDJCAlignments alignments);
+
+    /**
+     * Called for each read checked by orientation pre-screen.
+     *
+     * @param decided true if strand was determined by pre-screen, false if both strands were aligned
+     */
+    void onOrientationPreScreen(SequenceRead read, boolean decided);
+
+    /**
+     * Called once when paired-end reads layout is detected in {@link PairedEndReadsLayout#Auto} mode.
+     *
+     * @param layout          detected layout ({@link PairedEndReadsLayout#Unknown} if there is no dominant layout)
+     * @param collinearVotes  number of sampled reads aligned in collinear orientation
+     * @param oppositeVotes   number of sampled reads aligned in opposite orientation
+     */
+    void onReadsLayoutDetected(PairedEndReadsLayout layout, long collinearVotes, long oppositeVotes);
+
+    /**
+     * Called for each V, J or C alignment performed with enabled alignment cache.
+     *
+     * @param hit true if alignment result was taken from cache
+     */
+    void onAlignmentCacheLookup(boolean hit);
 }
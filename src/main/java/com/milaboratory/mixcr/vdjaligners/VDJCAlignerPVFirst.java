@@ -48,17 +48,42 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class VDJCAlignerPVFirst extends VDJCAlignerAbstract<PairedRead> {
+    /**
+     * Number of aligned reads used to detect reads layout in {@link PairedEndReadsLayout#Auto} mode. Detection is
+     * performed in the main alignment pass, so with several threads exact reads that are aligned as {@link
+     * PairedEndReadsLayout#Unknown} (i.e. before the switch) depend on thread timing.
+     */
+    public static final int DEFAULT_LAYOUT_DETECTION_SAMPLE = 10000;
+    /**
+     * Minimal share of sampled reads aligned in the dominant layout required to switch to it
+     */
+    public static final float LAYOUT_DETECTION_THRESHOLD = 0.9f;
+
+    int layoutDetectionSample = DEFAULT_LAYOUT_DETECTION_SAMPLE;
+    final AtomicLong collinearVotes = new AtomicLong(), oppositeVotes = new AtomicLong(), sampled = new AtomicLong();
+    volatile PairedEndReadsLayout detectedLayout = null;
+
     public VDJCAlignerPVFirst(VDJCAlignerParameters parameters) {
         super(parameters);
     }
 
+    /**
+     * Returns layout detected in {@link PairedEndReadsLayout#Auto} mode or null if layout is not detected yet (or
+     * detection is not enabled).
+     */
+    public PairedEndReadsLayout getDetectedLayout() {
+        return detectedLayout;
+    }
+
     @Override
     public VDJCAlignmentResult<PairedRead> process(PairedRead input) {
         ensureInitialized();
 
-        PairedTarget[] targets = getTargets(input);
+        PairedEndReadsLayout layout = getLayout();
+        PairedTarget[] targets = layout.createTargets(input);
 
         // Creates helper classes for each PTarget
         PAlignmentHelper[] helpers = createInitialHelpers(targets);
@@ -117,13 +142,42 @@ public final class VDJCAlignerPVFirst extends VDJCAlignerAbstract<PairedRead> {
 
         VDJCAlignments alignments = bestHelper.createResult(input.getId(), this);
 
+        // Targets of Unknown layout are collinear (first target) and opposite (second target) forward targets
+        if (parameters.getReadsLayout() == PairedEndReadsLayout.Auto && layout == PairedEndReadsLayout.Unknown
+                && detectedLayout == null)
+            voteForLayout(bestHelper == helpers[1]);
+
         onSuccessfulAlignment(input, alignments);
 
         return new VDJCAlignmentResult<>(input, alignments);
     }
 
-    PairedTarget[] getTargets(PairedRead read) {
-        return parameters.getReadsLayout().createTargets(read);
+    PairedEndReadsLayout getLayout() {
+        PairedEndReadsLayout layout = parameters.getReadsLayout();
+        if (layout != PairedEndReadsLayout.Auto)
+            return layout;
+        PairedEndReadsLayout detected = detectedLayout;
+        return detected == null ? PairedEndReadsLayout.Unknown : detected;
+    }
+
+    private void voteForLayout(boolean isOpposite) {
+        if (isOpposite)
+            oppositeVotes.incrementAndGet();
+        else
+            collinearVotes.incrementAndGet();
+
+        // Only one thread makes the decision; reads voting concurrently with it are not taken into account
+        if (sampled.incrementAndGet() != layoutDetectionSample)
+            return;
+
+        long collinear = collinearVotes.get(), opposite = oppositeVotes.get();
+        PairedEndReadsLayout layout = PairedEndReadsLayout.Unknown;
+        if (collinear >= LAYOUT_DETECTION_THRESHOLD * (collinear + opposite))
+            layout = PairedEndReadsLayout.Collinear;
+        else if (opposite >= LAYOUT_DETECTION_THRESHOLD * (collinear + opposite))
+            layout = PairedEndReadsLayout.Opposite;
+        detectedLayout = layout;
+        onReadsLayoutDetected(layout, collinear, opposite);
     }
 
     PAlignmentHelper[] createInitialHelpers(PairedTarget[] target) {
@@ -135,8 +189,8 @@ public final class VDJCAlignerPVFirst extends VDJCAlignerAbstract<PairedRead> {
 
     PAlignmentHelper createInitialHelper(PairedTarget target) {
         return new PAlignmentHelper(target,
-                vAligner.align(target.targets[0].getSequence()),
-                vAligner.align(target.targets[1].getSequence())
+                align(vAligner, target.targets[0].getSequence()),
+                align(vAligner, target.targets[1].getSequence())
         );
     }
 
@@ -295,7 +349,7 @@ public final class VDJCAlignerPVFirst extends VDJCAlignerAbstract<PairedRead> {
                     if (jAlignment == null)
                         continue;
                     int from = jAlignment.getSequence2Range().getTo();
-                    List<KAlignmentHit> temp = cAligner.align(target.targets[i].getSequence(), from, target.targets[i].size()).getHits();
+                    List<KAlignmentHit> temp = align(cAligner, target.targets[i].getSequence(), from, target.targets[i].size()).getHits();
                     results[i] = temp.toArray(new KAlignmentHit[temp.size()]);
                 }
                 cHits = combine(getCAllelesToAlign(),
@@ -337,7 +391,7 @@ public final class VDJCAlignerPVFirst extends VDJCAlignerAbstract<PairedRead> {
                     || vHit.getAlignment().getSequence2Range().getTo() == targetSequence.size())
                 return null;
 
-            return jAligner.align(targetSequence,
+            return align(jAligner, targetSequence,
                     vHit.getAlignment().getSequence2Range().getTo(),
                     targetSequence.size());
         }
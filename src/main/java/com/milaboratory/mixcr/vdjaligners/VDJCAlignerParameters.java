@@ -55,6 +55,8 @@ public final class VDJCAlignerParameters implements HasFeatureToAlign {
     protected float relativeMinVScore;
     protected PairedEndReadsLayout readsLayout;
     protected MergerParameters mergerParameters;
+    protected boolean orientationPreScreen;
+    protected int alignmentCacheSize;
 
     protected VDJCAlignerParameters(EnumMap<GeneType, GeneAlignmentParameters> alignmentParameters, float minSumScore,
                                     int maxHits, float relativeMinVScore, float relativeMinVFR3CDR3Score,
@@ -228,6 +230,32 @@ public final class VDJCAlignerParameters implements HasFeatureToAlign {
         return mergerParameters;
     }
 
+    /**
+     * If true, strand of single reads is first determined by k-mer voting against V and J references, and full V/J
+     * search on both strands is performed only if the strand can't be determined.
+     */
+    public boolean isOrientationPreScreen() {
+        return orientationPreScreen;
+    }
+
+    public VDJCAlignerParameters setOrientationPreScreen(boolean orientationPreScreen) {
+        this.orientationPreScreen = orientationPreScreen;
+        return this;
+    }
+
+    /**
+     * Maximal number of V, J and C alignment results memoized by exact target sequence (0 disables the cache).
+     * Doesn't affect alignment results, so it is not taken into account in {@link #equals(Object)}.
+     */
+    public int getAlignmentCacheSize() {
+        return alignmentCacheSize;
+    }
+
+    public VDJCAlignerParameters setAlignmentCacheSize(int alignmentCacheSize) {
+        this.alignmentCacheSize = alignmentCacheSize;
+        return this;
+    }
+
     @Override
     public String toString() {
         return "VDJCAlignerParameters{" +
@@ -238,6 +266,8 @@ public final class VDJCAlignerParameters implements HasFeatureToAlign {
                 ", relativeMinVScore=" + relativeMinVScore +
                 ", readsLayout=" + readsLayout +
                 ", mergerParameters=" + mergerParameters +
+                ", orientationPreScreen=" + orientationPreScreen +
+                ", alignmentCacheSize=" + alignmentCacheSize +
                 '}';
     }
 
@@ -256,6 +286,7 @@ public final class VDJCAlignerParameters implements HasFeatureToAlign {
         if (mergerParameters != null ? !mergerParameters.equals(that.mergerParameters) : that.mergerParameters != null)
             return false;
         if (readsLayout != that.readsLayout) return false;
+        if (orientationPreScreen != that.orientationPreScreen) return false;
 
         return true;
     }
@@ -269,12 +300,15 @@ public final class VDJCAlignerParameters implements HasFeatureToAlign {
         result = 31 * result + (relativeMinVScore != +0.0f ? Float.floatToIntBits(relativeMinVScore) : 0);
         result = 31 * result + (readsLayout != null ? readsLayout.hashCode() : 0);
         result = 31 * result + (mergerParameters != null ? mergerParameters.hashCode() : 0);
+        result = 31 * result + (orientationPreScreen ? 1 : 0);
         return result;
     }
 
     @Override
     public VDJCAlignerParameters clone() {
         return new VDJCAlignerParameters(getVAlignerParameters(), getDAlignerParameters(), getJAlignerParameters(), getCAlignerParameters(),
-                minSumScore, maxHits, relativeMinVFR3CDR3Score, relativeMinVScore, readsLayout, mergerParameters);
+                minSumScore, maxHits, relativeMinVFR3CDR3Score, relativeMinVScore, readsLayout, mergerParameters)
+                .setOrientationPreScreen(orientationPreScreen)
+                .setAlignmentCacheSize(alignmentCacheSize);
     }
 }
@@ -40,6 +40,13 @@ import java.util.EnumMap;
 import java.util.List;
 
 public final class VDJCAlignerSJFirst extends VDJCAlignerAbstract<SingleRead> {
+    // Aligner is shared between processing threads, so reusable state is stored per thread
+    private final ThreadLocal<SingleAlignerContext> contexts = new ThreadLocal<SingleAlignerContext>() {
+        @Override
+        protected SingleAlignerContext initialValue() {
+            return new SingleAlignerContext();
+        }
+    };
 
     public VDJCAlignerSJFirst(VDJCAlignerParameters parameters) {
         super(parameters);
@@ -49,17 +56,41 @@ public final class VDJCAlignerSJFirst extends VDJCAlignerAbstract<SingleRead> {
     public VDJCAlignmentResult<SingleRead> process(SingleRead input) {
         ensureInitialized();
 
-        NucleotideSequence target = input.getData().getSequence();
-        NucleotideSequence targetRC = target.getReverseComplement();
+        SingleAlignerContext context = contexts.get();
+        context.reset(input.getData().getSequence());
+        try {
+            return process(input, context);
+        } finally {
+            context.clear();
+        }
+    }
 
-        KVJResultsForSingle vjResultForward = align(target, false);
-        KVJResultsForSingle vjResultReverse = align(targetRC, true);
+    private VDJCAlignmentResult<SingleRead> process(SingleRead input, SingleAlignerContext context) {
+        NucleotideSequence target = context.target;
+        KVJResultsForSingle vjResultForward = context.forward;
+        KVJResultsForSingle vjResultReverse = context.reverse;
+
+        // Strands are aligned one after another (J then V) as KAligner picks seeds using thread-local random
+        // generator, so results depend on the order of calls; V search is performed only for strands with J hits
+        int orientation = 0;
+        if (orientationClassifier != null) {
+            orientation = orientationClassifier.classify(target);
+            onOrientationPreScreen(input, orientation != 0);
+        }
+        if (orientation >= 0)
+            align(context, vjResultForward);
+        if (orientation <= 0)
+            align(context, vjResultReverse);
+
+        // Reads without J hits on both strands are rejected here: J search was performed for both strands (V search
+        // was skipped for them), but no hits or alignments objects are created
+        if (!vjResultForward.hasKJHits() && !vjResultReverse.hasKJHits()) {
+            onFailedAlignment(input, VDJCAlignmentFailCause.NoJHits);
+            return new VDJCAlignmentResult<>(input);
+        }
 
         if (!vjResultForward.isFull() && !vjResultReverse.isFull()) {
-            if (!vjResultForward.hasKJHits() && !vjResultReverse.hasKJHits())
-                onFailedAlignment(input, VDJCAlignmentFailCause.NoJHits);
-            else
-                onFailedAlignment(input, VDJCAlignmentFailCause.NoVHits);
+            onFailedAlignment(input, VDJCAlignmentFailCause.NoVHits);
             return new VDJCAlignmentResult<>(input);
         }
 
@@ -93,7 +124,7 @@ public final class VDJCAlignerSJFirst extends VDJCAlignerAbstract<SingleRead> {
                 //Alignment of D gene
                 int from = topResult.vHits[0].getAlignment().getSequence2Range().getTo(),
                         to = topResult.jHits[0].getAlignment().getSequence2Range().getFrom();
-                List<PreVDJCHit> dResult = singleDAligner.align0(topResult.isRC ? targetRC : target, from, to);
+                List<PreVDJCHit> dResult = singleDAligner.align0(context.getTarget(topResult.isRC), from, to);
                 hits.put(GeneType.Diversity, PreVDJCHit.convert(getDAllelesToAlign(),
                         parameters.getFeatureToAlign(GeneType.Diversity), dResult));
             }
@@ -105,7 +136,7 @@ public final class VDJCAlignerSJFirst extends VDJCAlignerAbstract<SingleRead> {
 
             if (cAligner != null) {
                 int from = topResult.jHits[0].getAlignment().getSequence2Range().getTo();
-                KAlignmentResult res = cAligner.align(topResult.isRC ? targetRC : target, from, target.size());
+                KAlignmentResult res = align(cAligner, context.getTarget(topResult.isRC), from, target.size());
 
                 hits.put(GeneType.Constant,
                         KVJResultsForSingle.createHits(res.getHits(), getCAllelesToAlign(),
@@ -114,7 +145,7 @@ public final class VDJCAlignerSJFirst extends VDJCAlignerAbstract<SingleRead> {
 
             VDJCAlignments alignment = new VDJCAlignments(
                     input.getId(), hits, topResult.isRC ?
-                    new NSequenceWithQuality(targetRC, input.getData().getQuality().reverse()) :
+                    new NSequenceWithQuality(context.getTargetRC(), input.getData().getQuality().reverse()) :
                     new NSequenceWithQuality(target, input.getData().getQuality())
             );
 
@@ -126,23 +157,21 @@ public final class VDJCAlignerSJFirst extends VDJCAlignerAbstract<SingleRead> {
         }
     }
 
-    private KVJResultsForSingle align(NucleotideSequence read, boolean isRC) {
-        ensureInitialized();
-
-        KAlignmentResult jResult;
+    private void align(SingleAlignerContext context, KVJResultsForSingle result) {
+        NucleotideSequence read = context.getTarget(result.isRC);
 
-        jResult = jAligner.align(read);
+        KAlignmentResult jResult = align(jAligner, read);
 
         //If there is no results for J return
-        if (!jResult.hasHits())
-            return new KVJResultsForSingle(null, jResult, isRC);
+        if (!jResult.hasHits()) {
+            result.set(null, jResult);
+            return;
+        }
 
         //Searching for V gene
-        KAlignmentResult vResult = vAligner.align(read, 0,
+        KAlignmentResult vResult = align(vAligner, read, 0,
                 jResult.getBestHit().getAlignment().getSequence2Range().getFrom());
 
-        //Returning result
-        return new KVJResultsForSingle(vResult, jResult, isRC);
+        result.set(vResult, jResult);
     }
 }
-
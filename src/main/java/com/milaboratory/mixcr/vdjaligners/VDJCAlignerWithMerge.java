@@ -28,6 +28,7 @@
  */
 package com.milaboratory.mixcr.vdjaligners;
 
+import com.google.common.cache.CacheStats;
 import com.milaboratory.core.io.sequence.PairedRead;
 import com.milaboratory.core.io.sequence.SingleReadImpl;
 import com.milaboratory.mitools.merger.MismatchOnlyPairedReadMerger;
@@ -42,14 +43,21 @@ import com.milaboratory.mixcr.reference.Allele;
 public final class VDJCAlignerWithMerge extends VDJCAligner<PairedRead> {
     final VDJCAlignerSJFirst singleAligner;
     final VDJCAlignerPVFirst pairedAligner;
-    final MismatchOnlyPairedReadMerger merger;
+    /**
+     * Null in {@link PairedEndReadsLayout#Auto} mode until layout is detected by paired aligner
+     */
+    volatile MismatchOnlyPairedReadMerger merger;
 
     public VDJCAlignerWithMerge(VDJCAlignerParameters parameters) {
         super(parameters);
+        PairedEndReadsLayout layout = parameters.getReadsLayout();
+        if (layout != PairedEndReadsLayout.Auto && layout.isOpposite() == null)
+            throw new IllegalArgumentException("Merging of paired reads requires known reads layout (Opposite, " +
+                    "Collinear or Auto), layout " + layout + " can be used only without merging.");
         singleAligner = new VDJCAlignerSJFirst(parameters);
         pairedAligner = new VDJCAlignerPVFirst(parameters);
-        merger = new MismatchOnlyPairedReadMerger(parameters.getMergerParameters(),
-                parameters.getReadsLayout().isOpposite());
+        if (layout != PairedEndReadsLayout.Auto)
+            merger = new MismatchOnlyPairedReadMerger(parameters.getMergerParameters(), layout.isOpposite());
     }
 
     @Override
@@ -70,8 +78,37 @@ public final class VDJCAlignerWithMerge extends VDJCAligner<PairedRead> {
     protected void init() {
     }
 
+    @Override
+    public CacheStats getDAlignmentCacheStats() {
+        CacheStats singleStats = singleAligner.getDAlignmentCacheStats(),
+                pairedStats = pairedAligner.getDAlignmentCacheStats();
+        if (singleStats == null)
+            return pairedStats;
+        if (pairedStats == null)
+            return singleStats;
+        return singleStats.plus(pairedStats);
+    }
+
+    /**
+     * Returns merger for the known (or already detected) reads layout, or null if reads should be aligned without
+     * merging: in {@link PairedEndReadsLayout#Auto} mode until layout is detected, or if no layout dominates.
+     */
+    private MismatchOnlyPairedReadMerger getMerger() {
+        MismatchOnlyPairedReadMerger merger = this.merger;
+        if (merger != null)
+            return merger;
+        PairedEndReadsLayout detected = pairedAligner.getDetectedLayout();
+        if (detected == null || detected.isOpposite() == null)
+            return null;
+        // Several threads may create equivalent mergers at the same time
+        return this.merger = new MismatchOnlyPairedReadMerger(parameters.getMergerParameters(), detected.isOpposite());
+    }
+
     @Override
     public VDJCAlignmentResult<PairedRead> process(PairedRead read) {
+        MismatchOnlyPairedReadMerger merger = getMerger();
+        if (merger == null)
+            return pairedAligner.process(read);
         PairedReadMergingResult merged = merger.process(read);
         if (merged.isSuccessful()) {
             VDJCAlignments alignment = singleAligner.process(
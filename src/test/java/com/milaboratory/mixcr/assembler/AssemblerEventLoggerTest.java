@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.assembler;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class AssemblerEventLoggerTest {
+    @Test
+    public void testDeepReordering() throws Exception {
+        final int count = 200_000, threads = 4;
+        // Events are shuffled within windows much larger than the former limit on number of pending events
+        final List<Integer> order = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i)
+            order.add(i);
+        Random random = new Random(123);
+        int window = 20_000;
+        for (int i = 0; i < count; i += window)
+            Collections.shuffle(order.subList(i, Math.min(count, i + window)), random);
+
+        final AssemblerEventLogger logger = new AssemblerEventLogger();
+        try {
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; ++t) {
+                final int offset = t;
+                workers[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = offset; i < count; i += threads) {
+                            int index = order.get(i);
+                            logger.newEvent(new AssemblerEvent(index, 3L * index, cloneIndex(index)));
+                        }
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers)
+                worker.join();
+            logger.end(count);
+
+            int i = 0;
+            for (AssemblerEvent event : logger.events()) {
+                Assert.assertEquals(i, event.alignmentsIndex);
+                Assert.assertEquals(3L * i, event.readId);
+                Assert.assertEquals(cloneIndex(i), event.cloneIndex);
+                ++i;
+            }
+            Assert.assertEquals(count, i);
+        } finally {
+            logger.close();
+        }
+    }
+
+    private static int cloneIndex(int alignmentsIndex) {
+        return alignmentsIndex % 5 == 0 ? AssemblerEvent.DEFERRED : alignmentsIndex % 1000;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicate() throws Exception {
+        AssemblerEventLogger logger = new AssemblerEventLogger();
+        try {
+            logger.newEvent(new AssemblerEvent(1, 1, 0));
+            logger.newEvent(new AssemblerEvent(1, 1, 0));
+        } finally {
+            logger.close();
+        }
+    }
+
+    @Test
+    public void testWaitingForSpace() throws Exception {
+        final int count = 4 * AssemblerEventLogger.RING_CAPACITY;
+        final AssemblerEventLogger logger = new AssemblerEventLogger();
+        try {
+            // Second thread submits events far ahead of the writer, so it has to wait for the first one
+            Thread[] workers = new Thread[2];
+            for (int t = 0; t < workers.length; ++t) {
+                final int from = t * count / 2, to = (t + 1) * count / 2;
+                workers[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = from; i < to; ++i)
+                            logger.newEvent(new AssemblerEvent(i, i, cloneIndex(i)));
+                    }
+                });
+            }
+            workers[1].start();
+            workers[0].start();
+            for (Thread worker : workers)
+                worker.join();
+            logger.end(count);
+
+            int i = 0;
+            for (AssemblerEvent event : logger.events())
+                Assert.assertEquals(i++, event.readId);
+            Assert.assertEquals(count, i);
+        } finally {
+            logger.close();
+        }
+    }
+
+    @Test
+    public void testUnorderedReadIds() throws Exception {
+        // Alignments written by "align --unordered", read ids go back and forth
+        long[] readIds = {5, 4, 3, 100, 0, 1L << 40, 7, 7, 6};
+        AssemblerEventLogger logger = new AssemblerEventLogger();
+        try {
+            for (int i = 0; i < readIds.length; ++i)
+                logger.newEvent(new AssemblerEvent(i, readIds[i], cloneIndex(i)));
+            logger.end(readIds.length);
+
+            int i = 0;
+            for (AssemblerEvent event : logger.events()) {
+                Assert.assertEquals(i, event.alignmentsIndex);
+                Assert.assertEquals(readIds[i], event.readId);
+                Assert.assertEquals(cloneIndex(i++), event.cloneIndex);
+            }
+            Assert.assertEquals(readIds.length, i);
+        } finally {
+            logger.close();
+        }
+    }
+
+    @Test
+    public void testCloseWithoutEnd() throws Exception {
+        AssemblerEventLogger logger = new AssemblerEventLogger();
+        logger.newEvent(new AssemblerEvent(0, 0, 0));
+        logger.newEvent(new AssemblerEvent(2, 2, 0));
+        logger.close();
+        Assert.assertFalse(logger.writerThread.isAlive());
+        Assert.assertFalse(logger.file.exists());
+    }
+}
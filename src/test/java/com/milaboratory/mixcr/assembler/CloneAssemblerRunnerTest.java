@@ -35,15 +35,18 @@ import com.milaboratory.core.alignment.LinearGapAlignmentScoring;
 import com.milaboratory.core.io.sequence.SequenceReader;
 import com.milaboratory.core.io.sequence.fastq.PairedFastqReader;
 import com.milaboratory.core.io.sequence.fastq.SingleFastqReader;
+import com.milaboratory.core.sequence.NSequenceWithQuality;
 import com.milaboratory.core.sequence.NucleotideSequence;
 import com.milaboratory.core.tree.TreeSearchParameters;
+import com.milaboratory.mixcr.basictypes.ClonalSequence;
 import com.milaboratory.mixcr.basictypes.Clone;
 import com.milaboratory.mixcr.basictypes.CloneSet;
 import com.milaboratory.mixcr.basictypes.CloneSetIO;
+import com.milaboratory.mixcr.basictypes.VDJCHit;
+import com.milaboratory.mixcr.basictypes.VDJCAlignments;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsWriter;
 import com.milaboratory.mixcr.reference.*;
 import com.milaboratory.mixcr.vdjaligners.*;
-import com.milaboratory.util.GlobalObjectMappers;
 import com.milaboratory.util.SmartProgressReporter;
 import org.junit.Assert;
 import org.junit.Ignore;
@@ -54,13 +57,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CloneAssemblerRunnerTest {
     @Ignore
     @Test
     public void test1() throws Exception {
-        String[] str = {"sequences/sample_IGH_R1.fastq", "sequences/sample_IGH_R2.fastq"};
-        CloneSet cloneSet = runFullPipeline(str);
+        CloneSet cloneSet = runFullPipeline(IGHSample.R1, IGHSample.R2);
         System.out.println("\n\n");
         for (Clone clone : cloneSet) {
             System.out.println(clone);
@@ -74,23 +81,204 @@ public class CloneAssemblerRunnerTest {
         }
     }
 
+    @Test
+    public void testShardedAccumulation() throws Exception {
+        Sample sample = alignSample(IGHSample.R1, IGHSample.R2);
+
+        // Mapping is disabled, so events are not logged and the same alignment may be processed many times
+        CloneAssemblerParameters assemblerParameters = createAssemblerParameters()
+                .setCloneClusteringParameters(null);
+        assemblerParameters.setMaxBadPointsPercent(0.0);
+
+        // Single dominant clone, all threads accumulate the same alignment
+        VDJCAlignments dominant = null;
+        for (VDJCAlignments alignments : CUtils.it(sample.createProvider().create()))
+            if (hasGoodCDR3(alignments, assemblerParameters)) {
+                dominant = alignments;
+                break;
+            }
+        Assert.assertNotNull(dominant);
+        List<VDJCAlignments> input = Collections.nCopies(10000, dominant);
+
+        CloneSet expected, actual;
+        try (CloneAssembler assembler = sample.createAssembler(assemblerParameters, false)) {
+            CUtils.processAllInParallel(CUtils.asOutputPort(input), assembler.getInitialAssemblerFactory(), 1);
+            assembler.buildClones();
+            expected = assembler.getCloneSet();
+        }
+        try (CloneAssembler assembler = sample.createAssembler(assemblerParameters, false)) {
+            assembler.setShardedAccumulation(true);
+            CUtils.processAllInParallel(CUtils.asOutputPort(input), assembler.getInitialAssemblerFactory(), 4);
+            assembler.buildClones();
+            actual = assembler.getCloneSet();
+        }
+
+        Assert.assertEquals(1, actual.size());
+        Assert.assertEquals(input.size(), actual.get(0).getCount());
+        assertCSEqualis(expected, actual);
+    }
+
+    @Test
+    public void testSinglePassMapping() throws Exception {
+        Sample sample = alignSample(IGHSample.R1, IGHSample.R2);
+
+        // Clustering is disabled, so clones are compared with those assembled in two-pass mode one-to-one (each
+        // deferred read of this sample has a single candidate clone, so mapping is not randomized)
+        CloneAssemblerParameters assemblerParameters = createAssemblerParameters()
+                .setCloneClusteringParameters(null);
+
+        CloneSet expected = assemble(sample, sample.createAssembler(assemblerParameters, true));
+        Assert.assertEquals(2, sample.passes.getAndSet(0));
+
+        CloneAssembler assembler = sample.createAssembler(assemblerParameters, true);
+        assembler.enableSinglePassMapping(sample.aligner.getParameters());
+        CloneSet actual = assemble(sample, assembler);
+        // Deferred alignments were read from the side file
+        Assert.assertEquals(1, sample.passes.get());
+
+        assertCSEqualsIgnoringOrder(expected, actual);
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        Sample sample = alignSample(IGHSample.R1, IGHSample.R2);
+
+        // Clustering is enabled: clusters (with substitutions only) never cross windows of spilled clones
+        CloneAssemblerParameters assemblerParameters = createAssemblerParameters();
+
+        CloneAssembler expectedAssembler = sample.createAssembler(assemblerParameters, true);
+        expectedAssembler.enableSinglePassMapping(sample.aligner.getParameters());
+        CloneSet expected = assemble(sample, expectedAssembler);
+        Map<Long, ClonalSequence> expectedReads = assembledReads(expectedAssembler, expected);
+
+        try (CloneAssembler assembler = sample.createAssembler(assemblerParameters, true)) {
+            assembler.enableSinglePassMapping(sample.aligner.getParameters());
+            // Only a couple of accumulators fit the budget
+            assembler.setMemoryBudget(2 * CloneAccumulator.ESTIMATED_OVERHEAD);
+            sample.passes.set(0);
+            CloneSet actual = assemble(sample, assembler);
+            Assert.assertTrue(assembler.hasSpilledClones());
+            Assert.assertEquals(1, sample.passes.get());
+
+            assertCSEqualsIgnoringOrder(expected, actual);
+            Assert.assertEquals(expectedReads, assembledReads(assembler, actual));
+
+            // Clones are streamed from the temporary file
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            assembler.createCloneSetWriter(bos).write();
+            assertCSEqualis(actual, CloneSetIO.read(new ByteArrayInputStream(bos.toByteArray()), sample.library));
+        }
+    }
+
+    private static Map<Long, ClonalSequence> assembledReads(CloneAssembler assembler, CloneSet cloneSet) {
+        Map<Long, ClonalSequence> reads = new HashMap<>();
+        for (ReadToCloneMapping mapping : CUtils.it(assembler.getAssembledReadsPort()))
+            if (!mapping.isDropped())
+                reads.put(mapping.getAlignmentsId(), clonalSequence(cloneSet.getClones().get(mapping.getCloneIndex())));
+        return reads;
+    }
+
+    @Test
+    public void testParallelClonesBuilding() throws Exception {
+        Sample sample = alignSample(IGHSample.R1, IGHSample.R2);
+
+        CloneAssemblerParameters assemblerParameters = createAssemblerParameters()
+                .setCloneClusteringParameters(null);
+        assemblerParameters.setMaxBadPointsPercent(0.0);
+
+        CloneSet expected = buildClones(sample, assemblerParameters, 1);
+        Assert.assertTrue(expected.size() > 4);
+        // Clones built by several threads are placed according to their indices, so order is the same
+        assertCSEqualis(expected, buildClones(sample, assemblerParameters, 4));
+    }
+
+    private static CloneSet buildClones(Sample sample, CloneAssemblerParameters assemblerParameters, int threads)
+            throws IOException, InterruptedException {
+        try (CloneAssembler assembler = sample.createAssembler(assemblerParameters, true);
+             OutputPortCloseable<VDJCAlignments> alignmentsPort = sample.createProvider().create()) {
+            CUtils.processAllInParallel(alignmentsPort, assembler.getInitialAssemblerFactory(), 1);
+            assembler.buildClones(threads);
+            return assembler.getCloneSet();
+        }
+    }
+
+    private static boolean hasGoodCDR3(VDJCAlignments alignments, CloneAssemblerParameters assemblerParameters) {
+        NSequenceWithQuality cdr3 = alignments.getFeature(GeneFeature.CDR3);
+        if (cdr3 == null)
+            return false;
+        for (int i = cdr3.size() - 1; i >= 0; --i)
+            if (cdr3.getQuality().value(i) <= assemblerParameters.getBadQualityThreshold())
+                return false;
+        return true;
+    }
+
     private static CloneSet runFullPipeline(String... fastqFiles) throws IOException, InterruptedException {
-        //building alignments
-        VDJCAlignerParameters alignerParameters = VDJCParametersPresets.getByName("default");
-        VDJCAligner aligner = fastqFiles.length == 1 ? new VDJCAlignerSJFirst(alignerParameters) : new VDJCAlignerWithMerge(alignerParameters);
+        Sample sample = alignSample(fastqFiles);
+
+        CloneAssemblerParameters assemblerParameters = createAssemblerParameters();
+        return assemble(sample, sample.createAssembler(assemblerParameters, true));
+    }
+
+    /**
+     * Alignments of a sample, serialized in .vdjca format
+     */
+    private static final class Sample {
+        final LociLibrary library;
+        final VDJCAligner aligner;
+        final byte[] alignments;
+        // Number of passes over alignments
+        final AtomicInteger passes = new AtomicInteger();
+
+        Sample(LociLibrary library, VDJCAligner aligner, byte[] alignments) {
+            this.library = library;
+            this.aligner = aligner;
+            this.alignments = alignments;
+        }
+
+        AlignmentsProvider createProvider() {
+            final AlignmentsProvider provider = AlignmentsProvider.Util.createProvider(alignments, library);
+            return new AlignmentsProvider() {
+                @Override
+                public OutputPortCloseable<VDJCAlignments> create() {
+                    passes.incrementAndGet();
+                    return provider.create();
+                }
 
+                @Override
+                public long getTotalNumberOfReads() {
+                    return provider.getTotalNumberOfReads();
+                }
+            };
+        }
+
+        CloneAssembler createAssembler(CloneAssemblerParameters assemblerParameters, boolean logAssemblerEvents) {
+            return new CloneAssembler(assemblerParameters, logAssemblerEvents, aligner.getUsedAlleles());
+        }
+    }
+
+    private static Sample alignSample(String... fastqFiles) throws IOException {
+        LociLibrary library = loadLibrary();
+        VDJCAligner aligner = createAligner(library, fastqFiles.length);
+        return new Sample(library, aligner, align(aligner, fastqFiles));
+    }
+
+    private static LociLibrary loadLibrary() throws IOException {
         InputStream sample = LociLibraryReader.class.getClassLoader().getResourceAsStream("reference/mi.ll");
-        LociLibrary library = LociLibraryReader.read(sample);
-        for (Allele allele : library.getLocus(Species.HomoSapiens, Locus.IGH).getAllAlleles())
-            if (alignerParameters.containsRequiredFeature(allele))
-                aligner.addAllele(allele);
+        return LociLibraryReader.read(sample);
+    }
 
+    private static VDJCAligner createAligner(LociLibrary library, int numberOfFastqFiles) {
+        VDJCAlignerParameters alignerParameters = VDJCParametersPresets.getByName("default");
+        VDJCAligner aligner = numberOfFastqFiles == 1 ? new VDJCAlignerSJFirst(alignerParameters) : new VDJCAlignerWithMerge(alignerParameters);
+        return IGHSample.addAlleles(aligner, library);
+    }
+
+    private static byte[] align(VDJCAligner aligner, String... fastqFiles) throws IOException {
         SequenceReader reader;
         if (fastqFiles.length == 1)
-            reader = new SingleFastqReader(CloneAssemblerRunnerTest.class.getClassLoader().getResourceAsStream(fastqFiles[0]));
+            reader = new SingleFastqReader(IGHSample.open(fastqFiles[0]));
         else
-            reader = new PairedFastqReader(CloneAssemblerRunnerTest.class.getClassLoader().getResourceAsStream(fastqFiles[0]),
-                    CloneAssemblerRunnerTest.class.getClassLoader().getResourceAsStream(fastqFiles[1]));
+            reader = new PairedFastqReader(IGHSample.open(fastqFiles[0]), IGHSample.open(fastqFiles[1]));
 
         //write alignments to byte array
         ByteArrayOutputStream alignmentsSerialized = new ByteArrayOutputStream();
@@ -102,11 +290,10 @@ public class CloneAssemblerRunnerTest {
                     writer.write(result.alignment);
             }
         }
+        return alignmentsSerialized.toByteArray();
+    }
 
-        AlignmentsProvider alignmentsProvider = AlignmentsProvider.Util.createProvider(
-                alignmentsSerialized.toByteArray(),
-                library);
-
+    private static CloneAssemblerParameters createAssemblerParameters() {
         LinearGapAlignmentScoring<NucleotideSequence> scoring = new LinearGapAlignmentScoring<>(NucleotideSequence.ALPHABET, 5, -9, -12);
         CloneFactoryParameters factoryParameters = new CloneFactoryParameters(
                 new VJCClonalAlignerParameters(GeneFeature.VRegion, 0.8f,
@@ -117,15 +304,16 @@ public class CloneAssemblerRunnerTest {
                 new DAlignerParameters(GeneFeature.DRegion, 30.0f, 0.85f, 3, scoring)
         );
 
-        CloneAssemblerParameters assemblerParameters = new CloneAssemblerParameters(
+        return new CloneAssemblerParameters(
                 new GeneFeature[]{GeneFeature.CDR3},
                 new CloneClusteringParameters(2, 1, TreeSearchParameters.ONE_MISMATCH, new RelativeConcentrationFilter(1.0E-6)),
                 factoryParameters, true, (byte) 20, .8, "2 of 6");
+    }
 
-        System.out.println(GlobalObjectMappers.toOneLine(assemblerParameters));
-
-        CloneAssemblerRunner assemblerRunner = new CloneAssemblerRunner(alignmentsProvider,
-                new CloneAssembler(assemblerParameters, true, aligner.getUsedAlleles()), 2);
+    private static CloneSet assemble(Sample sample, CloneAssembler assembler)
+            throws IOException, InterruptedException {
+        LociLibrary library = sample.library;
+        CloneAssemblerRunner assemblerRunner = new CloneAssemblerRunner(sample.createProvider(), assembler, 2);
         SmartProgressReporter.startProgressReport(assemblerRunner);
         assemblerRunner.run();
 
@@ -138,10 +326,12 @@ public class CloneAssemblerRunnerTest {
 
         assertCSEqualis(cloneSet, cloneSetDeserialized);
 
-        OutputPortCloseable<ReadToCloneMapping> rrr = assemblerRunner.assembler.getAssembledReadsPort();
-        ReadToCloneMapping take;
-        while ((take = rrr.take()) != null)
-            System.out.println(take);
+        // Each assembled read refers to one of the clones
+        try (OutputPortCloseable<ReadToCloneMapping> mappings = assemblerRunner.assembler.getAssembledReadsPort()) {
+            for (ReadToCloneMapping mapping : CUtils.it(mappings))
+                if (!mapping.isDropped())
+                    Assert.assertTrue(mapping.getCloneIndex() < cloneSet.size());
+        }
 
         return cloneSet;
     }
@@ -158,4 +348,40 @@ public class CloneAssemblerRunnerTest {
         for (int i = 0; i < expected.getClones().size(); ++i)
             Assert.assertEquals(expected.getClones().get(i), actual.getClones().get(i));
     }
-}
\ No newline at end of file
+
+    private static void assertCSEqualsIgnoringOrder(CloneSet expected, CloneSet actual) {
+        Assert.assertEquals(expected.getClones().size(), actual.getClones().size());
+        Assert.assertEquals(expected.getTotalCount(), actual.getTotalCount());
+        Map<ClonalSequence, Clone> expectedClones = new HashMap<>();
+        for (Clone clone : expected)
+            expectedClones.put(clonalSequence(clone), clone);
+        for (Clone clone : actual) {
+            Clone e = expectedClones.get(clonalSequence(clone));
+            Assert.assertNotNull(e);
+            Assert.assertEquals(e.getCount(), clone.getCount());
+            for (GeneType geneType : GeneType.values()) {
+                // D alignment range depends on which of equally scored V/J alleles comes first,
+                // so D hits are not stable between runs
+                if (geneType == GeneType.Diversity)
+                    continue;
+                Assert.assertEquals(hitScores(e.getHits(geneType)), hitScores(clone.getHits(geneType)));
+            }
+        }
+    }
+
+    private static ClonalSequence clonalSequence(Clone clone) {
+        NSequenceWithQuality[] targets = new NSequenceWithQuality[clone.numberOfTargets()];
+        for (int i = 0; i < targets.length; ++i)
+            targets[i] = clone.getTarget(i);
+        return new ClonalSequence(targets);
+    }
+
+    private static Map<AlleleId, Float> hitScores(VDJCHit[] hits) {
+        Map<AlleleId, Float> scores = new HashMap<>();
+        if (hits != null)
+            for (VDJCHit hit : hits)
+                // Rounding to avoid differences caused by the order of summation
+                scores.put(hit.getAllele().getId(), Math.round(hit.getScore() * 100.0f) / 100.0f);
+        return scores;
+    }
+}
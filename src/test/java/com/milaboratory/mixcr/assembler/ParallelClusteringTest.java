@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.assembler;
+
+import com.milaboratory.core.clustering.Cluster;
+import com.milaboratory.core.clustering.Clustering;
+import com.milaboratory.core.clustering.ClusteringStrategy;
+import com.milaboratory.core.clustering.SequenceExtractor;
+import com.milaboratory.core.sequence.NucleotideSequence;
+import com.milaboratory.core.tree.NeighborhoodIterator;
+import com.milaboratory.core.tree.TreeSearchParameters;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.apache.commons.math3.random.Well19937c;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ParallelClusteringTest {
+    @Test
+    public void test1() throws Exception {
+        RandomGenerator random = new Well19937c(12345);
+        for (int run = 0; run < 10; ++run) {
+            List<Obj> objects = new ArrayList<>();
+            // Several families of related sequences (single substitutions / indels of seeds and their descendants)
+            for (int family = 0; family < 20; ++family) {
+                NucleotideSequence seed = randomSequence(random, 12);
+                objects.add(new Obj(seed, 1000 + random.nextInt(1000)));
+                for (int i = 0; i < 30; ++i) {
+                    NucleotideSequence parent = objects.get(objects.size() - 1 - random.nextInt(Math.min(3, i + 1))).sequence;
+                    objects.add(new Obj(mutate(random, parent), 1 + random.nextInt(200)));
+                }
+            }
+            // Unrelated singletons
+            for (int i = 0; i < 100; ++i)
+                objects.add(new Obj(randomSequence(random, 12), 1 + random.nextInt(100)));
+
+            for (TreeSearchParameters parameters : new TreeSearchParameters[]{TreeSearchParameters.ONE_MISMATCH,
+                    TreeSearchParameters.ONE_MISMATCH_OR_INDEL}) {
+                TestStrategy strategy = new TestStrategy(parameters, 2);
+                List<Cluster<Obj>> expected = new Clustering<>(objects, EXTRACTOR, strategy).performClustering();
+                List<Cluster<Obj>> actual = new ParallelClustering<>(objects, EXTRACTOR, strategy, 4).performClustering();
+                Assert.assertTrue(expected.size() < objects.size());
+                Assert.assertEquals(expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); ++i)
+                    assertClustersEqual(expected.get(i), actual.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        Assert.assertTrue(new ParallelClustering<>(new ArrayList<Obj>(), EXTRACTOR,
+                new TestStrategy(TreeSearchParameters.ONE_MISMATCH, 2), 2).performClustering().isEmpty());
+    }
+
+    private static void assertClustersEqual(Cluster<Obj> expected, Cluster<Obj> actual) {
+        Assert.assertSame(expected.getHead(), actual.getHead());
+        // Cluster.equals compares heads and children recursively
+        Assert.assertEquals(expected, actual);
+        Assert.assertEquals(expected.totalCount(), actual.totalCount());
+    }
+
+    private static NucleotideSequence randomSequence(RandomGenerator random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; ++i)
+            chars[i] = "ACGT".charAt(random.nextInt(4));
+        return new NucleotideSequence(new String(chars));
+    }
+
+    private static NucleotideSequence mutate(RandomGenerator random, NucleotideSequence sequence) {
+        StringBuilder builder = new StringBuilder(sequence.toString());
+        int position = random.nextInt(builder.length());
+        char letter = "ACGT".charAt(random.nextInt(4));
+        switch (random.nextInt(4)) {
+            case 0:
+                builder.insert(position, letter);
+                break;
+            case 1:
+                builder.deleteCharAt(position);
+                break;
+            default:
+                builder.setCharAt(position, letter);
+        }
+        return new NucleotideSequence(builder.toString());
+    }
+
+    private static final SequenceExtractor<Obj, NucleotideSequence> EXTRACTOR =
+            new SequenceExtractor<Obj, NucleotideSequence>() {
+                @Override
+                public NucleotideSequence getSequence(Obj object) {
+                    return object.sequence;
+                }
+            };
+
+    private static final class Obj {
+        final NucleotideSequence sequence;
+        final long count;
+
+        Obj(NucleotideSequence sequence, long count) {
+            this.sequence = sequence;
+            this.count = count;
+        }
+    }
+
+    private static final class TestStrategy implements ClusteringStrategy<Obj, NucleotideSequence> {
+        final TreeSearchParameters parameters;
+        final int depth;
+
+        TestStrategy(TreeSearchParameters parameters, int depth) {
+            this.parameters = parameters;
+            this.depth = depth;
+        }
+
+        @Override
+        public boolean canAddToCluster(Cluster<Obj> cluster, Obj minorObject,
+                                       NeighborhoodIterator<NucleotideSequence, Obj[]> iterator) {
+            return cluster.getHead().count > 2 * minorObject.count;
+        }
+
+        @Override
+        public TreeSearchParameters getSearchParameters() {
+            return parameters;
+        }
+
+        @Override
+        public int getMaxClusterDepth() {
+            return depth;
+        }
+
+        @Override
+        public int compare(Obj o1, Obj o2) {
+            return Long.compare(o1.count, o2.count);
+        }
+    }
+}
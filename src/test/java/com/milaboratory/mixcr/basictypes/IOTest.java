@@ -31,7 +31,11 @@ package com.milaboratory.mixcr.basictypes;
 import cc.redberry.pipe.CUtils;
 import com.milaboratory.core.io.sequence.SingleRead;
 import com.milaboratory.core.io.sequence.fastq.SingleFastqReader;
+import com.milaboratory.mixcr.assembler.CloneAssembler;
+import com.milaboratory.mixcr.assembler.CloneAssemblerParametersPresets;
 import com.milaboratory.mixcr.reference.*;
+import com.milaboratory.mixcr.util.TempFileManager;
+import com.milaboratory.mixcr.vdjaligners.IGHSample;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignerParameters;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignerSJFirst;
 import com.milaboratory.mixcr.vdjaligners.VDJCAlignmentResult;
@@ -41,6 +45,9 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -103,4 +110,265 @@ public class IOTest {
             Assert.assertEquals(numberOfReads, reader.getNumberOfReads());
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testBlockIndex() throws Exception {
+        LociLibrary ll = LociLibraryManager.getDefault().getLibrary("mi");
+        File file = TempFileManager.getTempFile();
+        List<VDJCAlignments> alignemntsList = new ArrayList<>();
+        long numberOfReads = writeInBlocks(file, alignemntsList, false);
+
+        try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(file, ll)) {
+            Assert.assertTrue(reader.hasIndex());
+            Assert.assertTrue(reader.getNumberOfBlocks() > 5);
+            Assert.assertEquals(alignemntsList.size(), reader.getNumberOfAlignments());
+
+            // Sequential reading
+            int i = 0;
+            for (VDJCAlignments alignments : CUtils.it(reader)) {
+                Assert.assertEquals(i, alignments.getAlignmentsIndex());
+                assertEquals(alignemntsList.get(i++), alignments);
+            }
+            Assert.assertEquals(alignemntsList.size(), i);
+            Assert.assertEquals(numberOfReads, reader.getNumberOfReads());
+
+            // Random access
+            for (int index : new int[]{alignemntsList.size() - 1, 0, 17, alignemntsList.size() / 2, 1}) {
+                reader.seekToAlignment(index);
+                VDJCAlignments alignments = reader.take();
+                Assert.assertEquals(index, alignments.getAlignmentsIndex());
+                assertEquals(alignemntsList.get(index), alignments);
+
+                long readId = alignemntsList.get(index).getReadId();
+                reader.seekToReadId(readId);
+                alignments = reader.take();
+                Assert.assertEquals(readId, alignments.getReadId());
+                assertEquals(alignemntsList.get((int) alignments.getAlignmentsIndex()), alignments);
+            }
+            reader.seekToAlignment(alignemntsList.size());
+            Assert.assertNull(reader.take());
+
+            // Block ranges
+            int blocks = reader.getNumberOfBlocks();
+            i = 0;
+            for (int from = 0; from < blocks; from += 3) {
+                reader.seekToBlock(from);
+                reader.setEndBlock(Math.min(from + 3, blocks));
+                for (VDJCAlignments alignments : CUtils.it(reader)) {
+                    Assert.assertEquals(i, alignments.getAlignmentsIndex());
+                    assertEquals(alignemntsList.get(i++), alignments);
+                }
+            }
+            Assert.assertEquals(alignemntsList.size(), i);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnorderedFlag() throws Exception {
+        LociLibrary ll = LociLibraryManager.getDefault().getLibrary("mi");
+        File file = TempFileManager.getTempFile();
+        List<VDJCAlignments> alignemntsList = new ArrayList<>();
+        // Read ids are actually sorted, but file is marked as unordered
+        writeInBlocks(file, alignemntsList, false, 0, true);
+
+        try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(file, ll)) {
+            Assert.assertEquals(alignemntsList.size(), reader.getNumberOfAlignments());
+            reader.seekToReadId(alignemntsList.get(alignemntsList.size() / 2).getReadId());
+        }
+    }
+
+    @Test
+    public void testParallelDecoding() throws Exception {
+        LociLibrary ll = LociLibraryManager.getDefault().getLibrary("mi");
+        File file = TempFileManager.getTempFile();
+        List<VDJCAlignments> alignemntsList = new ArrayList<>();
+        long numberOfReads = writeInBlocks(file, alignemntsList, false);
+
+        for (int threads : new int[]{2, 4})
+            try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(file, ll)) {
+                reader.setDecodingThreads(threads);
+                int i = 0;
+                for (VDJCAlignments alignments : CUtils.it(reader)) {
+                    Assert.assertEquals(i, alignments.getAlignmentsIndex());
+                    assertEquals(alignemntsList.get(i++), alignments);
+                }
+                Assert.assertEquals(alignemntsList.size(), i);
+                Assert.assertEquals(numberOfReads, reader.getNumberOfReads());
+
+                // Seek discards blocks decoded in advance
+                int index = alignemntsList.size() / 3;
+                reader.seekToAlignment(index);
+                for (VDJCAlignments alignments : CUtils.it(reader))
+                    assertEquals(alignemntsList.get(index++), alignments);
+                Assert.assertEquals(alignemntsList.size(), index);
+            }
+    }
+
+    @Test
+    public void testCompressedBlocks() throws Exception {
+        LociLibrary ll = LociLibraryManager.getDefault().getLibrary("mi");
+        File file = TempFileManager.getTempFile();
+        List<VDJCAlignments> alignemntsList = new ArrayList<>();
+        long numberOfReads = writeInBlocks(file, alignemntsList, true);
+
+        for (int threads : new int[]{1, 3})
+            try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(file, ll)) {
+                reader.setDecodingThreads(threads);
+                int i = 0;
+                for (VDJCAlignments alignments : CUtils.it(reader)) {
+                    Assert.assertEquals(i, alignments.getAlignmentsIndex());
+                    assertEquals(alignemntsList.get(i++), alignments);
+                }
+                Assert.assertEquals(alignemntsList.size(), i);
+                Assert.assertEquals(numberOfReads, reader.getNumberOfReads());
+
+                int index = alignemntsList.size() / 2;
+                reader.seekToAlignment(index);
+                assertEquals(alignemntsList.get(index), reader.take());
+            }
+    }
+
+    @Test
+    public void testAsyncWriting() throws Exception {
+        LociLibrary ll = LociLibraryManager.getDefault().getLibrary("mi");
+        for (boolean compress : new boolean[]{false, true}) {
+            File file = TempFileManager.getTempFile();
+            List<VDJCAlignments> alignemntsList = new ArrayList<>();
+            long numberOfReads = writeInBlocks(file, alignemntsList, compress, 3);
+
+            try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(file, ll)) {
+                Assert.assertTrue(reader.getNumberOfBlocks() > 5);
+                Assert.assertEquals(alignemntsList.size(), reader.getNumberOfAlignments());
+                int i = 0;
+                for (VDJCAlignments alignments : CUtils.it(reader)) {
+                    Assert.assertEquals(i, alignments.getAlignmentsIndex());
+                    assertEquals(alignemntsList.get(i++), alignments);
+                }
+                Assert.assertEquals(alignemntsList.size(), i);
+                Assert.assertEquals(numberOfReads, reader.getNumberOfReads());
+
+                long readId = alignemntsList.get(alignemntsList.size() / 2).getReadId();
+                reader.seekToReadId(readId);
+                Assert.assertEquals(readId, reader.take().getReadId());
+            }
+        }
+    }
+
+    @Test
+    public void testCloneSetFormats() throws Exception {
+        LociLibrary ll = LociLibraryManager.getDefault().getLibrary("mi");
+        CloneSet cloneSet = assembleSample(ll);
+        Assert.assertTrue(cloneSet.size() > 5);
+
+        // Compressed
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        CloneSetIO.CloneSetWriter writer = new CloneSetIO.CloneSetWriter(cloneSet, bos);
+        writer.enableCompression(2);
+        writer.write();
+        assertClonesEqual(cloneSet, CloneSetIO.read(new ByteArrayInputStream(bos.toByteArray()), ll));
+
+        File file = TempFileManager.getTempFile();
+        try {
+            try (OutputStream os = new FileOutputStream(file)) {
+                CloneSetIO.write(cloneSet, os);
+            }
+            Assert.assertTrue(CloneSetIO.isMappable(file));
+
+            // Lazy reading
+            try (MappedCloneSet mapped = CloneSetIO.openMapped(file, ll)) {
+                Assert.assertEquals(cloneSet.size(), mapped.size());
+                Assert.assertEquals(cloneSet.getTotalCount(), mapped.getTotalCount());
+                for (int i = cloneSet.size() - 1; i >= 0; --i) {
+                    Clone clone = mapped.get(i);
+                    Assert.assertEquals(cloneSet.get(i), clone);
+                    Assert.assertEquals(cloneSet.get(i).getFraction(), clone.getFraction(), 0.0);
+                }
+
+                int from = 2, to = cloneSet.size() - 1;
+                MappedCloneSet.RangePort port = mapped.createPort(from, to);
+                for (Clone clone : CUtils.it(port))
+                    Assert.assertEquals(cloneSet.get(from++), clone);
+                Assert.assertEquals(to, from);
+                Assert.assertTrue(port.isFinished());
+            }
+
+            // Streaming
+            try (CloneSetIO.ClonesPort port = CloneSetIO.createPort(file, ll)) {
+                Assert.assertEquals(cloneSet.getTotalCount(), port.getTotalCount());
+                int i = 0;
+                for (Clone clone : CUtils.it(port)) {
+                    Assert.assertEquals(cloneSet.get(i), clone);
+                    Assert.assertEquals(cloneSet.get(i++).getFraction(), clone.getFraction(), 0.0);
+                }
+                Assert.assertEquals(cloneSet.size(), i);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static CloneSet assembleSample(LociLibrary ll) throws Exception {
+        File file = TempFileManager.getTempFile();
+        try {
+            writeInBlocks(file, new ArrayList<VDJCAlignments>(), false);
+            try (VDJCAlignmentsReader reader = new VDJCAlignmentsReader(file, ll);
+                 CloneAssembler assembler = new CloneAssembler(CloneAssemblerParametersPresets.getByName("default"),
+                         false, reader.getUsedAlleles())) {
+                CUtils.processAllInParallel(reader, assembler.getInitialAssemblerFactory(), 1);
+                assembler.buildClones();
+                return assembler.getCloneSet();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void assertClonesEqual(CloneSet expected, CloneSet actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        Assert.assertEquals(expected.getTotalCount(), actual.getTotalCount());
+        for (int i = 0; i < expected.size(); ++i)
+            Assert.assertEquals(expected.get(i), actual.get(i));
+    }
+
+    private static long writeInBlocks(File file, List<VDJCAlignments> alignemntsList, boolean compress)
+            throws Exception {
+        return writeInBlocks(file, alignemntsList, compress, 0);
+    }
+
+    private static long writeInBlocks(File file, List<VDJCAlignments> alignemntsList, boolean compress,
+                                      int asyncThreads) throws Exception {
+        return writeInBlocks(file, alignemntsList, compress, asyncThreads, false);
+    }
+
+    private static long writeInBlocks(File file, List<VDJCAlignments> alignemntsList, boolean compress,
+                                      int asyncThreads, boolean unordered) throws Exception {
+        long numberOfReads;
+        try (SingleFastqReader reader = IGHSample.createSingleReader()) {
+            VDJCAlignerSJFirst aligner = IGHSample.addAlleles(
+                    new VDJCAlignerSJFirst(VDJCParametersPresets.getByName("default")));
+
+            try (VDJCAlignmentsWriter writer = new VDJCAlignmentsWriter(file)) {
+                // Small blocks, to have many of them
+                writer.setBlockSize(1024);
+                if (compress)
+                    writer.enableCompression(2);
+                if (asyncThreads > 0)
+                    writer.enableAsyncWriting(asyncThreads);
+                if (unordered)
+                    writer.setUnordered();
+                writer.header(aligner);
+                // Blocks are compressed by encoding threads in asynchronous mode
+                Assert.assertEquals(compress && asyncThreads == 0, writer.compressor != null);
+                for (SingleRead read : CUtils.it(reader)) {
+                    VDJCAlignmentResult<SingleRead> result = aligner.process(read);
+                    if (result.alignment != null) {
+                        writer.write(result.alignment);
+                        alignemntsList.add(result.alignment);
+                    }
+                }
+                writer.setNumberOfProcessedReads(numberOfReads = reader.getNumberOfReads());
+            }
+        }
+        return numberOfReads;
+    }
+}
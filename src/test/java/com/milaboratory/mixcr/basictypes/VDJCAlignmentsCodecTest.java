@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.basictypes;
+
+import com.milaboratory.core.alignment.Alignment;
+import com.milaboratory.core.sequence.NSequenceWithQuality;
+import com.milaboratory.core.sequence.NucleotideSequence;
+import com.milaboratory.mixcr.reference.*;
+import com.milaboratory.mixcr.vdjaligners.IGHSample;
+import com.milaboratory.mixcr.vdjaligners.VDJCAlignerParameters;
+import com.milaboratory.mixcr.vdjaligners.VDJCParametersPresets;
+import com.milaboratory.primitivio.PrimitivI;
+import com.milaboratory.primitivio.PrimitivO;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.milaboratory.mixcr.basictypes.VDJCAlignmentsCodec.NO_READ_ID;
+
+public class VDJCAlignmentsCodecTest {
+    static VDJCAlignerParameters parameters;
+    static List<VDJCAlignments> sample;
+    static VDJCAlignmentsCodec codec;
+
+    @BeforeClass
+    public static void alignSample() throws Exception {
+        parameters = VDJCParametersPresets.getByName("default");
+        sample = IGHSample.alignSingle();
+
+        Set<Allele> alleles = new LinkedHashSet<>();
+        for (VDJCAlignments alignments : sample)
+            for (VDJCHit[] hits : alignments.hits.values())
+                for (VDJCHit hit : hits)
+                    alleles.add(hit.getAllele());
+        codec = new VDJCAlignmentsCodec(new ArrayList<>(alleles), parameters);
+    }
+
+    @Test
+    public void testSample() throws Exception {
+        assertRoundTrip(sample);
+    }
+
+    @Test
+    public void testPairedTargets() throws Exception {
+        List<VDJCAlignments> paired = new ArrayList<>();
+        for (VDJCAlignments alignments : sample) {
+            NSequenceWithQuality target = alignments.getTarget(0);
+            EnumMap<GeneType, VDJCHit[]> hits = new EnumMap<>(GeneType.class);
+            for (Map.Entry<GeneType, VDJCHit[]> entry : alignments.hits.entrySet()) {
+                VDJCHit[] gtHits = new VDJCHit[entry.getValue().length];
+                for (int i = 0; i < gtHits.length; ++i) {
+                    VDJCHit hit = entry.getValue()[i];
+                    Alignment<NucleotideSequence> alignment = hit.getAlignment(0);
+                    // Hit present in both targets, only in the first one and only in the second one
+                    Alignment<NucleotideSequence>[] pair = i % 3 == 0 ? new Alignment[]{alignment, alignment}
+                            : i % 3 == 1 ? new Alignment[]{alignment, null} : new Alignment[]{null, alignment};
+                    gtHits[i] = new VDJCHit(hit.getAllele(), pair, hit.getAlignedFeature(), hit.getScore());
+                }
+                hits.put(entry.getKey(), gtHits);
+            }
+            paired.add(new VDJCAlignments(alignments.getReadId(), hits, target, target.getReverseComplement()));
+        }
+        assertRoundTrip(paired);
+    }
+
+    @Test
+    public void testMissingHits() throws Exception {
+        List<VDJCAlignments> partial = new ArrayList<>();
+        int i = 0;
+        for (VDJCAlignments alignments : sample) {
+            // Drop hits of a different gene type each time, and sometimes all of them
+            EnumMap<GeneType, VDJCHit[]> hits = new EnumMap<>(GeneType.class);
+            GeneType dropped = VDJCAlignmentsCodec.GENE_TYPES[i % VDJCAlignmentsCodec.GENE_TYPES.length];
+            if (i++ % 7 != 0)
+                for (Map.Entry<GeneType, VDJCHit[]> entry : alignments.hits.entrySet())
+                    if (entry.getKey() != dropped)
+                        hits.put(entry.getKey(), entry.getValue());
+            partial.add(new VDJCAlignments(alignments.getReadId(), hits, alignments.getTarget(0)));
+        }
+        assertRoundTrip(partial);
+    }
+
+    @Test
+    public void testReadIdDeltas() throws Exception {
+        long[] readIds = {0, 1, 1, 5, 3, 0, 1000000, Integer.MAX_VALUE + 1000000L, 7, Long.MAX_VALUE, 12};
+        List<VDJCAlignments> alignments = new ArrayList<>();
+        for (int i = 0; i < readIds.length; ++i) {
+            VDJCAlignments a = sample.get(i);
+            alignments.add(new VDJCAlignments(readIds[i], a.hits, a.getTarget(0)));
+        }
+        assertRoundTrip(alignments);
+    }
+
+    private static void assertRoundTrip(List<VDJCAlignments> alignments) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        PrimitivO output = new PrimitivO(bos);
+        long previousReadId = NO_READ_ID;
+        for (VDJCAlignments a : alignments) {
+            codec.write(output, a, previousReadId);
+            previousReadId = a.getReadId();
+        }
+
+        PrimitivI input = new PrimitivI(new ByteArrayInputStream(bos.toByteArray()));
+        previousReadId = NO_READ_ID;
+        for (VDJCAlignments expected : alignments) {
+            VDJCAlignments actual = codec.read(input, previousReadId);
+            Assert.assertEquals(expected, actual);
+            Assert.assertEquals(expected.getReadId(), actual.getReadId());
+            previousReadId = actual.getReadId();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.cli;
+
+import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPort;
+import cc.redberry.pipe.Processor;
+import cc.redberry.pipe.blocks.ParallelProcessor;
+import cc.redberry.pipe.util.Indexer;
+import cc.redberry.pipe.util.OrderedOutputPort;
+import com.milaboratory.core.io.sequence.PairedRead;
+import com.milaboratory.mixcr.util.InFlightLimiter;
+import com.milaboratory.mixcr.vdjaligners.IGHSample;
+import com.milaboratory.mixcr.vdjaligners.VDJCAligner;
+import com.milaboratory.mixcr.vdjaligners.VDJCAlignmentResult;
+import com.milaboratory.mixcr.vdjaligners.VDJCParametersPresets;
+import com.milaboratory.util.RandomUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cc.redberry.pipe.CUtils.chunked;
+import static cc.redberry.pipe.CUtils.unchunked;
+
+public class ActionAlignTest {
+    @Test
+    public void testAlignInChunks() throws Exception {
+        List<PairedRead> reads = IGHSample.readPaired();
+
+        Processor<PairedRead, VDJCAlignmentResult<PairedRead>> aligner = createAligner();
+        List<VDJCAlignmentResult<PairedRead>> expected = alignPerRead(reads, aligner);
+        Assert.assertEquals(reads.size(), expected.size());
+        int aligned = 0;
+        for (VDJCAlignmentResult<PairedRead> result : expected)
+            if (result.alignment != null)
+                ++aligned;
+        Assert.assertTrue(aligned > 10);
+
+        for (int chunkSize : new int[]{1, 7, 64})
+            for (int maxChunksInFlight : new int[]{1, 3, 100}) {
+                // Ordered output is identical to per-read reordering
+                List<VDJCAlignmentResult<PairedRead>> actual = align(reads, aligner, chunkSize,
+                        maxChunksInFlight, false);
+                assertEquals(expected, actual);
+
+                // Unordered output contains the same alignments
+                actual = align(reads, aligner, chunkSize, maxChunksInFlight, true);
+                Collections.sort(actual, new Comparator<VDJCAlignmentResult<PairedRead>>() {
+                    @Override
+                    public int compare(VDJCAlignmentResult<PairedRead> o1, VDJCAlignmentResult<PairedRead> o2) {
+                        return Long.compare(o1.read.getId(), o2.read.getId());
+                    }
+                });
+                assertEquals(expected, actual);
+            }
+    }
+
+    static void assertEquals(List<VDJCAlignmentResult<PairedRead>> expected,
+                             List<VDJCAlignmentResult<PairedRead>> actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            Assert.assertEquals(expected.get(i).read.getId(), actual.get(i).read.getId());
+            Assert.assertEquals(expected.get(i).alignment, actual.get(i).alignment);
+        }
+    }
+
+    static List<VDJCAlignmentResult<PairedRead>> align(List<PairedRead> reads,
+                                                       Processor<PairedRead, VDJCAlignmentResult<PairedRead>> aligner,
+                                                       int chunkSize, int maxChunksInFlight, boolean unordered) {
+        final AtomicInteger taken = new AtomicInteger();
+        final OutputPort<PairedRead> source = CUtils.asOutputPort(reads);
+        OutputPort<PairedRead> countingSource = new OutputPort<PairedRead>() {
+            @Override
+            public PairedRead take() {
+                PairedRead read = source.take();
+                if (read != null)
+                    taken.incrementAndGet();
+                return read;
+            }
+        };
+
+        InFlightLimiter limiter = new InFlightLimiter(maxChunksInFlight);
+        OutputPort<VDJCAlignmentResult> results = ActionAlign.align(countingSource, aligner, 4, chunkSize, 2,
+                limiter, unordered);
+        List<VDJCAlignmentResult<PairedRead>> list = new ArrayList<>();
+        VDJCAlignmentResult result;
+        while ((result = results.take()) != null) {
+            list.add(result);
+            // Reading is suspended while the limit is reached; one more chunk may be already taken from the
+            // limiter by the consumer
+            Assert.assertTrue(taken.get() - list.size() <= (maxChunksInFlight + 1) * chunkSize);
+        }
+        Assert.assertEquals(maxChunksInFlight, limiter.getAvailable());
+        return list;
+    }
+
+    /**
+     * Alignment as it was performed before chunk-level reordering was introduced.
+     */
+    @SuppressWarnings("unchecked")
+    static List<VDJCAlignmentResult<PairedRead>> alignPerRead(List<PairedRead> reads,
+                                                              Processor<PairedRead, VDJCAlignmentResult<PairedRead>> aligner) {
+        OutputPort<VDJCAlignmentResult<PairedRead>> results = unchunked(new ParallelProcessor(
+                CUtils.buffered(chunked(CUtils.asOutputPort(reads), 16), 4), chunked(aligner), 4));
+        results = new OrderedOutputPort<>(results, new Indexer<VDJCAlignmentResult<PairedRead>>() {
+            @Override
+            public long getIndex(VDJCAlignmentResult<PairedRead> o) {
+                return o.read.getId();
+            }
+        });
+        List<VDJCAlignmentResult<PairedRead>> list = new ArrayList<>();
+        for (VDJCAlignmentResult<PairedRead> result : CUtils.it(results))
+            list.add(result);
+        return list;
+    }
+
+    /**
+     * Creates aligner producing the same result for a read in any thread.
+     */
+    @SuppressWarnings("unchecked")
+    static Processor<PairedRead, VDJCAlignmentResult<PairedRead>> createAligner() throws Exception {
+        final VDJCAligner<PairedRead> aligner = IGHSample.addAlleles(
+                VDJCAligner.createAligner(VDJCParametersPresets.getByName("default"), true, true));
+        return new Processor<PairedRead, VDJCAlignmentResult<PairedRead>>() {
+            @Override
+            public VDJCAlignmentResult<PairedRead> process(PairedRead read) {
+                // Seeds of k-mer aligners are drawn from thread-local random
+                RandomUtil.getThreadLocalRandom().setSeed(read.getId());
+                return aligner.process(read);
+            }
+        };
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.export;
+
+import cc.redberry.pipe.CUtils;
+import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.util.TempFileManager;
+import com.milaboratory.mixcr.vdjaligners.IGHSample;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ColumnarWriterTest {
+    @Test
+    public void testRoundTrip() throws Exception {
+        List<VDJCAlignments> sample = IGHSample.alignSingle();
+        List<FieldExtractor> extractors = FieldExtractorsTest.createAll(VDJCAlignments.class);
+        // Several chunks in parallel mode
+        List<VDJCAlignments> alignments = new ArrayList<>();
+        while (alignments.size() <= 2 * ChunkedProcessing.CHUNK_SIZE)
+            alignments.addAll(sample);
+
+        for (int threads : new int[]{1, 3}) {
+            File file = TempFileManager.getTempFile();
+            try (ColumnarWriter<VDJCAlignments> writer = new ColumnarWriter<>(new FileOutputStream(file), 7)) {
+                for (FieldExtractor extractor : extractors)
+                    writer.attachInfoProvider((AbstractFieldExtractor<VDJCAlignments>) extractor);
+                writer.putAll(CUtils.asOutputPort(alignments), threads);
+            }
+            assertContent(file, alignments, extractors);
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testEmptyTextValues() throws Exception {
+        FieldExtractor<String> extractor = new FieldParameterless<String>(String.class, "-text", "Text", "Text") {
+            @Override
+            protected String extract(String object) {
+                return object;
+            }
+        }.create(new String[0]);
+        String[] values = {"", "a", "", "", "bc", ""};
+
+        File file = TempFileManager.getTempFile();
+        try (ColumnarWriter<String> writer = new ColumnarWriter<>(new FileOutputStream(file))) {
+            writer.attachInfoProvider((AbstractFieldExtractor<String>) extractor);
+            for (String value : values)
+                writer.put(value);
+        }
+        try (ColumnarReader reader = new ColumnarReader(file)) {
+            Assert.assertEquals(ColumnType.TEXT, reader.getColumnType(0));
+            Assert.assertArrayEquals(values, reader.readColumn(0));
+        }
+        file.delete();
+    }
+
+    private static void assertContent(File file, List<VDJCAlignments> alignments, List<FieldExtractor> extractors)
+            throws Exception {
+        try (ColumnarReader reader = new ColumnarReader(file)) {
+            Assert.assertEquals(alignments.size(), reader.getNumberOfRows());
+            Assert.assertEquals((alignments.size() + 6) / 7, reader.getNumberOfRowGroups());
+            Assert.assertEquals(extractors.size(), reader.getNumberOfColumns());
+            // Reading columns in reverse order checks random access to column chunks
+            for (int i = extractors.size() - 1; i >= 0; --i) {
+                FieldExtractor extractor = extractors.get(i);
+                Assert.assertEquals(extractor.getHeader(), reader.getHeader(i));
+                Assert.assertEquals(extractor.getDescriptor().getCommand(), reader.getCommand(i));
+                ColumnType type = extractor.getDescriptor().getColumnType();
+                Assert.assertEquals(type, reader.getColumnType(i));
+
+                Object[] values = reader.readColumn(i);
+                for (int j = 0; j < alignments.size(); ++j) {
+                    String expected = extractor.extractValue(alignments.get(j));
+                    if (expected.isEmpty() && type != ColumnType.TEXT)
+                        Assert.assertNull(values[j]);
+                    else if (type == ColumnType.INTEGER)
+                        Assert.assertEquals(Long.parseLong(expected), values[j]);
+                    else if (type == ColumnType.REAL)
+                        Assert.assertEquals(Double.parseDouble(expected), values[j]);
+                    else
+                        Assert.assertEquals(expected, values[j]);
+                }
+            }
+        }
+    }
+}
@@ -32,14 +32,83 @@ import com.milaboratory.core.alignment.Alignment;
 import com.milaboratory.mixcr.basictypes.Clone;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
 import com.milaboratory.mixcr.cli.Util;
-import com.milaboratory.mixcr.reference.GeneType;
+import com.milaboratory.mixcr.reference.*;
+import com.milaboratory.mixcr.vdjaligners.IGHSample;
+import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.ListIterator;
 
 public class FieldExtractorsTest {
+    @Test
+    public void testByteExtraction() throws Exception {
+        List<VDJCAlignments> alignments = IGHSample.alignSingle();
+        List<FieldExtractor> extractors = createAll(VDJCAlignments.class);
+
+        ByteSink sink = new ByteSink(1);
+        for (VDJCAlignments alignment : alignments)
+            for (FieldExtractor extractor : extractors) {
+                sink.reset();
+                ((ByteFieldExtractor) extractor).appendTo(alignment, sink);
+                Assert.assertEquals(extractor.extractValue(alignment), sink.toString());
+            }
+    }
+
+    @Test
+    public void testInfoWriterOutput() throws Exception {
+        List<VDJCAlignments> alignments = IGHSample.alignSingle();
+        List<FieldExtractor> extractors = createAll(VDJCAlignments.class);
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < extractors.size(); ++i)
+            expected.append(i == 0 ? "" : "\t").append(extractors.get(i).getHeader());
+        for (VDJCAlignments alignment : alignments) {
+            expected.append('\n');
+            for (int i = 0; i < extractors.size(); ++i)
+                expected.append(i == 0 ? "" : "\t").append(extractors.get(i).extractValue(alignment));
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (InfoWriter<VDJCAlignments> writer = new InfoWriter<>(bos)) {
+            for (FieldExtractor extractor : extractors)
+                writer.attachInfoProvider((AbstractFieldExtractor<VDJCAlignments>) extractor);
+            for (VDJCAlignments alignment : alignments)
+                writer.put(alignment);
+        }
+        Assert.assertEquals(expected.toString(), bos.toString());
+    }
+
+    /**
+     * Creates extractors for all fields applicable to the class (features are exported for CDR3).
+     */
+    static List<FieldExtractor> createAll(Class clazz) {
+        List<FieldExtractor> extractors = new ArrayList<>();
+        for (Field field : FieldExtractors.getFields())
+            if (field.canExtractFrom(clazz))
+                extractors.add(field.create(field instanceof FieldWithParameters
+                        ? new String[]{"CDR3"} : new String[0]));
+        return extractors;
+    }
+
+    @Test
+    public void testNumbers() throws Exception {
+        ByteSink sink = new ByteSink(1);
+        float[] floats = {0f, -0f, 1f, -1f, 12.5f, 123456f, 9999999f, 1.0E7f, 3.0E10f, Float.NaN};
+        for (float f : floats) {
+            sink.reset();
+            Assert.assertEquals(String.valueOf(f), sink.append(f).toString());
+        }
+        long[] longs = {0, 7, -7, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long l : longs) {
+            sink.reset();
+            Assert.assertEquals(Long.toString(l), sink.append(l).toString());
+        }
+    }
+
     @Ignore
     @Test
     public void bestHits() throws Exception {
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.export;
+
+import cc.redberry.pipe.OutputPort;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+public class InfoWriterTest {
+    @Test
+    public void testParallelOrder() throws Exception {
+        FieldExtractor<Integer> extractor = new FieldParameterless<Integer>(Integer.class, "-value",
+                "Value", "Value") {
+            @Override
+            protected String extract(Integer object) {
+                return object.toString();
+            }
+        }.create(new String[0]);
+
+        byte[] expected = null;
+        for (int threads : new int[]{1, 4}) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (InfoWriter<Integer> writer = new InfoWriter<>(bos)) {
+                writer.attachInfoProvider((AbstractFieldExtractor<Integer>) extractor);
+                writer.attachInfoProvider((AbstractFieldExtractor<Integer>) extractor);
+                writer.putAll(new CountingPort(10 * ChunkedProcessing.CHUNK_SIZE + 17), threads);
+            }
+            if (expected == null)
+                expected = bos.toByteArray();
+            else
+                Assert.assertArrayEquals(expected, bos.toByteArray());
+        }
+        String[] lines = new String(expected).split("\n");
+        Assert.assertEquals(10 * ChunkedProcessing.CHUNK_SIZE + 18, lines.length);
+        Assert.assertEquals("Value\tValue", lines[0]);
+        Assert.assertEquals("100\t100", lines[101]);
+    }
+
+    private static final class CountingPort implements OutputPort<Integer> {
+        final int size;
+        int current = 0;
+
+        CountingPort(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public Integer take() {
+            return current == size ? null : current++;
+        }
+    }
+}
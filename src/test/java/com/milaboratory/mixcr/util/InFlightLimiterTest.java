@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.util;
+
+import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPort;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class InFlightLimiterTest {
+    @Test
+    public void test1() throws Exception {
+        InFlightLimiter limiter = new InFlightLimiter(2);
+        OutputPort<Integer> in = limiter.enter(CUtils.asOutputPort(Arrays.asList(1, 2, 3)));
+        OutputPort<Integer> out = limiter.leave(CUtils.asOutputPort(Arrays.asList(1, 2, 3)));
+
+        assertEquals((Integer) 1, in.take());
+        assertEquals((Integer) 2, in.take());
+        assertEquals(0, limiter.getAvailable());
+
+        assertEquals((Integer) 1, out.take());
+        assertEquals(1, limiter.getAvailable());
+        assertEquals((Integer) 3, in.take());
+        assertEquals(0, limiter.getAvailable());
+
+        assertEquals((Integer) 2, out.take());
+        // End of input does not hold a permit
+        assertNull(in.take());
+        assertEquals(1, limiter.getAvailable());
+
+        assertEquals((Integer) 3, out.take());
+        assertNull(out.take());
+        assertEquals(2, limiter.getAvailable());
+    }
+}
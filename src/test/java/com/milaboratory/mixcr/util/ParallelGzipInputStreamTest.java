@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+public class ParallelGzipInputStreamTest {
+    @Test
+    public void testBgzf() throws Exception {
+        byte[] data = createData(1000000);
+        ParallelGzipInputStream input = new ParallelGzipInputStream(new ByteArrayInputStream(bgzf(data)), 3);
+        Assert.assertTrue(input.isBgzf());
+        Assert.assertArrayEquals(data, readAll(input));
+    }
+
+    @Test
+    public void testPlainGzip() throws Exception {
+        byte[] data = createData(1000000);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (GZIPOutputStream gos = new GZIPOutputStream(bos)) {
+            gos.write(data);
+        }
+        ParallelGzipInputStream input = new ParallelGzipInputStream(new ByteArrayInputStream(bos.toByteArray()), 3);
+        Assert.assertFalse(input.isBgzf());
+        Assert.assertArrayEquals(data, readAll(input));
+    }
+
+    static byte[] createData(int size) {
+        Random random = new Random(1);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i)
+            data[i] = (byte) "ACGT\n".charAt(random.nextInt(5));
+        return data;
+    }
+
+    static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int r;
+        while ((r = input.read(buffer)) != -1)
+            bos.write(buffer, 0, r);
+        input.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Minimal BGZF writer: 64K input blocks followed by the empty end-of-file block
+     */
+    static byte[] bgzf(byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (int offset = 0; offset < data.length; offset += 0xFF00)
+            writeBgzfBlock(bos, data, offset, Math.min(0xFF00, data.length - offset));
+        writeBgzfBlock(bos, data, 0, 0);
+        return bos.toByteArray();
+    }
+
+    static void writeBgzfBlock(ByteArrayOutputStream bos, byte[] data, int offset, int length) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        byte[] compressed = new byte[length + 1024];
+        int compressedSize = deflater.deflate(compressed);
+        deflater.end();
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        int blockSize = 18 + compressedSize + 8;
+        bos.write(new byte[]{31, (byte) 139, 8, 4, 0, 0, 0, 0, 0, (byte) 255, 6, 0, 'B', 'C', 2, 0,
+                (byte) (blockSize - 1), (byte) ((blockSize - 1) >> 8)}, 0, 18);
+        bos.write(compressed, 0, compressedSize);
+        writeIntLE(bos, (int) crc.getValue());
+        writeIntLE(bos, length);
+    }
+
+    static void writeIntLE(ByteArrayOutputStream bos, int value) {
+        for (int i = 0; i < 4; ++i)
+            bos.write(value >>> (8 * i));
+    }
+}
@@ -39,11 +39,28 @@ public class DAlignerParametersTest {
     @Test
     public void test1() throws Exception {
         DAlignerParameters paramentrs = new DAlignerParameters(GeneFeature.DRegion,
-                30.0f, 0.85f, 3, AffineGapAlignmentScoring.getNucleotideBLASTScoring());
+                30.0f, 0.85f, 3, AffineGapAlignmentScoring.getNucleotideBLASTScoring())
+                .setCacheSize(1000);
         String str = GlobalObjectMappers.PRETTY.writeValueAsString(paramentrs);
         DAlignerParameters deser = GlobalObjectMappers.PRETTY.readValue(str, DAlignerParameters.class);
         assertEquals(paramentrs, deser);
+        assertEquals(1000, deser.getCacheSize());
         DAlignerParameters clone = deser.clone();
         assertEquals(paramentrs, clone);
+        assertEquals(1000, clone.getCacheSize());
+
+        // Cache size doesn't affect alignment results
+        clone.setCacheSize(0);
+        assertEquals(paramentrs, clone);
+        assertEquals(paramentrs.hashCode(), clone.hashCode());
+    }
+
+    @Test
+    public void testDefaultCacheSize() throws Exception {
+        String str = "{\"geneFeatureToAlign\":\"DRegion\",\"absoluteMinScore\":25.0,\"relativeMinScore\":0.85," +
+                "\"maxHits\":3,\"scoring\":{\"type\":\"linear\"," +
+                "\"subsMatrix\":\"simple(match = 5, mismatch = -9)\",\"gapPenalty\":-12}}";
+        DAlignerParameters deser = GlobalObjectMappers.PRETTY.readValue(str, DAlignerParameters.class);
+        assertEquals(DAlignerParameters.DEFAULT_CACHE_SIZE, deser.getCacheSize());
     }
 }
\ No newline at end of file
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.vdjaligners;
+
+import cc.redberry.pipe.CUtils;
+import com.milaboratory.core.io.sequence.PairedRead;
+import com.milaboratory.core.io.sequence.SingleRead;
+import com.milaboratory.core.io.sequence.fastq.PairedFastqReader;
+import com.milaboratory.core.io.sequence.fastq.SingleFastqReader;
+import com.milaboratory.mixcr.basictypes.VDJCAlignments;
+import com.milaboratory.mixcr.reference.*;
+import org.junit.Assert;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Human IGH sample from test resources and aligners for it, shared by tests.
+ */
+public final class IGHSample {
+    public static final String R1 = "sequences/sample_IGH_R1.fastq", R2 = "sequences/sample_IGH_R2.fastq";
+
+    private IGHSample() {
+    }
+
+    public static LociLibrary getLibrary() {
+        return LociLibraryManager.getDefault().getLibrary("mi");
+    }
+
+    public static InputStream open(String resource) {
+        return IGHSample.class.getClassLoader().getResourceAsStream(resource);
+    }
+
+    public static SingleFastqReader createSingleReader() throws IOException {
+        return new SingleFastqReader(open(R1));
+    }
+
+    public static PairedFastqReader createPairedReader() throws IOException {
+        return new PairedFastqReader(open(R1), open(R2));
+    }
+
+    public static List<SingleRead> readSingle() throws IOException {
+        List<SingleRead> reads = new ArrayList<>();
+        try (SingleFastqReader reader = createSingleReader()) {
+            for (SingleRead read : CUtils.it(reader))
+                reads.add(read);
+        }
+        return reads;
+    }
+
+    public static List<PairedRead> readPaired() throws IOException {
+        List<PairedRead> reads = new ArrayList<>();
+        try (PairedFastqReader reader = createPairedReader()) {
+            for (PairedRead read : CUtils.it(reader))
+                reads.add(read);
+        }
+        return reads;
+    }
+
+    /**
+     * Adds IGH alleles from the library, which contain all features required by aligner parameters.
+     */
+    public static <A extends VDJCAligner> A addAlleles(A aligner, LociLibrary library) {
+        VDJCAlignerParameters parameters = aligner.getParameters();
+        for (Allele allele : library.getLocus(Species.HomoSapiens, Locus.IGH).getAllAlleles())
+            if (parameters.containsRequiredFeature(allele))
+                aligner.addAllele(allele);
+        return aligner;
+    }
+
+    public static <A extends VDJCAligner> A addAlleles(A aligner) {
+        return addAlleles(aligner, getLibrary());
+    }
+
+    /**
+     * Aligns single-end sample (R1) with default parameters.
+     */
+    public static List<VDJCAlignments> alignSingle() throws IOException {
+        VDJCAlignerSJFirst aligner = addAlleles(new VDJCAlignerSJFirst(VDJCParametersPresets.getByName("default")));
+        List<VDJCAlignments> alignments = new ArrayList<>();
+        for (SingleRead read : readSingle()) {
+            VDJCAlignmentResult<SingleRead> result = aligner.process(read);
+            if (result.alignment != null)
+                alignments.add(result.alignment);
+        }
+        Assert.assertTrue(alignments.size() > 10);
+        return alignments;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.vdjaligners;
+
+import com.milaboratory.core.alignment.Aligner;
+import com.milaboratory.core.alignment.Alignment;
+import com.milaboratory.core.alignment.AffineGapAlignmentScoring;
+import com.milaboratory.core.alignment.LinearGapAlignmentScoring;
+import com.milaboratory.core.sequence.NucleotideSequence;
+import com.milaboratory.test.TestUtil;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.apache.commons.math3.random.Well19937c;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LocalScoreCalculatorTest {
+    @Test
+    public void testScoresMatchAlignments() throws Exception {
+        Well19937c random = new Well19937c(123);
+        LinearGapAlignmentScoring<NucleotideSequence> scoring =
+                new LinearGapAlignmentScoring<>(NucleotideSequence.ALPHABET, 5, -9, -12);
+        List<NucleotideSequence> references = new ArrayList<>();
+        for (int i = 0; i < 30; ++i)
+            references.add(TestUtil.randomSequence(NucleotideSequence.ALPHABET, random, 10, 40));
+        LocalScoreCalculator calculator = LocalScoreCalculator.create(scoring, references);
+        Assert.assertNotNull(calculator);
+
+        for (int t = 0; t < 200; ++t) {
+            NucleotideSequence reference = references.get(random.nextInt(references.size()));
+            // Mutated fragment of one of the references surrounded by random sequence
+            NucleotideSequence target = new NucleotideSequence(
+                    TestUtil.randomSequence(NucleotideSequence.ALPHABET, random, 0, 10).toString()
+                            + mutate(reference.getRange(random.nextInt(5), reference.size()).toString(), random)
+                            + TestUtil.randomSequence(NucleotideSequence.ALPHABET, random, 0, 10));
+            int[] scores = calculator.calculateScores(target);
+            for (int i = 0; i < references.size(); ++i) {
+                Alignment<NucleotideSequence> alignment = Aligner.alignLocal(scoring, references.get(i), target);
+                int expected = alignment == null ? 0 : (int) alignment.getScore();
+                Assert.assertEquals(expected, scores[i]);
+            }
+        }
+    }
+
+    private static String mutate(String sequence, RandomGenerator random) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < sequence.length(); ++i)
+            switch (random.nextInt(12)) {
+                case 0:
+                    // deletion
+                    break;
+                case 1:
+                    builder.append(sequence.charAt(i)).append("ACGT".charAt(random.nextInt(4)));
+                    break;
+                case 2:
+                    builder.append("ACGT".charAt(random.nextInt(4)));
+                    break;
+                default:
+                    builder.append(sequence.charAt(i));
+            }
+        return builder.toString();
+    }
+
+    @Test
+    public void testAffineNotSupported() throws Exception {
+        List<NucleotideSequence> references = new ArrayList<>();
+        references.add(new NucleotideSequence("ATTACG"));
+        Assert.assertNull(LocalScoreCalculator.create(AffineGapAlignmentScoring.getNucleotideBLASTScoring(),
+                references));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2014-2015, Bolotin Dmitry, Chudakov Dmitry, Shugay Mikhail
+ * (here and after addressed as Inventors)
+ * All Rights Reserved
+ *
+ * Permission to use, copy, modify and distribute any part of this program for
+ * educational, research and non-profit purposes, by non-profit institutions
+ * only, without fee, and without a written agreement is hereby granted,
+ * provided that the above copyright notice, this paragraph and the following
+ * three paragraphs appear in all copies.
+ *
+ * Those desiring to incorporate this work into commercial products or use for
+ * commercial purposes should contact the Inventors using one of the following
+ * email addresses: chudakovdm@mail.ru, chudakovdm@gmail.com
+ *
+ * IN NO EVENT SHALL THE INVENTORS BE LIABLE TO ANY PARTY FOR DIRECT, INDIRECT,
+ * SPECIAL, INCIDENTAL, OR CONSEQUENTIAL DAMAGES, INCLUDING LOST PROFITS,
+ * ARISING OUT OF THE USE OF THIS SOFTWARE, EVEN IF THE INVENTORS HAS BEEN
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * THE SOFTWARE PROVIDED HEREIN IS ON AN "AS IS" BASIS, AND THE INVENTORS HAS
+ * NO OBLIGATION TO PROVIDE MAINTENANCE, SUPPORT, UPDATES, ENHANCEMENTS, OR
+ * MODIFICATIONS. THE INVENTORS MAKES NO REPRESENTATIONS AND EXTENDS NO
+ * WARRANTIES OF ANY KIND, EITHER IMPLIED OR EXPRESS, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY OR FITNESS FOR A
+ * PARTICULAR PURPOSE, OR THAT THE USE OF THE SOFTWARE WILL NOT INFRINGE ANY
+ * PATENT, TRADEMARK OR OTHER RIGHTS.
+ */
+package com.milaboratory.mixcr.vdjaligners;
+
+import cc.redberry.pipe.CUtils;
+import com.milaboratory.core.io.sequence.SingleRead;
+import com.milaboratory.core.io.sequence.fastq.SingleFastqReader;
+import com.milaboratory.core.sequence.NucleotideSequence;
+import com.milaboratory.mixcr.reference.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OrientationClassifierTest {
+    @Test
+    public void testStrandOfAlignedReads() throws Exception {
+        VDJCAlignerParameters parameters = VDJCParametersPresets.getByName("default");
+        VDJCAlignerSJFirst aligner = IGHSample.addAlleles(new VDJCAlignerSJFirst(parameters));
+        OrientationClassifier classifier = createClassifier(aligner);
+
+        int aligned = 0, decided = 0, wrong = 0;
+        try (SingleFastqReader reader = IGHSample.createSingleReader()) {
+            for (SingleRead read : CUtils.it(reader)) {
+                VDJCAlignmentResult<SingleRead> result = aligner.process(read);
+                if (result.alignment == null)
+                    continue;
+                ++aligned;
+                NucleotideSequence sequence = read.getData().getSequence();
+                int orientation = classifier.classify(sequence);
+                if (orientation == 0)
+                    continue;
+                ++decided;
+                boolean forward = result.alignment.getTarget(0).getSequence().equals(sequence);
+                if (forward != (orientation > 0))
+                    ++wrong;
+
+                // Reverse complement of the read is classified as opposite strand
+                Assert.assertEquals(-orientation, classifier.classify(sequence.getReverseComplement()));
+            }
+        }
+        Assert.assertTrue(decided > aligned * 0.9);
+        Assert.assertEquals(0, wrong);
+    }
+
+    /**
+     * Creates classifier with V and J alleles of the aligner.
+     */
+    static OrientationClassifier createClassifier(VDJCAligner<?> aligner) {
+        VDJCAlignerParameters parameters = aligner.getParameters();
+        OrientationClassifier classifier = new OrientationClassifier();
+        for (Allele allele : aligner.getUsedAlleles())
+            if (allele.getGeneType() == GeneType.Variable || allele.getGeneType() == GeneType.Joining)
+                classifier.addReference(allele.getFeature(parameters.getFeatureToAlign(allele.getGeneType())));
+        return classifier;
+    }
+}
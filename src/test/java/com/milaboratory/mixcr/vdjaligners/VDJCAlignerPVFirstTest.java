@@ -30,9 +30,12 @@ package com.milaboratory.mixcr.vdjaligners;
 
 import cc.redberry.pipe.CUtils;
 import com.milaboratory.core.io.sequence.PairedRead;
+import com.milaboratory.core.io.sequence.SingleReadImpl;
 import com.milaboratory.core.io.sequence.fastq.PairedFastqReader;
+import com.milaboratory.core.sequence.NSequenceWithQuality;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
 import com.milaboratory.mixcr.basictypes.VDJCHit;
+import com.milaboratory.mixcr.cli.AlignerReport;
 import com.milaboratory.mixcr.reference.*;
 import org.junit.Assert;
 import org.junit.Test;
@@ -98,4 +101,56 @@ public class VDJCAlignerPVFirstTest {
         //        Assert.assertEquals(alignemntsList.get(i++), alignments);
         //}
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testLayoutDetection() throws Exception {
+        VDJCAlignerParameters parameters = VDJCParametersPresets.getByName("default")
+                .setReadsLayout(PairedEndReadsLayout.Auto);
+
+        try (PairedFastqReader reader = IGHSample.createPairedReader()) {
+            VDJCAlignerPVFirst aligner = IGHSample.addAlleles(new VDJCAlignerPVFirst(parameters));
+            aligner.layoutDetectionSample = 20;
+
+            int aligned = 0;
+            for (PairedRead read : CUtils.it(reader))
+                if (aligner.process(read).alignment != null)
+                    ++aligned;
+
+            Assert.assertTrue(aligned > 20);
+            Assert.assertEquals(PairedEndReadsLayout.Opposite, aligner.getDetectedLayout());
+        }
+    }
+
+    @Test
+    public void testLayoutDetectionWithMerge() throws Exception {
+        VDJCAlignerParameters parameters = VDJCParametersPresets.getByName("default")
+                .setReadsLayout(PairedEndReadsLayout.Auto);
+
+        // Layout is detected using pairs from the sample, its mates barely overlap, so overlapping pairs in opposite
+        // layout are made from single reads (oriented along the genes by single-end aligner)
+        List<PairedRead> reads = IGHSample.readPaired();
+        for (VDJCAlignments alignment : IGHSample.alignSingle()) {
+            NSequenceWithQuality data = alignment.getTarget(0);
+            int mateLength = data.size() * 7 / 10;
+            reads.add(new PairedRead(
+                    new SingleReadImpl(alignment.getReadId(), data.getRange(0, mateLength), ""),
+                    new SingleReadImpl(alignment.getReadId(),
+                            data.getRange(data.size() - mateLength, data.size()).getReverseComplement(), "")));
+        }
+
+        VDJCAlignerWithMerge aligner = IGHSample.addAlleles(new VDJCAlignerWithMerge(parameters));
+        aligner.pairedAligner.layoutDetectionSample = 20;
+        AlignerReport report = new AlignerReport();
+        aligner.setEventsListener(report);
+
+        for (PairedRead read : reads) {
+            // Reads are not merged until layout is detected
+            if (aligner.pairedAligner.getDetectedLayout() == null)
+                Assert.assertEquals(0, report.getAlignedOverlap() + report.getNonAlignedOverlap());
+            aligner.process(read);
+        }
+
+        Assert.assertEquals(PairedEndReadsLayout.Opposite, aligner.pairedAligner.getDetectedLayout());
+        Assert.assertTrue(report.getAlignedOverlap() > 20);
+    }
+}
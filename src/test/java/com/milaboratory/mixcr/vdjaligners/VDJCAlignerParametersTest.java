@@ -60,11 +60,20 @@ public class VDJCAlignerParametersTest {
                                 1.5f, 0.75f, 1.0f, -0.1f, -0.3f, 4, 10, 15, 2, -10, 40.0f, 0.87f, 7,
                                 LinearGapAlignmentScoring.getNucleotideBLASTScoring())), 120.0f, 5,
                 0.7f, 0.7f, PairedEndReadsLayout.Opposite, new MergerParameters(12, 0.12));
+        paramentrs.setOrientationPreScreen(true);
+        paramentrs.setAlignmentCacheSize(1000);
         String str = GlobalObjectMappers.PRETTY.writeValueAsString(paramentrs);
         VDJCAlignerParameters deser = GlobalObjectMappers.PRETTY.readValue(str, VDJCAlignerParameters.class);
         assertEquals(paramentrs, deser);
+        assertEquals(1000, deser.getAlignmentCacheSize());
         VDJCAlignerParameters clone = deser.clone();
         assertEquals(paramentrs, clone);
+        assertEquals(1000, clone.getAlignmentCacheSize());
+
+        // Cache size doesn't affect alignment results
+        clone.setAlignmentCacheSize(0);
+        assertEquals(paramentrs, clone);
+        assertEquals(paramentrs.hashCode(), clone.hashCode());
     }
 
     @Test
@@ -30,11 +30,14 @@ package com.milaboratory.mixcr.vdjaligners;
 
 import cc.redberry.pipe.CUtils;
 import com.milaboratory.core.io.sequence.SingleRead;
+import com.milaboratory.core.io.sequence.SingleReadImpl;
 import com.milaboratory.core.io.sequence.fastq.SingleFastqReader;
 import com.milaboratory.mixcr.basictypes.VDJCAlignments;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsReader;
 import com.milaboratory.mixcr.basictypes.VDJCAlignmentsWriter;
+import com.milaboratory.mixcr.cli.AlignerReport;
 import com.milaboratory.mixcr.reference.*;
+import com.milaboratory.util.RandomUtil;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -80,7 +83,64 @@ public class VDJCAlignerSJFirstTest {
                 Assert.assertEquals(alignemntsList.get(i++), alignments);
         }
     }
-    
+
+    @Test
+    public void testAlignmentCache() throws Exception {
+        VDJCAlignerParameters parameters =
+                VDJCParametersPresets.getByName("default").setAlignmentCacheSize(10000);
+        List<SingleRead> reads = IGHSample.readSingle();
+        VDJCAlignerSJFirst aligner = IGHSample.addAlleles(new VDJCAlignerSJFirst(parameters));
+        AlignerReport report = new AlignerReport();
+        aligner.setEventsListener(report);
+
+        List<VDJCAlignments> first = new ArrayList<>();
+        for (SingleRead read : reads)
+            first.add(aligner.process(read).alignment);
+        long misses = report.getAlignmentCacheMisses();
+        Assert.assertTrue(misses > 0);
+
+        for (int i = 0; i < reads.size(); ++i)
+            Assert.assertEquals(first.get(i), aligner.process(reads.get(i)).alignment);
+        Assert.assertEquals(misses, report.getAlignmentCacheMisses());
+        Assert.assertTrue(report.getAlignmentCacheHits() >= misses);
+    }
+
+    @Test
+    public void testOrientationPreScreen() throws Exception {
+        List<SingleRead> reads = IGHSample.readSingle();
+
+        VDJCAlignerParameters parameters = VDJCParametersPresets.getByName("default");
+        VDJCAlignerSJFirst aligner = IGHSample.addAlleles(new VDJCAlignerSJFirst(parameters));
+        VDJCAlignerSJFirst preScreenAligner = IGHSample.addAlleles(
+                new VDJCAlignerSJFirst(parameters.clone().setOrientationPreScreen(true)));
+        OrientationClassifier classifier = OrientationClassifierTest.createClassifier(aligner);
+        AlignerReport report = new AlignerReport();
+        preScreenAligner.setEventsListener(report);
+
+        int decided = 0;
+        for (SingleRead read : reads) {
+            // KAligner picks seeds using thread-local random generator, so results depend on the order in which
+            // strands are aligned. Default aligner searches forward strand first, so it is given the read in the
+            // orientation pre-screen decided on, and both aligners start from the same random sequence.
+            int orientation = classifier.classify(read.getData().getSequence());
+            SingleRead oriented = orientation >= 0 ? read :
+                    new SingleReadImpl(read.getId(), read.getData().getReverseComplement(), read.getDescription());
+            RandomUtil.getThreadLocalRandom().setSeed(read.getId());
+            VDJCAlignments expected = aligner.process(oriented).alignment;
+            RandomUtil.getThreadLocalRandom().setSeed(read.getId());
+            VDJCAlignments actual = preScreenAligner.process(read).alignment;
+
+            Assert.assertEquals(expected, actual);
+            if (orientation != 0 && expected != null) {
+                ++decided;
+                // Strand decided by pre-screen is the one picked by full alignment
+                Assert.assertEquals(oriented.getData(), expected.getTarget(0));
+            }
+        }
+        Assert.assertTrue(decided > 10);
+        Assert.assertEquals(reads.size(), report.getOrientationDecided() + report.getOrientationAmbiguous());
+    }
+
 //    @Test
 //    public void testSerializationAndFilter() throws Exception {
 //        Assume.assumeTrue(TestUtil.lt());